@@ -0,0 +1,517 @@
+/*
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only journal of every operation that changes data: its name, the
+ * answers it was given, the ids it affected, how long it took and whether
+ * it succeeded.  Callers only encode the event and put it on a lock-free
+ * ring buffer; a single writer thread takes events off the ring and appends
+ * them to memory mapped segment files, forcing them to disk every
+ * flushMillis.  A full ring makes callers wait for the writer rather than
+ * lose events.
+ *
+ * Each segment, journal-&lt;first seq&gt;.seg, holds records of a length, a
+ * CRC32 and a JSON event, and ends at the first zero length.  When a record
+ * does not fit, a new segment is started.  An event's op and args are in the
+ * format of ScriptRunner, so a journal can be replayed as a script.
+ *
+ */
+
+public class AuditJournal{
+	private static final ThreadLocal<Event> current = new ThreadLocal<Event>();
+	private static final String PREFIX = "journal-";
+	private static final String SUFFIX = ".seg";
+
+	private final File dir;
+	private final int segmentBytes;
+	private final long flushNanos;
+
+	//the ring: slot i holds an event once sequences[i] is one past its position
+	private final byte[][] slots;
+	private final AtomicLongArray sequences;
+	private final int mask;
+	private final AtomicLong head = new AtomicLong();
+	private long tail = 0;
+	private final LongAdder stalls = new LongAdder();
+	private final LongAdder dropped = new LongAdder();
+
+	//writer thread only
+	private FileChannel channel = null;
+	private MappedByteBuffer segment = null;
+	private long nextSeq = 0;
+	private final CRC32 crc = new CRC32();
+
+	private Thread writer = null;
+	private volatile boolean running = false;
+	private final AtomicLong written = new AtomicLong();
+
+	/**
+	 * One operation being journaled on the current thread.
+	 */
+	static class Event{
+		final String op;
+		final long startMillis = System.currentTimeMillis();
+		final long startNanos = System.nanoTime();
+		final List<String> args = new ArrayList<String>();
+		final Map<String, String> ids = new LinkedHashMap<String, String>();
+		String error = null;
+
+		Event(String op){
+			this.op = op;
+		}
+	}
+
+	/**
+	 * @param dir where the segments are written
+	 * @param segmentBytes the size of each segment file
+	 * @param ringSize events the ring holds, rounded up to a power of two
+	 * @param flushMillis how often written events are forced to disk
+	 */
+	public AuditJournal(String dir, int segmentBytes, int ringSize, long flushMillis){
+		this.dir = new File(dir);
+		this.segmentBytes = segmentBytes;
+		this.flushNanos = flushMillis * 1000000L;
+		int size = Integer.highestOneBit(Math.max(2, ringSize - 1)) << 1;
+		this.slots = new byte[size][];
+		this.sequences = new AtomicLongArray(size);
+		for (int i = 0; i < size; ++i)
+			sequences.set(i, i);
+		this.mask = size - 1;
+	}
+
+	/**
+	 * Opens the last segment, after its last whole record, and starts the
+	 * writer thread.
+	 *
+	 * @throws java.io.IOException when the directory or segment cannot be opened
+	 */
+	public synchronized void start() throws IOException {
+		if (running)
+			return;
+		if (!dir.isDirectory() && !dir.mkdirs())
+			throw new IOException("Cannot create " + dir);
+		File[] files = segments(dir);
+		if (files.length == 0){
+			open(0);
+		}else{
+			File last = files[files.length - 1];
+			nextSeq = firstSeq(last);
+			channel = new RandomAccessFile(last, "rw").getChannel();
+			segment = channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(segmentBytes, channel.size()));
+			byte[] payload;
+			while ((payload = next(segment)) != null)
+				nextSeq = seqOf(payload) + 1;
+		}//end if
+		running = true;
+		writer = new Thread(new Runnable(){
+			public void run(){
+				write();
+			}
+		}, "audit-journal");
+		writer.setDaemon(true);
+		writer.start();
+	}//end start
+
+	/**
+	 * @return whether events are being journaled
+	 */
+	public boolean running(){
+		return running;
+	}
+
+	/**
+	 * Starts journaling an operation on this thread.  Does nothing when the
+	 * journal is not running.
+	 */
+	public void begin(String op){
+		if (running)
+			current.set(new Event(op));
+	}
+
+	/**
+	 * Finishes the operation begun on this thread and queues its event.
+	 *
+	 * @param ok whether the operation succeeded
+	 */
+	public void end(boolean ok){
+		Event e = current.get();
+		if (e == null)
+			return;
+		current.remove();
+		offer(e, ok);
+	}
+
+	/**
+	 * Journals an operation that did not run through begin and end, such as
+	 * a batch job or the expiry of holds.
+	 */
+	public void record(String op, Map<String, String> ids, long startNanos, boolean ok, String error){
+		if (!running)
+			return;
+		Event e = new Event(op);
+		e.ids.putAll(ids);
+		e.error = error;
+		offer(e, ok, (System.nanoTime() - startNanos) / 1000);
+	}
+
+	/**
+	 * Adds an answer read by the operation on this thread.
+	 */
+	static void input(String line){
+		Event e = current.get();
+		if (e != null && line != null)
+			e.args.add(line);
+	}
+
+	/**
+	 * Masks the last answer added, for secrets such as passwords.
+	 */
+	public static void redact(){
+		Event e = current.get();
+		if (e != null && !e.args.isEmpty())
+			e.args.set(e.args.size() - 1, "***");
+	}
+
+	/**
+	 * Adds an id or count affected by the operation on this thread.  Values
+	 * noted twice under one key are joined with commas.
+	 */
+	public static void note(String key, Object value){
+		Event e = current.get();
+		if (e == null)
+			return;
+		String old = e.ids.get(key);
+		e.ids.put(key, old == null ? String.valueOf(value) : old + "," + value);
+	}
+
+	/**
+	 * Records why the operation on this thread failed.
+	 */
+	public static void failed(Throwable t){
+		Event e = current.get();
+		if (e != null)
+			e.error = t.toString();
+	}
+
+	private void offer(Event e, boolean ok){
+		offer(e, ok, (System.nanoTime() - e.startNanos) / 1000);
+	}
+
+	/**
+	 * Encodes an event, less its sequence number, and puts it on the ring.
+	 */
+	private void offer(Event e, boolean ok, long micros){
+		StringBuilder sb = new StringBuilder();
+		sb.append(",\"ts\":");
+		Json.quote(sb, timestamp(e.startMillis));
+		sb.append(",\"op\":");
+		Json.quote(sb, e.op);
+		sb.append(",\"args\":[");
+		for (int i = 0; i < e.args.size(); ++i){
+			if (i > 0)
+				sb.append(',');
+			Json.quote(sb, e.args.get(i));
+		}//end for
+		sb.append("],\"ids\":{");
+		boolean first = true;
+		for (Map.Entry<String, String> id : e.ids.entrySet()){
+			if (!first)
+				sb.append(',');
+			first = false;
+			Json.quote(sb, id.getKey()).append(':');
+			Json.quote(sb, id.getValue());
+		}//end for
+		sb.append("},\"micros\":").append(micros).append(",\"ok\":").append(ok && e.error == null);
+		if (e.error != null){
+			sb.append(",\"error\":");
+			Json.quote(sb, e.error);
+		}//end if
+		byte[] record = sb.append('}').toString().getBytes(StandardCharsets.UTF_8);
+
+		while (true){
+			long pos = head.get();
+			int i = (int) (pos & mask);
+			long seq = sequences.get(i);
+			if (seq == pos){
+				if (head.compareAndSet(pos, pos + 1)){
+					slots[i] = record;
+					sequences.set(i, pos + 1);
+					return;
+				}//end if
+			}else if (seq < pos){
+				// full: wait for the writer, unless it has stopped
+				if (!running){
+					dropped.increment();
+					return;
+				}//end if
+				stalls.increment();
+				LockSupport.parkNanos(50000);
+			}//end if
+		}//end while
+	}//end offer
+
+	/**
+	 * @return the next event on the ring, or null if it is empty
+	 */
+	private byte[] poll(){
+		int i = (int) (tail & mask);
+		if (sequences.get(i) != tail + 1)
+			return null;
+		byte[] record = slots[i];
+		slots[i] = null;
+		sequences.set(i, tail + slots.length);
+		++tail;
+		return record;
+	}
+
+	/**
+	 * The writer thread.  If it fails the journal stops taking events, so
+	 * producers waiting on a full ring give up instead of spinning.
+	 */
+	private void write(){
+		try{
+			drain();
+		}catch (Throwable t){
+			running = false;
+			System.err.println("Audit journal writer stopped: " + t);
+			t.printStackTrace();
+			try{
+				channel.close();
+			}catch (IOException e){
+				// ignored.
+			}//end try
+		}//end try
+	}//end write
+
+	private void drain(){
+		long flushed = System.nanoTime();
+		boolean dirty = false;
+		while (true){
+			byte[] record = poll();
+			if (record != null){
+				try{
+					append(record);
+					dirty = true;
+				}catch (IOException e){
+					System.err.println("Audit journal write failed: " + e.getMessage());
+				}//end try
+				continue;
+			}//end if
+			if (dirty && System.nanoTime() - flushed >= flushNanos){
+				segment.force();
+				dirty = false;
+				flushed = System.nanoTime();
+			}//end if
+			if (!running && head.get() == tail)
+				break;
+			LockSupport.parkNanos(1000000);
+		}//end while
+		segment.force();
+		try{
+			channel.close();
+		}catch (IOException e){
+			// ignored.
+		}//end try
+	}//end drain
+
+	private void append(byte[] event) throws IOException {
+		byte[] payload = ("{\"seq\":" + nextSeq).getBytes(StandardCharsets.UTF_8);
+		int length = payload.length + event.length;
+		if (length + 12 > segmentBytes){
+			System.err.println("Audit event " + nextSeq + " of " + length + " bytes does not fit a segment, dropped");
+			return;
+		}//end if
+		if (segment.remaining() < length + 12){
+			segment.force();
+			channel.close();
+			open(nextSeq);
+		}//end if
+		crc.reset();
+		crc.update(payload);
+		crc.update(event);
+		segment.putInt(length);
+		segment.putInt((int) crc.getValue());
+		segment.put(payload);
+		segment.put(event);
+		++nextSeq;
+		written.incrementAndGet();
+	}//end append
+
+	private void open(long firstSeq) throws IOException {
+		File file = new File(dir, String.format("%s%020d%s", PREFIX, firstSeq, SUFFIX));
+		channel = new RandomAccessFile(file, "rw").getChannel();
+		segment = channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentBytes);
+		nextSeq = firstSeq;
+	}
+
+	/**
+	 * Stops taking events, writes the ones queued and forces them to disk.
+	 */
+	public synchronized void stop(){
+		if (!running)
+			return;
+		running = false;
+		try{
+			writer.join();
+		}catch (InterruptedException e){
+			Thread.currentThread().interrupt();
+		}//end try
+		writer = null;
+	}
+
+	/**
+	 * @return events written, how often callers waited on a full ring and
+	 * events dropped because the writer had stopped
+	 */
+	public String stats(){
+		return String.format("written=%d stalls=%d dropped=%d", written.get(), stalls.sum(), dropped.sum());
+	}
+
+	/**
+	 * Prints the events of a journal directory in order, checking every
+	 * record's CRC.
+	 *
+	 * @param dir the journal directory
+	 * @param filter only events whose JSON contains this text, or null for all
+	 * @return the number of events printed
+	 * @throws java.io.IOException when a segment cannot be read
+	 */
+	public static long inspect(String dir, String filter) throws IOException {
+		long printed = 0;
+		long total = 0;
+		File[] files = segments(new File(dir));
+		for (File file : files){
+			ByteBuffer buf = read(file);
+			byte[] payload;
+			while ((payload = next(buf)) != null){
+				++total;
+				String event = new String(payload, StandardCharsets.UTF_8);
+				if (filter == null || event.contains(filter)){
+					System.out.println(event);
+					++printed;
+				}//end if
+			}//end while
+			if (buf.remaining() >= 4 && buf.getInt(buf.position()) != 0)
+				System.err.println(file + ": damaged record at byte " + buf.position() + ", rest of segment skipped");
+		}//end for
+		System.err.println(String.format("%d of %d event(s) in %d segment(s)", printed, total, files.length));
+		return printed;
+	}//end inspect
+
+	/**
+	 * Turns the successful menu operations of a journal into script tasks,
+	 * in journal order.
+	 *
+	 * @param dir the journal directory
+	 * @param fromSeq the first event to replay
+	 * @return the tasks, numbered by event seq
+	 * @throws java.io.IOException when a segment cannot be read
+	 */
+	public static List<ScriptRunner.Task> replay(String dir, long fromSeq) throws IOException {
+		List<String> operations = Arrays.asList(Ticketmaster.OPERATIONS);
+		List<ScriptRunner.Task> tasks = new ArrayList<ScriptRunner.Task>();
+		for (File file : segments(new File(dir))){
+			ByteBuffer buf = read(file);
+			byte[] payload;
+			while ((payload = next(buf)) != null){
+				Map<?, ?> event = (Map<?, ?>) Json.parse(new String(payload, StandardCharsets.UTF_8));
+				long seq = ((Number) event.get("seq")).longValue();
+				if (seq < fromSeq || !Boolean.TRUE.equals(event.get("ok")) || !operations.contains(event.get("op")))
+					continue;
+				tasks.add(ScriptRunner.parse((int) seq, new String(payload, StandardCharsets.UTF_8)));
+			}//end while
+		}//end for
+		return tasks;
+	}//end replay
+
+	/**
+	 * @return the next whole record's payload, or null at the end of the
+	 * segment or at a damaged record, leaving buf before it
+	 */
+	private static byte[] next(ByteBuffer buf){
+		if (buf.remaining() < 8)
+			return null;
+		int start = buf.position();
+		int length = buf.getInt();
+		int sum = buf.getInt();
+		if (length <= 0 || length > buf.remaining()){
+			buf.position(start);
+			return null;
+		}//end if
+		byte[] payload = new byte[length];
+		buf.get(payload);
+		CRC32 check = new CRC32();
+		check.update(payload);
+		if ((int) check.getValue() != sum){
+			buf.position(start);
+			return null;
+		}//end if
+		return payload;
+	}//end next
+
+	private static ByteBuffer read(File file) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try{
+			return raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+		}finally{
+			raf.close();
+		}//end try
+	}
+
+	private static File[] segments(File dir){
+		File[] files = dir.listFiles(new FilenameFilter(){
+			public boolean accept(File d, String name){
+				return name.startsWith(PREFIX) && name.endsWith(SUFFIX);
+			}
+		});
+		if (files == null)
+			return new File[0];
+		// names hold zero padded seqs, so they sort in journal order
+		Arrays.sort(files);
+		return files;
+	}
+
+	private static long firstSeq(File segment){
+		String name = segment.getName();
+		return Long.parseLong(name.substring(PREFIX.length(), name.length() - SUFFIX.length()));
+	}
+
+	private static long seqOf(byte[] payload){
+		return ((Number) ((Map<?, ?>) Json.parse(new String(payload, StandardCharsets.UTF_8))).get("seq")).longValue();
+	}
+
+	private static String timestamp(long millis){
+		SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'");
+		format.setTimeZone(TimeZone.getTimeZone("UTC"));
+		return format.format(new Date(millis));
+	}
+}//end AuditJournal
@@ -0,0 +1,284 @@
+/*
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+
+/**
+ * Claims seats for a booking in a single round trip.  The booking row is
+ * inserted and the seats are taken by one statement, with the seat rows
+ * locked FOR UPDATE SKIP LOCKED so concurrent buyers of the same show pass
+ * over each other's rows instead of queueing behind them.  Booking ids come
+ * from a sequence rather than MAX(bid)+1.  New bookings are handed to the
+ * expiry service, which cancels them if they are not paid in time.
+ *
+ */
+
+public class BookingEngine{
+	private final Ticketmaster esql;
+	private volatile boolean sequencesReady = false;
+
+	/**
+	 * Thrown when a show does not have the requested seats free.  The
+	 * transaction that tried to claim them has been rolled back.
+	 */
+	public static class SeatsUnavailableException extends SQLException{
+		private static final long serialVersionUID = 1L;
+
+		public SeatsUnavailableException(String message){
+			super(message);
+		}
+	}
+
+	/**
+	 * The outcome of a successful claim.
+	 */
+	public static class Booking{
+		public final int bid;
+		public final List<String> seats;
+		public final int cost;
+
+		Booking(int bid, List<String> seats, int cost){
+			this.bid = bid;
+			this.seats = seats;
+			this.cost = cost;
+		}
+	}
+
+	/**
+	 * One seat held by a booking.
+	 */
+	public static class BookedSeat{
+		public final int sid;
+		public final String sno;
+		public final int price;
+
+		BookedSeat(int sid, String sno, int price){
+			this.sid = sid;
+			this.sno = sno;
+			this.price = price;
+		}
+	}
+
+	public BookingEngine(Ticketmaster esql){
+		this.esql = esql;
+	}
+
+	/**
+	 * Creates the id sequences for Bookings and Payments if they do not exist
+	 * yet, and moves them past any ids already in the tables.
+	 *
+	 * @throws java.sql.SQLException when the sequences cannot be created
+	 */
+	public void ensureSequences() throws SQLException {
+		if (sequencesReady)
+			return;
+		esql.ensureSequence("bookings_bid_seq", "Bookings", "bid");
+		esql.ensureSequence("payments_pid_seq", "Payments", "pid");
+		sequencesReady = true;
+	}//end ensureSequences
+
+	/**
+	 * Books the first free seats of a show, in seat order.
+	 *
+	 * @param sid the show
+	 * @param email the user making the booking
+	 * @param bdatetime the booking timestamp
+	 * @param count the number of seats
+	 * @return the new booking
+	 * @throws SeatsUnavailableException when fewer than count seats are free
+	 * @throws java.sql.SQLException when the booking fails
+	 */
+	public Booking claimAny(final int sid, final String email, final String bdatetime, final int count) throws SQLException {
+		ensureSequences();
+		final String sql =
+			"WITH b AS (INSERT INTO Bookings (bid, status, bdatetime, seats, sid, email) " +
+				"VALUES (nextval('bookings_bid_seq'), 'Pending', ?, ?, ?, ?) RETURNING bid, bdatetime), " +
+			"free AS (SELECT ss.ssid, cs.sno FROM ShowSeats ss JOIN CinemaSeats cs ON cs.csid = ss.csid " +
+				"WHERE ss.sid = ? AND ss.bid IS NULL ORDER BY ss.ssid LIMIT ? FOR UPDATE OF ss SKIP LOCKED) " +
+			"UPDATE ShowSeats ss SET bid = b.bid FROM b, free WHERE ss.ssid = free.ssid " +
+			"RETURNING ss.bid, free.sno, ss.price, " + BookingExpiry.untilBooked("b.bdatetime");
+		return claim(sql, new Object[]{ bdatetime, count, sid, email, sid, count }, count, sid);
+	}//end claimAny
+
+	/**
+	 * Books the given seat numbers of a show.  Either every seat is claimed
+	 * or none is.
+	 *
+	 * @param sid the show
+	 * @param email the user making the booking
+	 * @param bdatetime the booking timestamp
+	 * @param snos the cinema seat numbers wanted
+	 * @return the new booking
+	 * @throws SeatsUnavailableException when any of the seats is taken
+	 * @throws java.sql.SQLException when the booking fails
+	 */
+	public Booking claimSeats(int sid, String email, String bdatetime, List<String> snos) throws SQLException {
+		ensureSequences();
+		String sql =
+			"WITH b AS (INSERT INTO Bookings (bid, status, bdatetime, seats, sid, email) " +
+				"VALUES (nextval('bookings_bid_seq'), 'Pending', ?, ?, ?, ?) RETURNING bid, bdatetime), " +
+			"free AS (SELECT ss.ssid, cs.sno FROM ShowSeats ss JOIN CinemaSeats cs ON cs.csid = ss.csid " +
+				"WHERE ss.sid = ? AND ss.bid IS NULL AND cs.sno IN (" + Ticketmaster.placeholders(snos.size()) + ") " +
+				"FOR UPDATE OF ss SKIP LOCKED) " +
+			"UPDATE ShowSeats ss SET bid = b.bid FROM b, free WHERE ss.ssid = free.ssid " +
+			"RETURNING ss.bid, free.sno, ss.price, " + BookingExpiry.untilBooked("b.bdatetime");
+		List<Object> params = new ArrayList<Object>();
+		params.add(bdatetime);
+		params.add(snos.size());
+		params.add(sid);
+		params.add(email);
+		params.add(sid);
+		params.addAll(snos);
+		return claim(sql, params.toArray(), snos.size(), sid);
+	}//end claimSeats
+
+	private Booking claim(final String sql, final Object[] params, final int count, final int sid) throws SQLException {
+		Booking booking;
+		//milliseconds from now to bdatetime, by the database clock, for the hold
+		final long[] untilBooked = new long[1];
+		try{
+			booking = esql.inTransaction(new Ticketmaster.Work<Booking>(){
+				public Booking run() throws SQLException {
+					List<List<String>> rows = esql.executeQueryAndReturnResult(sql, params);
+					if (rows.size() < count)
+						throw new SeatsUnavailableException(String.format("Only %d of %d seats could be claimed for show %d", rows.size(), count, sid));
+					List<String> seats = new ArrayList<String>(rows.size());
+					int cost = 0;
+					for (int i = 0; i < rows.size(); ++i){
+						seats.add(rows.get(i).get(1));
+						cost += Integer.parseInt(rows.get(i).get(2));
+					}//end for
+					untilBooked[0] = Long.parseLong(rows.get(0).get(3));
+					return new Booking(Integer.parseInt(rows.get(0).get(0)), seats, cost);
+				}
+			});
+		}catch (SeatsUnavailableException e){
+			esql.seats().invalidate(sid);
+			throw e;
+		}//end try
+		esql.seats().markTaken(sid, booking.seats);
+		esql.expiry().schedule(booking.bid, untilBooked[0]);
+		AuditJournal.note("bid", booking.bid);
+		AuditJournal.note("sid", sid);
+		AuditJournal.note("seats", String.join(",", booking.seats));
+		AuditJournal.note("cost", booking.cost);
+		return booking;
+	}//end claim
+
+	/**
+	 * Returns the seats of a booking with their show and price, in one query.
+	 *
+	 * @param bid the booking
+	 * @return the seats in csid order, empty if the booking holds none
+	 * @throws java.sql.SQLException when the query fails
+	 */
+	public List<BookedSeat> bookedSeats(int bid) throws SQLException {
+		final List<BookedSeat> seats = new ArrayList<BookedSeat>();
+		esql.executeQueryForEach(
+			"SELECT b.sid, cs.sno, ss.price FROM Bookings b JOIN ShowSeats ss ON ss.bid = b.bid JOIN CinemaSeats cs ON cs.csid = ss.csid WHERE b.bid = ? ORDER BY ss.csid",
+			new Ticketmaster.RowHandler(){
+				public void row(ResultSet rs) throws SQLException {
+					seats.add(new BookedSeat(rs.getInt(1), rs.getString(2), rs.getInt(3)));
+				}
+			}, bid);
+		return seats;
+	}//end bookedSeats
+
+	/**
+	 * Moves a booking from some of its seats to free seats of the same price
+	 * in the same show, in one statement.  Either every seat is exchanged or
+	 * none is.
+	 *
+	 * @param bid the booking
+	 * @param from seat numbers the booking holds
+	 * @param to the seat number each of them is exchanged for
+	 * @throws SeatsUnavailableException when a new seat is taken, costs a
+	 * different price, or an old seat is not held by the booking
+	 * @throws java.sql.SQLException when the exchange fails
+	 */
+	public void exchange(final int bid, final List<String> from, final List<String> to) throws SQLException {
+		if (from.size() != to.size() || from.isEmpty())
+			throw new IllegalArgumentException("Expected one new seat for each old seat");
+		if (new HashSet<String>(from).size() != from.size() || new HashSet<String>(to).size() != to.size())
+			throw new IllegalArgumentException("A seat appears twice in the exchange");
+		StringBuilder pairs = new StringBuilder();
+		final List<Object> params = new ArrayList<Object>();
+		for (int i = 0; i < from.size(); ++i){
+			// typed here, as VALUES would otherwise make them text and not compare with the integer sno
+			pairs.append(i == 0 ? "(?::integer, ?::integer)" : ", (?::integer, ?::integer)");
+			params.add(from.get(i));
+			params.add(to.get(i));
+		}//end for
+		params.add(bid);
+		final String sql =
+			"WITH pairs (old_sno, new_sno) AS (VALUES " + pairs + "), " +
+			"b AS (SELECT bid, sid FROM Bookings WHERE bid = ? AND status <> 'Cancelled' FOR UPDATE), " +
+			"held AS (SELECT ss.ssid, ss.price, p.new_sno FROM b JOIN ShowSeats ss ON ss.bid = b.bid " +
+				"JOIN CinemaSeats cs ON cs.csid = ss.csid JOIN pairs p ON p.old_sno = cs.sno FOR UPDATE OF ss), " +
+			"wanted AS (SELECT ss.ssid, ss.price, cs.sno FROM b JOIN ShowSeats ss ON ss.sid = b.sid " +
+				"JOIN CinemaSeats cs ON cs.csid = ss.csid JOIN pairs p ON p.new_sno = cs.sno WHERE ss.bid IS NULL FOR UPDATE OF ss SKIP LOCKED), " +
+			"matched AS (SELECT held.ssid AS old_ssid, wanted.ssid AS new_ssid FROM held JOIN wanted ON wanted.sno = held.new_sno AND wanted.price = held.price), " +
+			"freed AS (UPDATE ShowSeats SET bid = NULL WHERE ssid IN (SELECT old_ssid FROM matched) RETURNING 1), " +
+			"taken AS (UPDATE ShowSeats ss SET bid = b.bid FROM b WHERE ss.ssid IN (SELECT new_ssid FROM matched) RETURNING 1) " +
+			"SELECT (SELECT sid FROM b), (SELECT COUNT(*) FROM freed), (SELECT COUNT(*) FROM taken)";
+		int sid;
+		try{
+			sid = esql.inTransaction(new Ticketmaster.Work<Integer>(){
+				public Integer run() throws SQLException {
+					List<String> row = esql.executeQueryAndReturnResult(sql, params.toArray()).get(0);
+					if (row.get(0) == null)
+						throw new SeatsUnavailableException("Booking " + bid + " does not exist or is cancelled");
+					if (Integer.parseInt(row.get(1)) != from.size() || Integer.parseInt(row.get(2)) != to.size())
+						throw new SeatsUnavailableException(String.format("Only %s of %d seats of booking %d could be exchanged", row.get(2), to.size(), bid));
+					return Integer.parseInt(row.get(0));
+				}
+			});
+		}catch (SeatsUnavailableException e){
+			esql.seats().invalidateAll();
+			throw e;
+		}//end try
+		esql.seats().markFree(sid, from);
+		esql.seats().markTaken(sid, to);
+		AuditJournal.note("bid", bid);
+		AuditJournal.note("from", String.join(",", from));
+		AuditJournal.note("to", String.join(",", to));
+	}//end exchange
+
+	/**
+	 * Marks a pending booking as paid and records the payment, in one
+	 * transaction.
+	 *
+	 * @param bid the booking
+	 * @param method the payment method
+	 * @param pdatetime the payment timestamp
+	 * @param amount the amount paid
+	 * @param trid the transaction id from the payment provider
+	 * @throws java.sql.SQLException when the booking is not pending or the payment fails
+	 */
+	public void pay(final int bid, final String method, final String pdatetime, final int amount, final int trid) throws SQLException {
+		ensureSequences();
+		esql.inTransaction(new Ticketmaster.Work<Void>(){
+			public Void run() throws SQLException {
+				if (esql.executeUpdate("UPDATE Bookings SET status = 'Paid' WHERE bid = ? AND status = 'Pending'", bid) == 0)
+					throw new SQLException("Booking " + bid + " is not pending");
+				esql.executeUpdate("INSERT INTO Payments (pid, bid, pmethod, pdatetime, amount, trid) VALUES (nextval('payments_pid_seq'), ?, ?, ?, ?, ?)", bid, method, pdatetime, amount, trid);
+				return null;
+			}
+		});
+		esql.expiry().cancel(bid);
+		AuditJournal.note("paid", bid);
+		AuditJournal.note("amount", amount);
+		AuditJournal.note("trid", trid);
+	}//end pay
+}//end BookingEngine
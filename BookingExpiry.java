@@ -0,0 +1,255 @@
+/*
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Cancels pending bookings whose hold has run out and frees their seats.
+ * Deadlines are kept in a hashed timing wheel: one slot per tick, and a
+ * deadline further out than one turn of the wheel waits in its slot for the
+ * right number of turns.  Scheduling and cancelling are O(1); each tick only
+ * looks at one slot.  On start the wheel is filled from the pending
+ * bookings in the database, each held until its bdatetime plus the hold
+ * time; new bookings are held the same way, by the database clock.  Expired bookings are released in small batches, and a booking that
+ * was paid in the meantime is left alone.
+ *
+ */
+
+public class BookingExpiry{
+	private static final String RELEASE =
+		"WITH expired AS (SELECT bid FROM Bookings WHERE status = 'Pending' AND bid IN (%s) FOR UPDATE), " +
+		"seats AS (UPDATE ShowSeats SET bid = NULL WHERE bid IN (SELECT bid FROM expired) RETURNING 1), " +
+		"done AS (UPDATE Bookings SET status = 'Cancelled' WHERE bid IN (SELECT bid FROM expired) RETURNING 1) " +
+		"SELECT (SELECT COUNT(*) FROM done), (SELECT COUNT(*) FROM seats)";
+	//how long a failed batch waits before it is tried again
+	private static final long RETRY_MILLIS = 5000;
+
+	private final Ticketmaster esql;
+	private final long holdMillis;
+	private final long tickMillis;
+	private final int batchSize;
+
+	//bids scheduled and not yet expired or cancelled
+	private final Set<Integer> pending = ConcurrentHashMap.newKeySet();
+	//new deadlines, moved into the wheel by the ticker thread
+	private final ConcurrentLinkedQueue<Timeout> incoming = new ConcurrentLinkedQueue<Timeout>();
+	private final List<List<Timeout>> wheel;
+	private long startNanos;
+	private long tick = 0;
+	private Thread ticker = null;
+	private volatile boolean running = false;
+
+	/**
+	 * A booking's deadline, placed in the slot it expires in.
+	 */
+	private static class Timeout{
+		final int bid;
+		final long deadlineTick;
+
+		Timeout(int bid, long deadlineTick){
+			this.bid = bid;
+			this.deadlineTick = deadlineTick;
+		}
+	}
+
+	/**
+	 * @param esql the database
+	 * @param holdMillis how long a booking may stay pending
+	 * @param tickMillis the resolution of the wheel
+	 * @param slots the number of slots in the wheel
+	 * @param batchSize the most bookings released by one statement
+	 */
+	public BookingExpiry(Ticketmaster esql, long holdMillis, long tickMillis, int slots, int batchSize){
+		this.esql = esql;
+		this.holdMillis = holdMillis;
+		this.tickMillis = tickMillis;
+		this.batchSize = batchSize;
+		this.wheel = new ArrayList<List<Timeout>>(slots);
+		for (int i = 0; i < slots; ++i)
+			wheel.add(new ArrayList<Timeout>());
+	}
+
+	/**
+	 * Loads the pending bookings and starts the ticker thread.  New bookings
+	 * are accepted before the load, so one claimed while it runs is not
+	 * missed; a booking both loaded and scheduled is released once.
+	 *
+	 * @throws java.sql.SQLException when the pending bookings cannot be read
+	 */
+	public synchronized void start() throws SQLException {
+		if (running)
+			return;
+		startNanos = System.nanoTime();
+		running = true;
+		int loaded;
+		try{
+			loaded = esql.executeQueryForEach("SELECT bid, " + untilBooked("bdatetime") + " FROM Bookings WHERE status = 'Pending'",
+				new Ticketmaster.RowHandler(){
+					public void row(ResultSet rs) throws SQLException {
+						schedule(rs.getInt(1), rs.getLong(2));
+					}
+				});
+		}catch (SQLException e){
+			running = false;
+			pending.clear();
+			incoming.clear();
+			throw e;
+		}//end try
+		System.out.println("Tracking " + loaded + " pending booking(s) for expiry");
+		ticker = new Thread(new Runnable(){
+			public void run(){
+				loop();
+			}
+		}, "booking-expiry");
+		ticker.setDaemon(true);
+		ticker.start();
+	}//end start
+
+	/**
+	 * Stops the ticker thread.  Bookings still pending are picked up again by
+	 * the next start().
+	 */
+	public synchronized void stop(){
+		running = false;
+		if (ticker != null){
+			ticker.interrupt();
+			ticker = null;
+		}//end if
+	}
+
+	/**
+	 * Starts the hold of a booking, which runs out holdMillis after its
+	 * bdatetime, as for the bookings loaded by start().  Does nothing unless
+	 * the service is running.
+	 *
+	 * @param bid the booking
+	 * @param untilBooked milliseconds from now to the booking's bdatetime,
+	 * as selected by untilBooked(); negative once it has passed
+	 */
+	public void schedule(int bid, long untilBooked){
+		if (running)
+			add(bid, Math.max(0, untilBooked + holdMillis));
+	}
+
+	/**
+	 * @return SQL for the milliseconds from now to a bdatetime column, by
+	 * the database clock
+	 */
+	static String untilBooked(String column){
+		return "(EXTRACT(EPOCH FROM " + column + " - LOCALTIMESTAMP) * 1000)::bigint";
+	}
+
+	private void add(int bid, long delayMillis){
+		long now = (System.nanoTime() - startNanos) / 1000000;
+		pending.add(bid);
+		incoming.add(new Timeout(bid, (now + delayMillis + tickMillis - 1) / tickMillis));
+	}
+
+	/**
+	 * Stops tracking a booking, for instance because it was paid.
+	 *
+	 * @param bid the booking
+	 */
+	public void cancel(int bid){
+		pending.remove(bid);
+	}
+
+	/**
+	 * @return the number of bookings being tracked
+	 */
+	public int size(){
+		return pending.size();
+	}
+
+	private void loop(){
+		List<Integer> expired = new ArrayList<Integer>();
+		while (running){
+			long sleep = (tick + 1) * tickMillis - (System.nanoTime() - startNanos) / 1000000;
+			if (sleep > 0){
+				try{
+					Thread.sleep(sleep);
+				}catch (InterruptedException e){
+					return;
+				}//end try
+			}//end if
+			++tick;
+			Timeout t;
+			while ((t = incoming.poll()) != null)
+				wheel.get((int) (Math.max(t.deadlineTick, tick) % wheel.size())).add(t);
+
+			List<Timeout> slot = wheel.get((int) (tick % wheel.size()));
+			for (int i = slot.size() - 1; i >= 0; --i){
+				t = slot.get(i);
+				if (t.deadlineTick > tick)
+					continue;
+				slot.set(i, slot.get(slot.size() - 1));
+				slot.remove(slot.size() - 1);
+				if (pending.remove(t.bid))
+					expired.add(t.bid);
+			}//end for
+			for (int from = 0; from < expired.size(); from += batchSize){
+				List<Integer> batch = expired.subList(from, Math.min(from + batchSize, expired.size()));
+				try{
+					release(batch);
+				}catch (RuntimeException e){
+					// keep the ticker alive; the batch is tried again later
+					System.err.println("Could not release expired bookings " + batch + ": " + e);
+					e.printStackTrace();
+					for (int bid : batch)
+						add(bid, RETRY_MILLIS);
+				}//end try
+			}//end for
+			expired.clear();
+		}//end while
+	}//end loop
+
+	/**
+	 * Cancels one batch of expired bookings that are still pending.  If the
+	 * statement fails the batch is scheduled again.
+	 */
+	private void release(List<Integer> bids){
+		long start = System.nanoTime();
+		try{
+			List<String> counts = esql.executeWriteQuery(
+				String.format(RELEASE, Ticketmaster.placeholders(bids.size())), bids.toArray()).get(0);
+			if (Long.parseLong(counts.get(1)) > 0)
+				esql.seats().invalidateAll();
+			esql.metrics().record("expiry.release", start, Long.parseLong(counts.get(0)), true);
+			esql.journal().record("expiry.release", journalIds(bids, counts.get(0), counts.get(1)), start, true, null);
+		}catch (SQLException e){
+			esql.metrics().record("expiry.release", start, 0, false);
+			esql.journal().record("expiry.release", journalIds(bids, null, null), start, false, e.toString());
+			System.err.println("Could not release expired bookings " + bids + ": " + e.getMessage());
+			for (int bid : bids)
+				add(bid, RETRY_MILLIS);
+		}//end try
+	}//end release
+
+	private static Map<String, String> journalIds(List<Integer> bids, String cancelled, String seats){
+		Map<String, String> ids = new LinkedHashMap<String, String>();
+		StringBuilder sb = new StringBuilder();
+		for (int bid : bids)
+			sb.append(sb.length() > 0 ? "," : "").append(bid);
+		ids.put("bids", sb.toString());
+		if (cancelled != null){
+			ids.put("cancelled", cancelled);
+			ids.put("seats", seats);
+		}//end if
+		return ids;
+	}
+}//end BookingExpiry
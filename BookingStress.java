@@ -0,0 +1,108 @@
+/*
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Multi-threaded stress check for BookingEngine.  Many buyers book the same
+ * show at once until it sells out, then the seat map is checked for double
+ * bookings: every claimed seat must belong to exactly one booking and every
+ * booking must hold exactly as many seats as it asked for.  The bookings made
+ * by the run are removed again at the end.
+ *
+ * Run it against a scratch database:
+ *   java -cp .:postgresql.jar BookingStress <dbname> <port> <user> <sid> <email> [threads] [seatsPerBooking]
+ *
+ */
+
+public class BookingStress{
+
+	public static void main (String[] args) throws Exception {
+		if (args.length < 5) {
+			System.err.println (
+				"Usage: " + "java [-classpath <classpath>] " + BookingStress.class.getName () +
+					" <dbname> <port> <user> <sid> <email> [threads] [seatsPerBooking]");
+			return;
+		}//end if
+		final int sid = Integer.parseInt(args[3]);
+		final String email = args[4];
+		final int threads = args.length > 5 ? Integer.parseInt(args[5]) : 200;
+		final int perBooking = args.length > 6 ? Integer.parseInt(args[6]) : 2;
+		System.setProperty("ticketmaster.poolSize", System.getProperty("ticketmaster.poolSize", "32"));
+
+		final Ticketmaster esql = new Ticketmaster(args[0], args[1], args[2], "");
+		final List<Integer> bids = Collections.synchronizedList(new ArrayList<Integer>());
+		final AtomicInteger claimed = new AtomicInteger();
+		final AtomicInteger soldOut = new AtomicInteger();
+		final AtomicInteger errors = new AtomicInteger();
+		final CountDownLatch start = new CountDownLatch(1);
+		final CountDownLatch done = new CountDownLatch(threads);
+		int freeBefore = Integer.parseInt(esql.executeQueryAndReturnResult("SELECT COUNT(*) FROM ShowSeats WHERE sid = ? AND bid IS NULL", sid).get(0).get(0));
+
+		for (int t = 0; t < threads; ++t){
+			new Thread(new Runnable(){
+				public void run(){
+					try{
+						start.await();
+						while (true){
+							try{
+								BookingEngine.Booking b = esql.bookings().claimAny(sid, email, "2020-01-01 00:00:00", perBooking);
+								bids.add(b.bid);
+								claimed.addAndGet(b.seats.size());
+							}catch (BookingEngine.SeatsUnavailableException e){
+								soldOut.incrementAndGet();
+								return;
+							}//end try
+						}//end while
+					}catch (Exception e){
+						errors.incrementAndGet();
+						e.printStackTrace();
+					}finally{
+						done.countDown();
+					}//end try
+				}
+			}).start();
+		}//end for
+
+		long began = System.nanoTime();
+		start.countDown();
+		done.await();
+		double secs = (System.nanoTime() - began) / 1e9;
+
+		int freeAfter = Integer.parseInt(esql.executeQueryAndReturnResult("SELECT COUNT(*) FROM ShowSeats WHERE sid = ? AND bid IS NULL", sid).get(0).get(0));
+		int mismatched = Integer.parseInt(esql.executeQueryAndReturnResult(
+			"SELECT COUNT(*) FROM Bookings b WHERE b.sid = ? AND b.seats <> (SELECT COUNT(*) FROM ShowSeats ss WHERE ss.bid = b.bid)", sid).get(0).get(0));
+
+		System.out.println(String.format("threads=%d bookings=%d seats=%d soldOut=%d errors=%d time=%.2fs (%.0f bookings/s)",
+			threads, bids.size(), claimed.get(), soldOut.get(), errors.get(), secs, bids.size() / secs));
+		boolean ok = errors.get() == 0 && mismatched == 0 && freeBefore - freeAfter == claimed.get() && freeAfter < perBooking;
+		System.out.println(String.format("free before=%d after=%d, bookings with wrong seat count=%d", freeBefore, freeAfter, mismatched));
+
+		// give the seats back and remove the bookings made by this run
+		for (int i = 0; i < bids.size(); ++i){
+			final int bid = bids.get(i);
+			esql.inTransaction(new Ticketmaster.Work<Void>(){
+				public Void run() throws SQLException {
+					esql.executeUpdate("UPDATE ShowSeats SET bid = NULL WHERE bid = ?", bid);
+					esql.executeUpdate("DELETE FROM Bookings WHERE bid = ?", bid);
+					return null;
+				}
+			});
+		}//end for
+		esql.cleanup();
+		System.out.println(ok ? "PASSED" : "FAILED");
+		System.exit(ok ? 0 : 1);
+	}//end main
+}//end BookingStress
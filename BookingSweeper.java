@@ -0,0 +1,193 @@
+/*
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * Batch jobs that cancel pending bookings and delete cancelled ones in
+ * chunks, so large tables are never locked or rewritten in one statement.
+ * Each chunk takes the next chunkSize bookings in bid order after the last
+ * one done, and is a single statement committed on its own.  The last bid
+ * done is kept in a checkpoint file, so a job that is stopped picks up where
+ * it left off when it is run again with the same age filter.  A job holds
+ * a lock on its .lock file while it runs, so a second run of the same job,
+ * in this process or another, is refused instead of sharing the checkpoint.
+ *
+ */
+
+public class BookingSweeper{
+	private static final String CANCEL_PENDING =
+		"WITH chunk AS (SELECT bid FROM Bookings WHERE status = 'Pending' AND bid > ?%s ORDER BY bid LIMIT ? FOR UPDATE), " +
+		"seats AS (UPDATE ShowSeats SET bid = NULL WHERE bid IN (SELECT bid FROM chunk) RETURNING 1), " +
+		"done AS (UPDATE Bookings SET status = 'Cancelled' WHERE bid IN (SELECT bid FROM chunk) RETURNING 1) " +
+		"SELECT (SELECT MAX(bid) FROM chunk), (SELECT COUNT(*) FROM done), (SELECT COUNT(*) FROM seats)";
+	private static final String CLEAR_CANCELLED =
+		"WITH chunk AS (SELECT bid FROM Bookings WHERE status = 'Cancelled' AND bid > ?%s ORDER BY bid LIMIT ? FOR UPDATE), " +
+		"done AS (DELETE FROM Bookings WHERE bid IN (SELECT bid FROM chunk) RETURNING 1) " +
+		"SELECT (SELECT MAX(bid) FROM chunk), (SELECT COUNT(*) FROM done), 0";
+
+	/**
+	 * Thrown when the job is already running.
+	 */
+	public static class AlreadyRunningException extends IOException{
+		private static final long serialVersionUID = 1L;
+
+		public AlreadyRunningException(String job){
+			super(job + " is already running");
+		}
+	}
+
+	private final Ticketmaster esql;
+	private final int chunkSize;
+	private final File checkpointDir;
+
+	public BookingSweeper(Ticketmaster esql, int chunkSize, String checkpointDir){
+		this.esql = esql;
+		this.chunkSize = chunkSize;
+		this.checkpointDir = new File(checkpointDir);
+	}
+
+	/**
+	 * Cancels pending bookings and frees their seats.
+	 *
+	 * @param olderThan only bookings made before this time, or null for all
+	 * @return the number of bookings cancelled
+	 * @throws java.sql.SQLException when a chunk fails; earlier chunks stay committed
+	 * @throws java.io.IOException when the checkpoint cannot be written
+	 * @throws AlreadyRunningException when another run of the job holds the lock
+	 */
+	public long cancelPending(String olderThan) throws SQLException, IOException {
+		return sweep("cancel-pending", CANCEL_PENDING, "Cancelled", olderThan);
+	}
+
+	/**
+	 * Deletes cancelled bookings.
+	 *
+	 * @param olderThan only bookings made before this time, or null for all
+	 * @return the number of bookings deleted
+	 * @throws java.sql.SQLException when a chunk fails; earlier chunks stay committed
+	 * @throws java.io.IOException when the checkpoint cannot be written
+	 * @throws AlreadyRunningException when another run of the job holds the lock
+	 */
+	public long clearCancelled(String olderThan) throws SQLException, IOException {
+		return sweep("clear-cancelled", CLEAR_CANCELLED, "Deleted", olderThan);
+	}
+
+	private long sweep(String job, String template, String verb, String olderThan) throws SQLException, IOException {
+		FileChannel channel = FileChannel.open(new File(checkpointDir, job + ".lock").toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+		try{
+			FileLock lock;
+			try{
+				lock = channel.tryLock();
+			}catch (OverlappingFileLockException e){
+				lock = null;
+			}//end try
+			if (lock == null)
+				throw new AlreadyRunningException(job);
+			// closing the channel releases the lock
+			return sweep(template, verb, olderThan, new File(checkpointDir, job + ".checkpoint"));
+		}finally{
+			channel.close();
+		}//end try
+	}
+
+	private long sweep(String template, String verb, String olderThan, File checkpoint) throws SQLException, IOException {
+		String sql = String.format(template, olderThan == null ? "" : " AND bdatetime < ?");
+		long after = resume(checkpoint, olderThan);
+		long bookings = 0;
+		long seats = 0;
+		long start = System.nanoTime();
+		long reported = start;
+		while (true){
+			Object[] params = olderThan == null
+				? new Object[]{ after, chunkSize }
+				: new Object[]{ after, olderThan, chunkSize };
+			List<String> row = esql.executeWriteQuery(sql, params).get(0);
+			if (row.get(0) == null)
+				break;
+			after = Long.parseLong(row.get(0));
+			bookings += Long.parseLong(row.get(1));
+			long freed = Long.parseLong(row.get(2));
+			if (freed > 0){
+				seats += freed;
+				esql.seats().invalidateAll();
+			}//end if
+			save(checkpoint, after, olderThan);
+			if (System.nanoTime() - reported >= 1000000000L){
+				progress(verb, bookings, seats, start);
+				reported = System.nanoTime();
+			}//end if
+		}//end while
+		checkpoint.delete();
+		progress(verb, bookings, seats, start);
+		AuditJournal.note(verb.toLowerCase(), bookings);
+		AuditJournal.note("seats", seats);
+		return bookings;
+	}//end sweep
+
+	/**
+	 * @return the last bid done by an interrupted run with the same filter,
+	 * or Long.MIN_VALUE to start from the beginning
+	 */
+	private static long resume(File checkpoint, String olderThan) throws IOException {
+		if (!checkpoint.exists())
+			return Long.MIN_VALUE;
+		Properties p = new Properties();
+		InputStream in = new FileInputStream(checkpoint);
+		try{
+			p.load(in);
+		}finally{
+			in.close();
+		}//end try
+		if (!String.valueOf(olderThan).equals(p.getProperty("olderThan")))
+			return Long.MIN_VALUE;
+		long after = Long.parseLong(p.getProperty("after"));
+		System.out.println("Resuming after booking " + after + " from " + checkpoint);
+		return after;
+	}
+
+	/**
+	 * Writes the checkpoint to a temporary file and renames it over the old
+	 * one, so a crash never leaves a half written checkpoint.
+	 */
+	private static void save(File checkpoint, long after, String olderThan) throws IOException {
+		Properties p = new Properties();
+		p.setProperty("after", Long.toString(after));
+		p.setProperty("olderThan", String.valueOf(olderThan));
+		File tmp = new File(checkpoint.getPath() + ".tmp");
+		OutputStream out = new FileOutputStream(tmp);
+		try{
+			p.store(out, null);
+		}finally{
+			out.close();
+		}//end try
+		Files.move(tmp.toPath(), checkpoint.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	private static void progress(String verb, long bookings, long seats, long start){
+		double secs = (System.nanoTime() - start) / 1e9;
+		System.out.println(String.format("%s %d booking(s)%s in %.2f s (%.0f rows/s)", verb, bookings,
+			seats > 0 ? ", freed " + seats + " seat(s)" : "", secs, secs > 0 ? (bookings + seats) / secs : 0.0));
+	}
+}//end BookingSweeper
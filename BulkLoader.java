@@ -0,0 +1,257 @@
+/*
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.lang.reflect.Method;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Bulk loading for onboarding data.  CSV files with a header line naming the
+ * columns are loaded either with JDBC batches (one transaction per batch) or
+ * with the driver's COPY FROM STDIN support.  Seat maps for new shows are
+ * generated from CinemaSeats with a single INSERT ... SELECT.
+ *
+ */
+
+public class BulkLoader{
+	private final Ticketmaster esql;
+	private final int batchSize;
+
+	public BulkLoader(Ticketmaster esql, int batchSize){
+		this.esql = esql;
+		this.batchSize = batchSize;
+	}
+
+	/**
+	 * Loads a CSV file into a table with INSERT batches.  The first line of
+	 * the file names the target columns.  Empty fields are loaded as NULL.
+	 *
+	 * @param table the target table
+	 * @param file the CSV file
+	 * @return the number of rows loaded
+	 * @throws java.sql.SQLException when a batch fails; earlier batches stay committed
+	 * @throws java.io.IOException when the file cannot be read
+	 */
+	public long loadBatched(String table, String file) throws SQLException, IOException {
+		BufferedReader reader = open(file);
+		try{
+			List<String> header = readRecord(reader);
+			if (header == null)
+				return 0;
+			final String sql = "INSERT INTO " + identifier(table) + " (" + columnList(header) + ") VALUES (" + Ticketmaster.placeholders(header.size()) + ")";
+			final List<Object[]> batch = new ArrayList<Object[]>(batchSize);
+			long loaded = 0;
+			long start = System.nanoTime();
+			List<String> record;
+			while ((record = readRecord(reader)) != null){
+				if (record.size() != header.size())
+					throw new SQLException("Line " + (loaded + 2) + " of " + file + " has " + record.size() + " fields, expected " + header.size());
+				Object[] row = new Object[record.size()];
+				for (int i = 0; i < row.length; ++i)
+					row[i] = record.get(i).length() == 0 ? null : record.get(i);
+				batch.add(row);
+				if (batch.size() == batchSize){
+					loaded += flush(sql, batch);
+					progress(table, loaded, start);
+				}//end if
+			}//end while
+			if (!batch.isEmpty())
+				loaded += flush(sql, batch);
+			progress(table, loaded, start);
+			return loaded;
+		}finally{
+			reader.close();
+		}//end try
+	}//end loadBatched
+
+	private int flush(final String sql, final List<Object[]> batch) throws SQLException {
+		esql.inTransaction(new Ticketmaster.Work<Void>(){
+			public Void run() throws SQLException {
+				esql.executeBatch(sql, batch);
+				return null;
+			}
+		});
+		int n = batch.size();
+		batch.clear();
+		return n;
+	}
+
+	/**
+	 * Loads a CSV file into a table with COPY FROM STDIN.  The first line of
+	 * the file names the target columns.  This is the fastest path, but the
+	 * whole file is one transaction.
+	 *
+	 * @param table the target table
+	 * @param file the CSV file
+	 * @return the number of rows loaded
+	 * @throws java.sql.SQLException when the copy fails; nothing is loaded
+	 * @throws java.io.IOException when the file cannot be read
+	 */
+	public long loadCopy(String table, final String file) throws SQLException, IOException {
+		BufferedReader reader = open(file);
+		List<String> header;
+		try{
+			header = readRecord(reader);
+		}finally{
+			reader.close();
+		}//end try
+		if (header == null)
+			return 0;
+		final String sql = "COPY " + identifier(table) + " (" + columnList(header) + ") FROM STDIN WITH (FORMAT csv, HEADER true)";
+		long start = System.nanoTime();
+		long loaded = esql.inTransaction(new Ticketmaster.Work<Long>(){
+			public Long run() throws SQLException {
+				Reader data = null;
+				try{
+					data = open(file);
+					return copyIn(esql.boundConnection(), sql, data);
+				}catch (IOException e){
+					throw new SQLException("Unable to read " + file + ": " + e.getMessage(), e);
+				}finally{
+					try{
+						if (data != null)
+							data.close();
+					}catch (IOException e){
+						// ignored.
+					}//end try
+				}//end try
+			}
+		});
+		progress(table, loaded, start);
+		return loaded;
+	}//end loadCopy
+
+	/**
+	 * Calls the PostgreSQL driver's CopyManager.copyIn.  The driver is only
+	 * on the runtime class path, so it is reached by reflection.
+	 */
+	private static long copyIn(Connection connection, String sql, Reader data) throws SQLException {
+		try{
+			Class<?> pgConnection = Class.forName("org.postgresql.PGConnection");
+			Object copyApi = pgConnection.getMethod("getCopyAPI").invoke(connection.unwrap(pgConnection));
+			Method copyIn = copyApi.getClass().getMethod("copyIn", String.class, Reader.class);
+			return ((Long) copyIn.invoke(copyApi, sql, data)).longValue();
+		}catch (java.lang.reflect.InvocationTargetException e){
+			if (e.getCause() instanceof SQLException)
+				throw (SQLException) e.getCause();
+			throw new SQLException("COPY failed: " + e.getCause(), e.getCause());
+		}catch (ReflectiveOperationException e){
+			throw new SQLException("COPY needs the PostgreSQL JDBC driver: " + e, e);
+		}//end try
+	}//end copyIn
+
+	/**
+	 * Creates the ShowSeats rows of shows that do not have a seat map yet,
+	 * one per CinemaSeats row of the theater the show plays in.
+	 *
+	 * @param sids the shows to generate for, or empty for every show without seats
+	 * @param price the price given to every generated seat
+	 * @return the number of ShowSeats rows created
+	 * @throws java.sql.SQLException when the seat maps cannot be created
+	 */
+	public int generateSeatMaps(List<String> sids, int price) throws SQLException {
+		esql.ensureSequence("showseats_ssid_seq", "ShowSeats", "ssid");
+		String sql =
+			"INSERT INTO ShowSeats (ssid, sid, csid, bid, price) " +
+			"SELECT nextval('showseats_ssid_seq'), P.sid, C.csid, NULL, ? FROM Plays P JOIN CinemaSeats C ON C.tid = P.tid " +
+			"WHERE NOT EXISTS (SELECT 1 FROM ShowSeats S WHERE S.sid = P.sid)" +
+			(sids.isEmpty() ? "" : " AND P.sid IN (" + Ticketmaster.placeholders(sids.size()) + ")") +
+			" ORDER BY P.sid, C.csid";
+		List<Object> params = new ArrayList<Object>();
+		params.add(price);
+		params.addAll(sids);
+		long start = System.nanoTime();
+		int created = esql.executeUpdate(sql, params.toArray());
+		esql.seats().invalidateAll();
+		progress("ShowSeats", created, start);
+		return created;
+	}//end generateSeatMaps
+
+	private static void progress(String table, long rows, long start){
+		double secs = (System.nanoTime() - start) / 1e9;
+		System.out.println(String.format("%s: %d rows in %.2f s (%.0f rows/s)", table, rows, secs, secs > 0 ? rows / secs : 0.0));
+	}
+
+	private static BufferedReader open(String file) throws IOException {
+		return new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"), 1 << 16);
+	}
+
+	private static String identifier(String name) throws SQLException {
+		if (!name.matches("[A-Za-z_][A-Za-z0-9_]*"))
+			throw new SQLException("Invalid table or column name: " + name);
+		return name;
+	}
+
+	private static String columnList(List<String> header) throws SQLException {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < header.size(); ++i){
+			if (i > 0)
+				sb.append(", ");
+			sb.append(identifier(header.get(i).trim()));
+		}//end for
+		return sb.toString();
+	}
+
+	/**
+	 * Reads one CSV record, honouring quoted fields that contain commas,
+	 * doubled quotes or line breaks.
+	 *
+	 * @return the fields, or null at end of file
+	 */
+	static List<String> readRecord(BufferedReader reader) throws IOException {
+		String line = reader.readLine();
+		if (line == null)
+			return null;
+		List<String> fields = new ArrayList<String>();
+		StringBuilder field = new StringBuilder();
+		boolean quoted = false;
+		int i = 0;
+		while (true){
+			if (i == line.length()){
+				if (!quoted)
+					break;
+				// a quoted field continues on the next line
+				line = reader.readLine();
+				if (line == null)
+					throw new IOException("Unterminated quoted field");
+				field.append('\n');
+				i = 0;
+				continue;
+			}//end if
+			char c = line.charAt(i++);
+			if (quoted){
+				if (c == '"' && i < line.length() && line.charAt(i) == '"'){
+					field.append('"');
+					++i;
+				} else if (c == '"'){
+					quoted = false;
+				} else {
+					field.append(c);
+				}//end if
+			} else if (c == '"'){
+				quoted = true;
+			} else if (c == ','){
+				fields.add(field.toString());
+				field.setLength(0);
+			} else {
+				field.append(c);
+			}//end if
+		}//end while
+		fields.add(field.toString());
+		return fields;
+	}//end readRecord
+}//end BulkLoader
@@ -0,0 +1,141 @@
+/*
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Size-bounded read-through cache for catalog queries (movies, shows,
+ * theaters, cinemas).  Entries expire after a fixed time to live and the
+ * least recently used entry is evicted once the cache is full.  Write paths
+ * that change the catalog call invalidateAll().
+ *
+ */
+
+public class CatalogCache{
+	private final int maxEntries;
+	private final long ttlMillis;
+	private final LinkedHashMap<String, Result> entries;
+	private long hits = 0;
+	private long misses = 0;
+	private long evictions = 0;
+	private long expirations = 0;
+	private long invalidations = 0;
+
+	/**
+	 * A cached query result: the column names and the rows as strings.
+	 */
+	public static class Result{
+		public final List<String> columns;
+		public final List<List<String>> rows;
+		final long expiresAt;
+
+		Result(List<String> columns, List<List<String>> rows, long expiresAt){
+			this.columns = columns;
+			this.rows = rows;
+			this.expiresAt = expiresAt;
+		}
+	}
+
+	public CatalogCache(int maxEntries, long ttlMillis){
+		this.maxEntries = maxEntries;
+		this.ttlMillis = ttlMillis;
+		this.entries = new LinkedHashMap<String, Result>(16, 0.75f, true){
+			protected boolean removeEldestEntry(Map.Entry<String, Result> eldest){
+				if (size() <= CatalogCache.this.maxEntries)
+					return false;
+				++evictions;
+				return true;
+			}
+		};
+	}
+
+	/**
+	 * Builds the cache key for a query template and its bind values.
+	 */
+	public static String key(String query, Object[] params){
+		return query + '\u0000' + Arrays.deepToString(params);
+	}
+
+	/**
+	 * @return the live entry for key, or null on a miss
+	 */
+	public synchronized Result get(String key){
+		Result r = entries.get(key);
+		if (r != null && r.expiresAt < System.currentTimeMillis()){
+			entries.remove(key);
+			++expirations;
+			r = null;
+		}//end if
+		if (r == null)
+			++misses;
+		else
+			++hits;
+		return r;
+	}//end get
+
+	/**
+	 * @return a stamp to take before loading a result and hand to put(), so
+	 * a load that raced with invalidateAll() is not cached
+	 */
+	public synchronized long generation(){
+		return invalidations;
+	}
+
+	/**
+	 * Stores a freshly loaded result, unless the cache was invalidated since
+	 * the load began.
+	 *
+	 * @param generation the value of generation() before the load
+	 * @return the result, cached or not
+	 */
+	public synchronized Result put(String key, long generation, List<String> columns, List<List<String>> rows){
+		Result r = new Result(columns, rows, System.currentTimeMillis() + ttlMillis);
+		if (generation == invalidations)
+			entries.put(key, r);
+		return r;
+	}
+
+	/**
+	 * Drops every entry.  Called after any change to movies, shows, plays or
+	 * theaters.
+	 */
+	public synchronized void invalidateAll(){
+		entries.clear();
+		++invalidations;
+	}
+
+	public synchronized long hits(){
+		return hits;
+	}
+
+	public synchronized long misses(){
+		return misses;
+	}
+
+	public synchronized long evictions(){
+		return evictions;
+	}
+
+	public synchronized int size(){
+		return entries.size();
+	}
+
+	/**
+	 * @return a one line summary of the cache counters
+	 */
+	public synchronized String stats(){
+		long lookups = hits + misses;
+		return String.format("entries=%d hits=%d misses=%d hitRate=%.1f%% evictions=%d expirations=%d invalidations=%d",
+			entries.size(), hits, misses, lookups == 0 ? 0.0 : 100.0 * hits / lookups, evictions, expirations, invalidations);
+	}
+}//end CatalogCache
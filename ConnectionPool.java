@@ -0,0 +1,347 @@
+/*
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.DriverManager;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.Properties;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A bounded pool of physical connections to the database.  Every pooled
+ * connection keeps its own LRU cache of prepared statements keyed by SQL
+ * text, so a query template is parsed and planned by the server only once
+ * per connection instead of once per call.
+ *
+ */
+
+public class ConnectionPool{
+	private final String url;
+	private final Properties props;
+	private final int maxSize;
+	private final int statementCacheSize;
+	private final long borrowTimeoutMillis;
+	private final BlockingQueue<PooledConnection> idle;
+	private final AtomicInteger created = new AtomicInteger();
+	private volatile boolean closed = false;
+
+	/**
+	 * Creates an empty pool.  Physical connections are opened on demand, up
+	 * to maxSize of them.
+	 *
+	 * @param url the JDBC connection URL
+	 * @param user the database user
+	 * @param passwd the database password
+	 * @param maxSize the maximum number of physical connections
+	 * @param statementCacheSize prepared statements cached per connection
+	 * @param borrowTimeoutMillis how long borrow() waits for a free connection
+	 */
+	public ConnectionPool(String url, String user, String passwd, int maxSize, int statementCacheSize, long borrowTimeoutMillis){
+		this.url = url;
+		this.maxSize = maxSize;
+		this.statementCacheSize = statementCacheSize;
+		this.borrowTimeoutMillis = borrowTimeoutMillis;
+		this.idle = new ArrayBlockingQueue<PooledConnection>(maxSize);
+		this.props = new Properties();
+		this.props.setProperty("user", user);
+		this.props.setProperty("password", passwd);
+		// use a server-side prepared statement from the first execution on
+		this.props.setProperty("prepareThreshold", "1");
+		// let the server infer parameter types, as the old quoted literals did
+		this.props.setProperty("stringtype", "unspecified");
+		// send batched INSERTs as multi-row INSERTs
+		this.props.setProperty("reWriteBatchedInserts", "true");
+	}//end ConnectionPool
+
+	/**
+	 * Takes a connection out of the pool, opening a new one if the pool is
+	 * not yet full.  Every borrowed connection must be handed back with
+	 * release().
+	 *
+	 * @return a connection with autocommit enabled
+	 * @throws java.sql.SQLException when no connection became free in time
+	 */
+	public PooledConnection borrow() throws SQLException {
+		if (closed)
+			throw new SQLException("Connection pool is closed");
+		PooledConnection pc = idle.poll();
+		if (pc != null)
+			return pc;
+		pc = tryCreate();
+		if (pc != null)
+			return pc;
+		try{
+			pc = idle.poll(borrowTimeoutMillis, TimeUnit.MILLISECONDS);
+		}catch (InterruptedException e){
+			Thread.currentThread().interrupt();
+			throw new SQLException("Interrupted while waiting for a connection");
+		}//end try
+		if (pc == null)
+			throw new SQLException("Timed out after " + borrowTimeoutMillis + " ms waiting for a connection");
+		return pc;
+	}//end borrow
+
+	/**
+	 * Hands a connection back to the pool.  Broken connections are closed
+	 * and their slot freed for a new one.
+	 *
+	 * @param pc the connection obtained from borrow()
+	 */
+	public void release(PooledConnection pc){
+		if (pc == null)
+			return;
+		try{
+			if (!pc.broken && !pc.connection.getAutoCommit()){
+				pc.connection.rollback();
+				pc.connection.setAutoCommit(true);
+			}//end if
+		}catch (SQLException e){
+			pc.broken = true;
+		}//end try
+		if (closed || pc.broken || !idle.offer(pc)){
+			pc.close();
+			created.decrementAndGet();
+		}//end if
+	}//end release
+
+	/**
+	 * @return the number of physical connections currently open
+	 */
+	public int size(){
+		return created.get();
+	}
+
+	/**
+	 * @return the maximum number of physical connections
+	 */
+	public int maxSize(){
+		return maxSize;
+	}
+
+	/**
+	 * Closes every idle connection.  Connections still borrowed are closed
+	 * when they are released.
+	 */
+	public void close(){
+		closed = true;
+		PooledConnection pc;
+		while ((pc = idle.poll()) != null){
+			pc.close();
+			created.decrementAndGet();
+		}//end while
+	}//end close
+
+	/**
+	 * Opens up to count new connections in parallel and prepares the given
+	 * statements on each, so the first requests find connections open and
+	 * their statements parsed by the server.  Opening a connection is
+	 * retried with exponential backoff, for a server that is still starting.
+	 *
+	 * @param count the connections to open
+	 * @param sqls the statements to prepare on each connection; any that
+	 * fail to prepare are skipped
+	 * @param retries how often opening a connection is retried
+	 * @param backoffMillis the wait before the first retry, doubled after each
+	 * @return the number of connections opened
+	 * @throws java.sql.SQLException the last error, when no connection could be opened
+	 */
+	public int warmUp(int count, final List<String> sqls, final int retries, final long backoffMillis) throws SQLException {
+		final List<PooledConnection> opened = new ArrayList<PooledConnection>();
+		final SQLException[] error = new SQLException[1];
+		List<Thread> threads = new ArrayList<Thread>();
+		for (int i = 0; i < count; ++i){
+			Thread t = new Thread(new Runnable(){
+				public void run(){
+					try{
+						PooledConnection pc = createWithRetry(retries, backoffMillis);
+						if (pc == null)
+							return;
+						for (String sql : sqls){
+							try{
+								// describing the statement makes the server parse it now
+								pc.prepare(sql).getParameterMetaData();
+							}catch (SQLException e){
+								pc.checkBroken(e);
+							}//end try
+						}//end for
+						synchronized (opened){
+							opened.add(pc);
+						}
+					}catch (SQLException e){
+						synchronized (opened){
+							error[0] = e;
+						}
+					}//end try
+				}
+			}, "pool-warmup-" + i);
+			t.start();
+			threads.add(t);
+		}//end for
+		for (Thread t : threads){
+			try{
+				t.join();
+			}catch (InterruptedException e){
+				Thread.currentThread().interrupt();
+				throw new SQLException("Interrupted while warming up the pool");
+			}//end try
+		}//end for
+		synchronized (opened){
+			for (PooledConnection pc : opened)
+				release(pc);
+			if (opened.isEmpty() && error[0] != null)
+				throw error[0];
+			return opened.size();
+		}
+	}//end warmUp
+
+	/**
+	 * @return a new connection, or null if the pool is already full
+	 */
+	private PooledConnection createWithRetry(int retries, long backoffMillis) throws SQLException {
+		for (int attempt = 0; ; ++attempt){
+			try{
+				return tryCreate();
+			}catch (SQLException e){
+				if (attempt >= retries || closed)
+					throw e;
+				// full jitter, so restarting instances do not reconnect in step
+				long wait = (long) (Math.random() * Math.min(30000L, backoffMillis << attempt));
+				System.err.println(String.format("Could not connect (%s), retrying in %d ms", e.getMessage(), wait));
+				try{
+					Thread.sleep(wait);
+				}catch (InterruptedException ie){
+					Thread.currentThread().interrupt();
+					throw e;
+				}//end try
+			}//end try
+		}//end for
+	}//end createWithRetry
+
+	/**
+	 * @return the SQL templates cached by the idle connections, most
+	 * recently used last
+	 */
+	public List<String> templates(){
+		Set<String> sqls = new LinkedHashSet<String>();
+		for (PooledConnection pc : idle)
+			sqls.addAll(pc.statements.keySet());
+		return new ArrayList<String>(sqls);
+	}
+
+	private PooledConnection tryCreate() throws SQLException {
+		while (true){
+			int n = created.get();
+			if (n >= maxSize)
+				return null;
+			if (created.compareAndSet(n, n + 1))
+				break;
+		}//end while
+		try{
+			return new PooledConnection(this, DriverManager.getConnection(url, props), statementCacheSize);
+		}catch (SQLException e){
+			created.decrementAndGet();
+			throw e;
+		}//end try
+	}//end tryCreate
+
+	/**
+	 * A physical connection together with its prepared statement cache.  A
+	 * pooled connection is used by one thread at a time, so the cache needs
+	 * no locking.
+	 */
+	public static class PooledConnection{
+		//the pool this connection goes back to
+		final ConnectionPool owner;
+		final Connection connection;
+		private final LinkedHashMap<String, PreparedStatement> statements;
+		boolean broken = false;
+
+		PooledConnection(ConnectionPool owner, Connection connection, final int cacheSize){
+			this.owner = owner;
+			this.connection = connection;
+			this.statements = new LinkedHashMap<String, PreparedStatement>(16, 0.75f, true){
+				protected boolean removeEldestEntry(Map.Entry<String, PreparedStatement> eldest){
+					if (size() <= cacheSize)
+						return false;
+					try{
+						eldest.getValue().close();
+					}catch (SQLException e){
+						// ignored.
+					}//end try
+					return true;
+				}
+			};
+		}
+
+		/**
+		 * Returns the cached prepared statement for a SQL template, preparing
+		 * it on first use.
+		 *
+		 * @param sql the SQL template with ? placeholders
+		 * @return a prepared statement owned by this connection
+		 * @throws java.sql.SQLException when the statement cannot be prepared
+		 */
+		public PreparedStatement prepare(String sql) throws SQLException {
+			PreparedStatement ps = statements.get(sql);
+			if (ps == null || ps.isClosed()){
+				ps = connection.prepareStatement(sql);
+				statements.put(sql, ps);
+			}//end if
+			return ps;
+		}//end prepare
+
+		/**
+		 * @return the underlying physical connection
+		 */
+		public Connection getConnection(){
+			return connection;
+		}
+
+		/**
+		 * Marks the connection as unusable if the error says the link to the
+		 * server was lost, so release() drops it instead of pooling it.
+		 *
+		 * @param e the error raised while using this connection
+		 */
+		public void checkBroken(SQLException e){
+			String state = e.getSQLState();
+			if (state != null && state.startsWith("08"))
+				broken = true;
+		}
+
+		void close(){
+			Iterator<PreparedStatement> it = statements.values().iterator();
+			while (it.hasNext()){
+				try{
+					it.next().close();
+				}catch (SQLException e){
+					// ignored.
+				}//end try
+			}//end while
+			statements.clear();
+			try{
+				connection.close();
+			}catch (SQLException e){
+				// ignored.
+			}//end try
+		}//end close
+	}//end PooledConnection
+}//end ConnectionPool
@@ -0,0 +1,209 @@
+/*
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Fills an empty database with made-up cinemas, theaters, seats, users,
+ * movies and a schedule of shows with their seat maps.  Everything is drawn
+ * from one seeded Random and the ids are assigned in order, so the same seed
+ * and settings always produce the same data.  The dates are relative to
+ * ticketmaster.gen.startDate, which is today unless given.  A few movies
+ * get most of the shows, as in a real schedule.
+ *
+ * Run it after --migrate on an empty database:
+ *   java -cp .:postgresql.jar DataGenerator <dbname> <port> <user> [seed]
+ *
+ * Scale: -Dticketmaster.gen.cinemas=10 -Dticketmaster.gen.theaters=8 (per
+ * cinema) -Dticketmaster.gen.seats=150 (per theater) -Dticketmaster.gen.users=10000
+ * -Dticketmaster.gen.movies=200 -Dticketmaster.gen.days=14
+ * -Dticketmaster.gen.showsPerDay=4 (per theater)
+ *
+ */
+
+public class DataGenerator{
+	private static final String[] ADJECTIVES = { "Silent", "Last", "Crimson", "Hidden", "Endless", "Broken", "Golden",
+		"Midnight", "Frozen", "Wild", "Lost", "Electric", "Secret", "Distant", "Burning", "Quiet" };
+	private static final String[] NOUNS = { "Harbor", "Love", "Frontier", "Kingdom", "Signal", "Garden", "Empire",
+		"River", "Storm", "Orchard", "Machine", "Summer", "Voyage", "Promise", "Shadow", "Horizon" };
+	private static final String[] GENRES = { "Drama", "Comedy", "Action", "Thriller", "Romance", "Animation", "Horror", "Documentary" };
+	private static final String[] LANGS = { "EN", "EN", "EN", "ES", "FR", "DE", "JA", "KO" };
+	private static final String[] COUNTRIES = { "United States", "United Kingdom", "France", "Germany", "Japan", "South Korea", "Spain", "Canada" };
+	private static final String[] FIRST = { "Ana", "Ben", "Chen", "Dana", "Eli", "Fatima", "Gus", "Hana", "Ivan", "Jo", "Kai", "Lena", "Mo", "Nia", "Omar", "Pia" };
+	private static final String[] LAST = { "Garcia", "Smith", "Nguyen", "Kim", "Patel", "Rossi", "Muller", "Silva", "Okafor", "Cohen", "Novak", "Sato" };
+	private static final String[] WORDS = { "a", "story", "of", "two", "families", "city", "night", "journey", "home", "war",
+		"friends", "secret", "past", "future", "heist", "island", "music", "dream", "love", "escape" };
+
+	private final Ticketmaster esql;
+	private final Random rnd;
+	private final int batchSize;
+
+	public DataGenerator(Ticketmaster esql, long seed, int batchSize){
+		this.esql = esql;
+		this.rnd = new Random(seed);
+		this.batchSize = batchSize;
+	}
+
+	public static void main (String[] args) throws Exception {
+		if (args.length < 3) {
+			System.err.println (
+				"Usage: " + "java [-classpath <classpath>] " + DataGenerator.class.getName () +
+					" <dbname> <port> <user> [seed]");
+			return;
+		}//end if
+		long seed = args.length > 3 ? Long.parseLong(args[3]) : 42L;
+		Ticketmaster esql = new Ticketmaster(args[0], args[1], args[2], "");
+		try{
+			if (esql.executeQuery("SELECT 1 FROM Cinemas LIMIT 1") > 0){
+				System.err.println("Cinemas is not empty; the generator only fills an empty database");
+				return;
+			}//end if
+			new DataGenerator(esql, seed, Integer.getInteger("ticketmaster.batchSize", 1000)).generate(
+				Integer.getInteger("ticketmaster.gen.cinemas", 10),
+				Integer.getInteger("ticketmaster.gen.theaters", 8),
+				Integer.getInteger("ticketmaster.gen.seats", 150),
+				Integer.getInteger("ticketmaster.gen.users", 10000),
+				Integer.getInteger("ticketmaster.gen.movies", 200),
+				Integer.getInteger("ticketmaster.gen.days", 14),
+				Integer.getInteger("ticketmaster.gen.showsPerDay", 4),
+				System.getProperty("ticketmaster.gen.startDate", new java.sql.Date(System.currentTimeMillis()).toString()));
+		}finally{
+			esql.cleanup();
+		}//end try
+	}//end main
+
+	/**
+	 * Generates and loads the whole data set.
+	 *
+	 * @throws java.sql.SQLException when loading fails; what was loaded stays
+	 */
+	public void generate(int cinemas, int theatersPerCinema, int seatsPerTheater, int users, int movies,
+			int days, int showsPerDay, String startDate) throws SQLException {
+		long start = System.nanoTime();
+		int theaters = cinemas * theatersPerCinema;
+
+		Batch batch = new Batch("INSERT INTO Cinemas (cid, cname, tnum) VALUES (?, ?, ?)");
+		for (int c = 1; c <= cinemas; ++c)
+			batch.add(c, pick(ADJECTIVES) + " Cinemas " + c, theatersPerCinema);
+		batch.flush();
+
+		batch = new Batch("INSERT INTO Theaters (tid, cid, tname, tseats) VALUES (?, ?, ?, ?)");
+		for (int t = 1; t <= theaters; ++t)
+			batch.add(t, (t - 1) / theatersPerCinema + 1, "Theater " + ((t - 1) % theatersPerCinema + 1), seatsPerTheater);
+		batch.flush();
+
+		// rows of 20 seats, the last two rows premium
+		batch = new Batch("INSERT INTO CinemaSeats (csid, tid, sno, stype) VALUES (?, ?, ?, ?)");
+		int premiumFrom = Math.max(1, seatsPerTheater - 40);
+		for (int t = 1; t <= theaters; ++t){
+			for (int s = 1; s <= seatsPerTheater; ++s)
+				batch.add((t - 1) * seatsPerTheater + s, t, s, s > premiumFrom ? "premium" : "standard");
+		}//end for
+		batch.flush();
+
+		batch = new Batch("INSERT INTO Users (email, lname, fname, phone, pwd) VALUES (?, ?, ?, ?, ?)");
+		for (int u = 1; u <= users; ++u)
+			batch.add(email(u), pick(LAST), pick(FIRST), String.format("555-%03d-%04d", rnd.nextInt(1000), rnd.nextInt(10000)), hex(64));
+		batch.flush();
+
+		batch = new Batch("INSERT INTO Movies (mvid, title, rdate, country, description, duration, lang, genre) VALUES (?, ?, ?, ?, ?, ?, ?, ?)");
+		for (int m = 1; m <= movies; ++m){
+			StringBuilder description = new StringBuilder();
+			for (int w = 8 + rnd.nextInt(12); w > 0; --w)
+				description.append(description.length() > 0 ? " " : "").append(pick(WORDS));
+			batch.add(m, "The " + pick(ADJECTIVES) + " " + pick(NOUNS) + (m > NOUNS.length ? " " + m : ""),
+				String.format("%04d-%02d-%02d", 1990 + rnd.nextInt(37), 1 + rnd.nextInt(12), 1 + rnd.nextInt(28)),
+				pick(COUNTRIES), description.toString(), 5400 + rnd.nextInt(3600), pick(LANGS), pick(GENRES));
+		}//end for
+		batch.flush();
+
+		// shows from 10:00 every 3.5 hours; popular movies get most of them
+		Batch shows = new Batch("INSERT INTO Shows (sid, mvid, sdate, sttime, edtime) VALUES (?, ?, ?::date + ?, ?, ?)");
+		Batch plays = new Batch("INSERT INTO Plays (sid, tid) VALUES (?, ?)");
+		int sid = 0;
+		for (int t = 1; t <= theaters; ++t){
+			for (int d = 0; d < days; ++d){
+				for (int k = 0; k < showsPerDay; ++k){
+					++sid;
+					int minutes = 600 + k * 210;
+					shows.add(sid, 1 + (int) (movies * Math.pow(rnd.nextDouble(), 3)), startDate, d,
+						String.format("%02d:%02d:00", minutes / 60 % 24, minutes % 60),
+						String.format("%02d:%02d:00", (minutes + 180) / 60 % 24, (minutes + 180) % 60));
+					plays.add(sid, t);
+				}//end for
+			}//end for
+		}//end for
+		shows.flush();
+		plays.flush();
+
+		// seat maps, one statement per cinema, with premium seats dearer
+		long showSeats = 0;
+		int showsPerTheater = days * showsPerDay;
+		for (int c = 0; c < cinemas; ++c){
+			int firstSid = c * theatersPerCinema * showsPerTheater + 1;
+			int lastSid = (c + 1) * theatersPerCinema * showsPerTheater;
+			showSeats += esql.executeUpdate(
+				"INSERT INTO ShowSeats (ssid, sid, csid, bid, price) " +
+				"SELECT ? + row_number() OVER (ORDER BY p.sid, cs.csid), p.sid, cs.csid, NULL, CASE cs.stype WHEN 'premium' THEN 18 ELSE 12 END " +
+				"FROM Plays p JOIN CinemaSeats cs ON cs.tid = p.tid WHERE p.sid BETWEEN ? AND ?",
+				showSeats, firstSid, lastSid);
+		}//end for
+
+		esql.ensureSequence("movies_mvid_seq", "Movies", "mvid");
+		esql.ensureSequence("shows_sid_seq", "Shows", "sid");
+		esql.ensureSequence("showseats_ssid_seq", "ShowSeats", "ssid");
+		esql.executeUpdate("ANALYZE");
+		System.out.println(String.format("Generated %d cinemas, %d theaters, %d seats, %d users, %d movies, %d shows and %d show seats in %.2f s",
+			cinemas, theaters, theaters * seatsPerTheater, users, movies, sid, showSeats, (System.nanoTime() - start) / 1e9));
+	}//end generate
+
+	static String email(int user){
+		return "user" + user + "@example.com";
+	}
+
+	private String pick(String[] values){
+		return values[rnd.nextInt(values.length)];
+	}
+
+	private String hex(int digits){
+		StringBuilder sb = new StringBuilder(digits);
+		for (int i = 0; i < digits; ++i)
+			sb.append(Character.forDigit(rnd.nextInt(16), 16));
+		return sb.toString();
+	}
+
+	/**
+	 * Rows for one INSERT, sent batchSize at a time.
+	 */
+	private class Batch{
+		private final String sql;
+		private final List<Object[]> rows = new ArrayList<Object[]>();
+
+		Batch(String sql){
+			this.sql = sql;
+		}
+
+		void add(Object... row) throws SQLException {
+			rows.add(row);
+			if (rows.size() >= batchSize)
+				flush();
+		}
+
+		void flush() throws SQLException {
+			if (rows.isEmpty())
+				return;
+			esql.executeBatch(sql, rows);
+			rows.clear();
+		}
+	}//end Batch
+}//end DataGenerator
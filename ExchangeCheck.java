@@ -0,0 +1,130 @@
+/*
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * End-to-end check of BookingEngine.exchange.  It books one seat of a show,
+ * exchanges it for a free seat at the same price and checks the database
+ * and the seat index.  It then checks that exchanges for a taken seat, for a
+ * seat at another price and for a seat the booking does not hold are
+ * refused and change nothing.  The booking is removed again at the end.
+ *
+ * Run it against a scratch database; the show needs two free seats at one
+ * price:
+ *   java -cp .:postgresql.jar ExchangeCheck <dbname> <port> <user> <sid> <email>
+ *
+ */
+
+public class ExchangeCheck{
+	private static int failures = 0;
+
+	public static void main (String[] args) throws Exception {
+		if (args.length < 5) {
+			System.err.println (
+				"Usage: " + "java [-classpath <classpath>] " + ExchangeCheck.class.getName () +
+					" <dbname> <port> <user> <sid> <email>");
+			return;
+		}//end if
+		final int sid = Integer.parseInt(args[3]);
+		final String email = args[4];
+		final Ticketmaster esql = new Ticketmaster(args[0], args[1], args[2], "");
+		BookingEngine.Booking booking = null;
+		try{
+			// two free seats at the same price, and a free seat at another price if there is one
+			SeatIndex.Show show = esql.seats().get(sid);
+			String a = null, b = null, other = null;
+			for (String sno : show.free()){
+				int price = show.price(show.slot(sno));
+				if (a == null)
+					a = sno;
+				else if (b == null && price == show.price(show.slot(a)))
+					b = sno;
+				else if (other == null && price != show.price(show.slot(a)))
+					other = sno;
+			}//end for
+			if (b == null){
+				System.err.println("Show " + sid + " needs two free seats at the same price");
+				return;
+			}//end if
+
+			booking = esql.bookings().claimSeats(sid, email, "2020-01-01 00:00:00", Collections.singletonList(a));
+			esql.bookings().exchange(booking.bid, Collections.singletonList(a), Collections.singletonList(b));
+			expectSeats(esql, booking.bid, sid, b, a, "exchange " + a + " -> " + b);
+
+			// a seat taken by the booking itself
+			expectRefused(esql, booking.bid, b, b, "exchange for a taken seat");
+			// a seat the booking does not hold
+			expectRefused(esql, booking.bid, a, a, "exchange of a seat not held");
+			if (other != null)
+				expectRefused(esql, booking.bid, b, other, "exchange for a seat at another price");
+			expectSeats(esql, booking.bid, sid, b, a, "refused exchanges");
+
+			// and back again
+			esql.bookings().exchange(booking.bid, Collections.singletonList(b), Collections.singletonList(a));
+			expectSeats(esql, booking.bid, sid, a, b, "exchange " + b + " -> " + a);
+		}finally{
+			if (booking != null){
+				final int bid = booking.bid;
+				esql.inTransaction(new Ticketmaster.Work<Void>(){
+					public Void run() throws SQLException {
+						esql.executeUpdate("UPDATE ShowSeats SET bid = NULL WHERE bid = ?", bid);
+						esql.executeUpdate("DELETE FROM Bookings WHERE bid = ?", bid);
+						return null;
+					}
+				});
+				esql.seats().invalidate(sid);
+			}//end if
+			esql.cleanup();
+		}//end try
+		System.out.println(failures == 0 ? "PASSED" : "FAILED");
+		System.exit(failures == 0 ? 0 : 1);
+	}//end main
+
+	private static void expectRefused(Ticketmaster esql, int bid, String from, String to, String what) throws SQLException {
+		try{
+			esql.bookings().exchange(bid, Collections.singletonList(from), Collections.singletonList(to));
+			fail(what + " was not refused");
+		}catch (BookingEngine.SeatsUnavailableException e){
+			System.out.println("ok   " + what + ": " + e.getMessage());
+		}//end try
+	}
+
+	/**
+	 * Checks that the booking holds exactly seat held, in the database and
+	 * in the seat index, and that seat free is free in both.
+	 */
+	private static void expectSeats(Ticketmaster esql, int bid, int sid, String held, String free, String what) throws SQLException {
+		int before = failures;
+		List<String> booked = new ArrayList<String>();
+		for (BookingEngine.BookedSeat seat : esql.bookings().bookedSeats(bid))
+			booked.add(seat.sno);
+		if (!booked.equals(Arrays.asList(held)))
+			fail(what + ": booking " + bid + " holds " + booked + ", expected [" + held + "]");
+		List<List<String>> rows = esql.executeQueryAndReturnResult(
+			"SELECT ss.bid FROM ShowSeats ss JOIN CinemaSeats cs ON cs.csid = ss.csid WHERE ss.sid = ? AND cs.sno = ?::integer", sid, free);
+		if (rows.size() != 1 || rows.get(0).get(0) != null)
+			fail(what + ": seat " + free + " is not free in the database");
+		SeatIndex.Show show = esql.seats().get(sid);
+		if (show.isFree(show.slot(held)) || !show.isFree(show.slot(free)))
+			fail(what + ": the seat index disagrees");
+		if (failures == before)
+			System.out.println("ok   " + what);
+	}
+
+	private static void fail(String message){
+		++failures;
+		System.out.println("FAIL " + message);
+	}
+}//end ExchangeCheck
@@ -0,0 +1,224 @@
+/*
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Minimal JSON support for the result writers and the scripted and HTTP
+ * front ends.  parse() maps objects to Map, arrays to List, strings to
+ * String, numbers to Long or Double, and true/false/null to Boolean/null.
+ *
+ */
+
+public class Json{
+
+	/**
+	 * Appends s as a quoted JSON string, or null if s is null.
+	 *
+	 * @param sb the buffer to append to
+	 * @param s the string to quote
+	 * @return sb
+	 */
+	public static StringBuilder quote(StringBuilder sb, String s){
+		if (s == null)
+			return sb.append("null");
+		sb.append('"');
+		for (int i = 0; i < s.length(); ++i){
+			char c = s.charAt(i);
+			switch (c){
+				case '"': sb.append("\\\""); break;
+				case '\\': sb.append("\\\\"); break;
+				case '\n': sb.append("\\n"); break;
+				case '\r': sb.append("\\r"); break;
+				case '\t': sb.append("\\t"); break;
+				default:
+					if (c < 0x20){
+						sb.append("\\u00");
+						sb.append(Character.forDigit(c >> 4, 16));
+						sb.append(Character.forDigit(c & 0xf, 16));
+					} else {
+						sb.append(c);
+					}
+			}//end switch
+		}//end for
+		return sb.append('"');
+	}//end quote
+
+	/**
+	 * Parses one JSON value.
+	 *
+	 * @param text the JSON text
+	 * @return the parsed value
+	 * @throws java.lang.IllegalArgumentException when the text is not valid JSON
+	 */
+	public static Object parse(String text){
+		Json p = new Json(text);
+		p.skipSpace();
+		Object value = p.value();
+		p.skipSpace();
+		if (p.pos != text.length())
+			throw p.error("Unexpected trailing characters");
+		return value;
+	}
+
+	private final String text;
+	private int pos = 0;
+
+	private Json(String text){
+		this.text = text;
+	}
+
+	private Object value(){
+		if (pos >= text.length())
+			throw error("Unexpected end of input");
+		char c = text.charAt(pos);
+		switch (c){
+			case '{': return object();
+			case '[': return array();
+			case '"': return string();
+			case 't': return literal("true", Boolean.TRUE);
+			case 'f': return literal("false", Boolean.FALSE);
+			case 'n': return literal("null", null);
+			default:
+				if (c == '-' || (c >= '0' && c <= '9'))
+					return number();
+				throw error("Unexpected character '" + c + "'");
+		}//end switch
+	}
+
+	private Map<String, Object> object(){
+		Map<String, Object> map = new LinkedHashMap<String, Object>();
+		++pos;
+		skipSpace();
+		if (peek() == '}'){
+			++pos;
+			return map;
+		}//end if
+		while (true){
+			skipSpace();
+			if (peek() != '"')
+				throw error("Expected a member name");
+			String key = string();
+			skipSpace();
+			expect(':');
+			skipSpace();
+			map.put(key, value());
+			skipSpace();
+			if (peek() == ','){
+				++pos;
+				continue;
+			}//end if
+			expect('}');
+			return map;
+		}//end while
+	}
+
+	private List<Object> array(){
+		List<Object> list = new ArrayList<Object>();
+		++pos;
+		skipSpace();
+		if (peek() == ']'){
+			++pos;
+			return list;
+		}//end if
+		while (true){
+			skipSpace();
+			list.add(value());
+			skipSpace();
+			if (peek() == ','){
+				++pos;
+				continue;
+			}//end if
+			expect(']');
+			return list;
+		}//end while
+	}
+
+	private String string(){
+		StringBuilder sb = new StringBuilder();
+		++pos;
+		while (true){
+			if (pos >= text.length())
+				throw error("Unterminated string");
+			char c = text.charAt(pos++);
+			if (c == '"')
+				return sb.toString();
+			if (c != '\\'){
+				sb.append(c);
+				continue;
+			}//end if
+			if (pos >= text.length())
+				throw error("Unterminated string");
+			char e = text.charAt(pos++);
+			switch (e){
+				case 'b': sb.append('\b'); break;
+				case 'f': sb.append('\f'); break;
+				case 'n': sb.append('\n'); break;
+				case 'r': sb.append('\r'); break;
+				case 't': sb.append('\t'); break;
+				case 'u':
+					if (pos + 4 > text.length())
+						throw error("Bad unicode escape");
+					sb.append((char) Integer.parseInt(text.substring(pos, pos + 4), 16));
+					pos += 4;
+					break;
+				default: sb.append(e);
+			}//end switch
+		}//end while
+	}
+
+	private Object number(){
+		int start = pos;
+		boolean integral = true;
+		while (pos < text.length()){
+			char c = text.charAt(pos);
+			if (c == '.' || c == 'e' || c == 'E')
+				integral = false;
+			else if (!(c == '-' || c == '+' || (c >= '0' && c <= '9')))
+				break;
+			++pos;
+		}//end while
+		String n = text.substring(start, pos);
+		try{
+			return integral ? (Object) Long.valueOf(n) : (Object) Double.valueOf(n);
+		}catch (NumberFormatException e){
+			throw error("Bad number " + n);
+		}//end try
+	}
+
+	private Object literal(String word, Object value){
+		if (!text.startsWith(word, pos))
+			throw error("Unexpected token");
+		pos += word.length();
+		return value;
+	}
+
+	private char peek(){
+		return pos < text.length() ? text.charAt(pos) : '\0';
+	}
+
+	private void expect(char c){
+		if (peek() != c)
+			throw error("Expected '" + c + "'");
+		++pos;
+	}
+
+	private void skipSpace(){
+		while (pos < text.length() && Character.isWhitespace(text.charAt(pos)))
+			++pos;
+	}
+
+	private IllegalArgumentException error(String message){
+		return new IllegalArgumentException(message + " at offset " + pos);
+	}
+}//end Json
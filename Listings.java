@@ -0,0 +1,146 @@
+/*
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.nio.charset.StandardCharsets;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Paged versions of the booking history and pending user reports.  Pages
+ * are cut with keyset cursors rather than OFFSET: each page starts after
+ * the sort key of the last row of the previous one, so a page costs the
+ * same however deep it is and rows added meanwhile do not shift later
+ * pages.  The cursor is handed out as an opaque next page token.  The total
+ * is the planner's row estimate, which costs no scan.
+ *
+ */
+
+public class Listings{
+	//one row per booking, newest first; theater and seats through the booked ShowSeats
+	private static final String USER_BOOKINGS =
+		"SELECT b.bid, b.bdatetime, b.status, m.title, s.sdate, s.sttime, x.tname, x.seats " +
+		"FROM Bookings b JOIN Shows s ON s.sid = b.sid JOIN Movies m ON m.mvid = s.mvid " +
+		"CROSS JOIN LATERAL (SELECT MIN(t.tname) AS tname, string_agg(cs.sno::text, ',' ORDER BY cs.sno) AS seats " +
+			"FROM ShowSeats ss JOIN CinemaSeats cs ON cs.csid = ss.csid JOIN Theaters t ON t.tid = cs.tid WHERE ss.bid = b.bid) x " +
+		"WHERE b.email = ?%s ORDER BY b.bdatetime DESC, b.bid DESC LIMIT ?";
+	private static final String USER_BOOKINGS_COUNT = "SELECT 1 FROM Bookings WHERE email = ?";
+	private static final String PENDING_USERS =
+		"SELECT u.fname, u.lname, u.email FROM (SELECT DISTINCT email FROM Bookings WHERE status = 'Pending'%s ORDER BY email LIMIT ?) p " +
+		"JOIN Users u ON u.email = p.email ORDER BY u.email";
+	private static final String PENDING_USERS_COUNT = "SELECT DISTINCT email FROM Bookings WHERE status = 'Pending'";
+	private static final Pattern PLAN_ROWS = Pattern.compile("rows=(\\d+)");
+
+	private final Ticketmaster esql;
+
+	/**
+	 * One page of a listing.
+	 */
+	public static class Page{
+		public final List<String> columns;
+		public final List<List<String>> rows;
+		//token for the next page, or null on the last page
+		public final String next;
+		//estimated rows in the whole listing, or -1 if not asked for
+		public final long estimate;
+
+		Page(List<String> columns, List<List<String>> rows, String next, long estimate){
+			this.columns = columns;
+			this.rows = rows;
+			this.next = next;
+			this.estimate = estimate;
+		}
+	}
+
+	public Listings(Ticketmaster esql){
+		this.esql = esql;
+	}
+
+	/**
+	 * Lists a user's bookings, newest first, one row per booking with the
+	 * seat numbers joined by commas.
+	 *
+	 * @param email the user
+	 * @param token the next page token of the previous page, or null for the
+	 * first page
+	 * @param pageSize rows per page
+	 * @return the page, with an estimate of the user's bookings on the first
+	 * page only
+	 * @throws java.sql.SQLException when the query fails
+	 * @throws java.lang.IllegalArgumentException when the token is not valid
+	 */
+	public Page bookingsForUser(String email, String token, int pageSize) throws SQLException {
+		String[] after = decode(token, 2);
+		Object[] params = after == null
+			? new Object[]{ email, pageSize + 1 }
+			: new Object[]{ email, after[0], Long.parseLong(after[1]), pageSize + 1 };
+		List<List<String>> rows = esql.executeQueryAndReturnResult(String.format(USER_BOOKINGS,
+			after == null ? "" : " AND (b.bdatetime, b.bid) < (?::timestamp, ?)"), params);
+		String next = null;
+		if (rows.size() > pageSize){
+			rows = rows.subList(0, pageSize);
+			List<String> last = rows.get(pageSize - 1);
+			next = encode(last.get(1), last.get(0));
+		}//end if
+		return new Page(Arrays.asList("bid", "bdatetime", "status", "title", "sdate", "sttime", "tname", "seats"),
+			rows, next, after == null ? estimate(USER_BOOKINGS_COUNT, email) : -1);
+	}//end bookingsForUser
+
+	/**
+	 * Lists the users with at least one pending booking, by email.
+	 *
+	 * @param token the next page token of the previous page, or null for the
+	 * first page
+	 * @param pageSize rows per page
+	 * @return the page, with an estimate of the users on the first page only
+	 * @throws java.sql.SQLException when the query fails
+	 * @throws java.lang.IllegalArgumentException when the token is not valid
+	 */
+	public Page usersWithPendingBooking(String token, int pageSize) throws SQLException {
+		String[] after = decode(token, 1);
+		Object[] params = after == null
+			? new Object[]{ pageSize + 1 }
+			: new Object[]{ after[0], pageSize + 1 };
+		List<List<String>> rows = esql.executeQueryAndReturnResult(String.format(PENDING_USERS,
+			after == null ? "" : " AND email > ?"), params);
+		String next = null;
+		if (rows.size() > pageSize){
+			rows = rows.subList(0, pageSize);
+			next = encode(rows.get(pageSize - 1).get(2));
+		}//end if
+		return new Page(Arrays.asList("fname", "lname", "email"),
+			rows, next, after == null ? estimate(PENDING_USERS_COUNT) : -1);
+	}//end usersWithPendingBooking
+
+	/**
+	 * @return the number of rows the planner expects a query to return
+	 */
+	private long estimate(String query, Object... params) throws SQLException {
+		List<List<String>> plan = esql.executeQueryAndReturnResult("EXPLAIN " + query, params);
+		Matcher m = PLAN_ROWS.matcher(plan.get(0).get(0));
+		return m.find() ? Long.parseLong(m.group(1)) : -1;
+	}
+
+	private static String encode(String... key){
+		return Base64.getUrlEncoder().withoutPadding().encodeToString(String.join("\u0000", key).getBytes(StandardCharsets.UTF_8));
+	}
+
+	private static String[] decode(String token, int parts){
+		if (token == null || token.length() == 0)
+			return null;
+		String[] key = new String(Base64.getUrlDecoder().decode(token), StandardCharsets.UTF_8).split("\u0000", -1);
+		if (key.length != parts)
+			throw new IllegalArgumentException("Invalid page token");
+		return key;
+	}
+}//end Listings
@@ -0,0 +1,323 @@
+/*
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Per-operation counters and latency histograms for the query helpers and
+ * the menu operations.  Recording is lock free.  Statements slower than
+ * ticketmaster.slowSqlMs are logged to standard error with their SQL
+ * template.  The metrics can be written as a text report, in the Prometheus
+ * text format to a file, or served to Prometheus from a localhost endpoint.
+ *
+ */
+
+public class Metrics{
+	private static final double[] QUANTILES = { 0.5, 0.9, 0.99, 0.999 };
+
+	private final ConcurrentHashMap<String, Op> ops = new ConcurrentHashMap<String, Op>();
+	private final long slowSqlNanos;
+	//rows returned by SQL so far on this thread, for per-operation row counts
+	private final ThreadLocal<long[]> threadRows = new ThreadLocal<long[]>(){
+		protected long[] initialValue(){
+			return new long[2];
+		}
+	};
+	private HttpServer server = null;
+
+	public Metrics(long slowSqlMillis){
+		this.slowSqlNanos = slowSqlMillis * 1000000L;
+	}
+
+	/**
+	 * A latency histogram in microseconds with HdrHistogram's log-linear
+	 * bucket layout: values below 128 get exact buckets, and every power of
+	 * two above that is split into 64 linear sub-buckets, so any recorded
+	 * value is off by less than 1.6%.
+	 */
+	public static class Histogram{
+		private static final int SUB_BITS = 7;
+		private static final int HALF = 1 << (SUB_BITS - 1);
+		private final AtomicLongArray counts = new AtomicLongArray((64 - SUB_BITS + 1) * HALF + HALF);
+		private final LongAdder total = new LongAdder();
+		private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+		public void record(long micros){
+			if (micros < 0)
+				micros = 0;
+			counts.incrementAndGet(index(micros));
+			total.increment();
+			max.accumulate(micros);
+		}
+
+		static int index(long v){
+			if (v < (HALF << 1))
+				return (int) v;
+			int shift = 63 - Long.numberOfLeadingZeros(v) - (SUB_BITS - 1);
+			return shift * HALF + (int) (v >>> shift);
+		}
+
+		static long highestValue(int index){
+			if (index < (HALF << 1))
+				return index;
+			int shift = index / HALF - 1;
+			long sub = index - (long) shift * HALF;
+			return ((sub + 1) << shift) - 1;
+		}
+
+		public long count(){
+			return total.sum();
+		}
+
+		public long max(){
+			return max.get();
+		}
+
+		/**
+		 * @return the smallest bucket bound at or below which the fraction q of
+		 * the recorded values lie, in microseconds
+		 */
+		public long percentile(double q){
+			long n = count();
+			if (n == 0)
+				return 0;
+			long rank = (long) Math.ceil(q * n);
+			long seen = 0;
+			for (int i = 0; i < counts.length(); ++i){
+				seen += counts.get(i);
+				if (seen >= rank)
+					return Math.min(highestValue(i), max());
+			}//end for
+			return max();
+		}
+	}//end Histogram
+
+	/**
+	 * The counters of one named operation.
+	 */
+	public static class Op{
+		public final String name;
+		public final LongAdder count = new LongAdder();
+		public final LongAdder errors = new LongAdder();
+		public final LongAdder rows = new LongAdder();
+		public final LongAdder totalMicros = new LongAdder();
+		public final Histogram latency = new Histogram();
+
+		Op(String name){
+			this.name = name;
+		}
+	}
+
+	/**
+	 * @return the counters for an operation, created on first use
+	 */
+	public Op op(String name){
+		Op op = ops.get(name);
+		if (op == null){
+			ops.putIfAbsent(name, new Op(name));
+			op = ops.get(name);
+		}//end if
+		return op;
+	}
+
+	/**
+	 * Records one finished operation.
+	 *
+	 * @param name the operation
+	 * @param startNanos System.nanoTime() when it started
+	 * @param rows rows it returned or affected
+	 * @param ok false if it failed
+	 */
+	public void record(String name, long startNanos, long rows, boolean ok){
+		long micros = (System.nanoTime() - startNanos) / 1000;
+		Op op = op(name);
+		op.count.increment();
+		if (!ok)
+			op.errors.increment();
+		op.rows.add(rows);
+		op.totalMicros.add(micros);
+		op.latency.record(micros);
+	}
+
+	/**
+	 * Records one SQL statement run by a query helper and logs it if it was
+	 * slow.  Its rows also count toward the menu operation running on this
+	 * thread.
+	 *
+	 * @param helper the query helper
+	 * @param sql the SQL template
+	 * @param startNanos System.nanoTime() when it started
+	 * @param rows rows it returned or affected
+	 * @param ok false if it failed
+	 */
+	public void recordSql(String helper, String sql, long startNanos, long rows, boolean ok){
+		long nanos = System.nanoTime() - startNanos;
+		record("sql." + helper, startNanos, rows, ok);
+		threadRows.get()[0] += rows;
+		if (nanos >= slowSqlNanos)
+			System.err.println(String.format("SLOW SQL %.1f ms (%d rows%s): %s", nanos / 1e6, rows, ok ? "" : ", failed", sql));
+	}
+
+	/**
+	 * Marks the operation running on this thread as failed.
+	 */
+	public void markFailed(){
+		threadRows.get()[1] = 1;
+	}
+
+	/**
+	 * @return whether markFailed() was called on this thread since start()
+	 */
+	public boolean failed(){
+		return threadRows.get()[1] != 0;
+	}
+
+	/**
+	 * Starts timing an operation on this thread.
+	 *
+	 * @return the start time, to pass to finish()
+	 */
+	public long start(){
+		long[] state = threadRows.get();
+		state[0] = 0;
+		state[1] = 0;
+		return System.nanoTime();
+	}
+
+	/**
+	 * Records the operation started on this thread, with the rows its SQL
+	 * returned and whether markFailed() was called meanwhile.
+	 */
+	public void finish(String name, long startNanos){
+		long[] state = threadRows.get();
+		record(name, startNanos, state[0], state[1] == 0);
+	}
+
+	/**
+	 * @return the operations recorded so far, sorted by name
+	 */
+	public List<Op> snapshot(){
+		List<Op> list = new ArrayList<Op>(ops.values());
+		Collections.sort(list, new Comparator<Op>(){
+			public int compare(Op a, Op b){
+				return a.name.compareTo(b.name);
+			}
+		});
+		return list;
+	}
+
+	/**
+	 * @return a table with count, errors, rows, mean and percentile latencies
+	 * in milliseconds for every operation
+	 */
+	public String report(){
+		StringBuilder sb = new StringBuilder();
+		sb.append(String.format("%-48s %8s %6s %10s %9s %9s %9s %9s %9s %9s%n",
+			"operation", "count", "errors", "rows", "mean", "p50", "p90", "p99", "p999", "max"));
+		for (Op op : snapshot()){
+			long n = op.count.sum();
+			sb.append(String.format("%-48s %8d %6d %10d %9.3f %9.3f %9.3f %9.3f %9.3f %9.3f%n",
+				op.name, n, op.errors.sum(), op.rows.sum(),
+				n == 0 ? 0.0 : op.totalMicros.sum() / 1000.0 / n,
+				op.latency.percentile(0.5) / 1000.0, op.latency.percentile(0.9) / 1000.0,
+				op.latency.percentile(0.99) / 1000.0, op.latency.percentile(0.999) / 1000.0,
+				op.latency.max() / 1000.0));
+		}//end for
+		return sb.toString();
+	}//end report
+
+	/**
+	 * Writes every operation in the Prometheus text exposition format, as a
+	 * summary with quantiles plus counters for errors and rows.
+	 */
+	public void writePrometheus(Writer out) throws IOException {
+		List<Op> list = snapshot();
+		String[] labels = new String[list.size()];
+		for (int i = 0; i < labels.length; ++i)
+			labels[i] = "{op=\"" + list.get(i).name.replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+		// every metric family is written as one group, as the format requires
+		StringBuilder sb = new StringBuilder();
+		sb.append("# TYPE ticketmaster_latency_seconds summary\n");
+		for (int i = 0; i < labels.length; ++i){
+			Op op = list.get(i);
+			for (int q = 0; q < QUANTILES.length; ++q)
+				sb.append("ticketmaster_latency_seconds").append(labels[i]).append(",quantile=\"").append(QUANTILES[q]).append("\"} ")
+					.append(op.latency.percentile(QUANTILES[q]) / 1e6).append('\n');
+			sb.append("ticketmaster_latency_seconds_sum").append(labels[i]).append("} ").append(op.totalMicros.sum() / 1e6).append('\n');
+			sb.append("ticketmaster_latency_seconds_count").append(labels[i]).append("} ").append(op.count.sum()).append('\n');
+		}//end for
+		sb.append("# TYPE ticketmaster_errors_total counter\n");
+		for (int i = 0; i < labels.length; ++i)
+			sb.append("ticketmaster_errors_total").append(labels[i]).append("} ").append(list.get(i).errors.sum()).append('\n');
+		sb.append("# TYPE ticketmaster_rows_total counter\n");
+		for (int i = 0; i < labels.length; ++i)
+			sb.append("ticketmaster_rows_total").append(labels[i]).append("} ").append(list.get(i).rows.sum()).append('\n');
+		out.write(sb.toString());
+		out.flush();
+	}//end writePrometheus
+
+	/**
+	 * Writes the metrics to a file in the Prometheus text format.
+	 */
+	public void writeFile(String file) throws IOException {
+		Writer out = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+		try{
+			writePrometheus(out);
+		}finally{
+			out.close();
+		}//end try
+	}
+
+	/**
+	 * Serves the metrics at http://localhost:port/metrics.
+	 */
+	public synchronized void serve(int port) throws IOException {
+		if (server != null)
+			return;
+		server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+		server.createContext("/metrics", new HttpHandler(){
+			public void handle(HttpExchange exchange) throws IOException {
+				java.io.StringWriter body = new java.io.StringWriter();
+				writePrometheus(body);
+				byte[] bytes = body.toString().getBytes("UTF-8");
+				exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4");
+				exchange.sendResponseHeaders(200, bytes.length);
+				OutputStream os = exchange.getResponseBody();
+				os.write(bytes);
+				os.close();
+			}
+		});
+		server.start();
+	}//end serve
+
+	public synchronized void stop(){
+		if (server != null){
+			server.stop(0);
+			server = null;
+		}//end if
+	}
+}//end Metrics
@@ -0,0 +1,180 @@
+/*
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Versioned schema migrations.  Each migration runs in its own transaction
+ * and is recorded in schema_migrations with a checksum of its statements,
+ * so running the migrations again only applies the new ones.  Concurrent
+ * runners are serialized with an advisory lock.  Migrations are only ever
+ * appended to; changing one that has been applied is reported.
+ *
+ */
+
+public class Migrations{
+	//arbitrary key for pg_advisory_xact_lock
+	private static final long LOCK_KEY = 0x7469636b65746dL;
+
+	/**
+	 * One schema version.
+	 */
+	static class Migration{
+		final int version;
+		final String description;
+		final String[] statements;
+
+		Migration(int version, String description, String... statements){
+			this.version = version;
+			this.description = description;
+			this.statements = statements;
+		}
+
+		String checksum(){
+			try{
+				MessageDigest md = MessageDigest.getInstance("SHA-256");
+				for (String s : statements)
+					md.update((s + '\n').getBytes(StandardCharsets.UTF_8));
+				StringBuilder sb = new StringBuilder();
+				byte[] digest = md.digest();
+				for (int i = 0; i < 8; ++i)
+					sb.append(String.format("%02x", digest[i]));
+				return sb.toString();
+			}catch (NoSuchAlgorithmException e){
+				throw new IllegalStateException(e);
+			}//end try
+		}
+	}//end Migration
+
+	static final Migration[] MIGRATIONS = {
+		new Migration(1, "Ticketmaster tables",
+			"CREATE TABLE IF NOT EXISTS Users (email text PRIMARY KEY, lname char(32) NOT NULL, fname char(32) NOT NULL, phone char(16), pwd char(64) NOT NULL)",
+			"CREATE TABLE IF NOT EXISTS Movies (mvid integer PRIMARY KEY, title varchar(128) NOT NULL, rdate date NOT NULL, country char(60) NOT NULL, " +
+				"description text, duration integer, lang char(2), genre char(16))",
+			"CREATE TABLE IF NOT EXISTS Cinemas (cid integer PRIMARY KEY, cname char(64) NOT NULL, tnum integer NOT NULL)",
+			"CREATE TABLE IF NOT EXISTS Theaters (tid integer PRIMARY KEY, cid integer NOT NULL REFERENCES Cinemas (cid), tname char(128) NOT NULL, tseats integer NOT NULL)",
+			"CREATE TABLE IF NOT EXISTS Shows (sid integer PRIMARY KEY, mvid integer NOT NULL REFERENCES Movies (mvid), sdate date NOT NULL, sttime time NOT NULL, edtime time NOT NULL)",
+			"CREATE TABLE IF NOT EXISTS Plays (sid integer NOT NULL REFERENCES Shows (sid), tid integer NOT NULL REFERENCES Theaters (tid), PRIMARY KEY (sid, tid))",
+			"CREATE TABLE IF NOT EXISTS CinemaSeats (csid integer PRIMARY KEY, tid integer NOT NULL REFERENCES Theaters (tid), sno integer NOT NULL, stype char(16) NOT NULL)",
+			"CREATE TABLE IF NOT EXISTS Bookings (bid integer PRIMARY KEY, status char(16) NOT NULL CHECK (status IN ('Paid', 'Pending', 'Cancelled')), " +
+				"bdatetime timestamp NOT NULL, seats integer NOT NULL, sid integer NOT NULL REFERENCES Shows (sid), email text NOT NULL REFERENCES Users (email))",
+			"CREATE TABLE IF NOT EXISTS ShowSeats (ssid integer PRIMARY KEY, sid integer NOT NULL REFERENCES Shows (sid), csid integer NOT NULL REFERENCES CinemaSeats (csid), " +
+				"bid integer REFERENCES Bookings (bid), price integer NOT NULL)",
+			"CREATE TABLE IF NOT EXISTS Payments (pid integer PRIMARY KEY, bid integer NOT NULL REFERENCES Bookings (bid), pmethod char(32) NOT NULL, " +
+				"pdatetime timestamp NOT NULL, amount real NOT NULL, trid integer)"),
+		new Migration(2, "Id sequences as column defaults", sequences(
+			"bookings_bid_seq", "Bookings", "bid",
+			"payments_pid_seq", "Payments", "pid",
+			"movies_mvid_seq", "Movies", "mvid",
+			"shows_sid_seq", "Shows", "sid",
+			"showseats_ssid_seq", "ShowSeats", "ssid")),
+		new Migration(3, "Indexes for the booking and listing predicates",
+			// free seats of a show, in seat order, with their price: index only
+			"CREATE INDEX IF NOT EXISTS showseats_free ON ShowSeats (sid, csid) INCLUDE (ssid, price) WHERE bid IS NULL",
+			// seat map loads
+			"CREATE INDEX IF NOT EXISTS showseats_sid ON ShowSeats (sid) INCLUDE (csid, price, bid)",
+			// seats of a booking
+			"CREATE INDEX IF NOT EXISTS showseats_bid ON ShowSeats (bid) WHERE bid IS NOT NULL",
+			// pending holds, expiry and the cancel job walk these in bid order
+			"CREATE INDEX IF NOT EXISTS bookings_pending ON Bookings (bid) INCLUDE (bdatetime, email) WHERE status = 'Pending'",
+			"CREATE INDEX IF NOT EXISTS bookings_cancelled ON Bookings (bid) INCLUDE (bdatetime) WHERE status = 'Cancelled'",
+			"CREATE INDEX IF NOT EXISTS bookings_email ON Bookings (email) INCLUDE (sid)",
+			"CREATE INDEX IF NOT EXISTS shows_start ON Shows (sdate, sttime)",
+			"CREATE INDEX IF NOT EXISTS shows_mvid ON Shows (mvid)",
+			"CREATE INDEX IF NOT EXISTS plays_tid ON Plays (tid)",
+			"CREATE INDEX IF NOT EXISTS theaters_cid ON Theaters (cid)",
+			"CREATE INDEX IF NOT EXISTS cinemaseats_tid ON CinemaSeats (tid)",
+			"CREATE INDEX IF NOT EXISTS payments_bid ON Payments (bid)"),
+		new Migration(4, "Movie search indexes",
+			"CREATE INDEX IF NOT EXISTS movies_fts ON Movies USING gin (" + MovieSearch.DOCUMENT + ")",
+			"CREATE INDEX IF NOT EXISTS movies_rdate ON Movies (rdate)"),
+		new Migration(5, "Keyset indexes for the paged listings",
+			// a user's bookings, newest first
+			"CREATE INDEX IF NOT EXISTS bookings_email_time ON Bookings (email, bdatetime DESC, bid DESC)",
+			// users with a pending booking, by email
+			"CREATE INDEX IF NOT EXISTS bookings_pending_email ON Bookings (email) WHERE status = 'Pending'"),
+		new Migration(6, "Per-show occupancy counters", Occupancy.SCHEMA),
+		new Migration(7, "Trigram index for movie title search",
+			// pg_trgm is a contrib extension: skipped, with a notice, where the server lacks it or the user may not create it
+			"DO $$ BEGIN " +
+				"CREATE EXTENSION IF NOT EXISTS pg_trgm; " +
+				"CREATE INDEX IF NOT EXISTS movies_title_trgm ON Movies USING gin (title gin_trgm_ops); " +
+			"EXCEPTION WHEN OTHERS THEN RAISE NOTICE 'pg_trgm is not available, skipping movies_title_trgm: %', SQLERRM; " +
+			"END $$"),
+	};
+
+	/**
+	 * For each (sequence, table, column) triple: creates the sequence, moves
+	 * it past the ids already in the table and makes it the column default.
+	 */
+	private static String[] sequences(String... specs){
+		String[] statements = new String[specs.length];
+		for (int i = 0; i < specs.length; i += 3){
+			String sequence = specs[i];
+			String table = specs[i + 1];
+			String column = specs[i + 2];
+			statements[i] = "CREATE SEQUENCE IF NOT EXISTS " + sequence + " OWNED BY " + table + "." + column;
+			statements[i + 1] = "SELECT setval('" + sequence + "', GREATEST((SELECT COALESCE(MAX(" + column + "), 0) FROM " + table + "), " +
+				"(SELECT last_value FROM " + sequence + ")))";
+			statements[i + 2] = "ALTER TABLE " + table + " ALTER COLUMN " + column + " SET DEFAULT nextval('" + sequence + "')";
+		}//end for
+		return statements;
+	}
+
+	private final Ticketmaster esql;
+
+	public Migrations(Ticketmaster esql){
+		this.esql = esql;
+	}
+
+	/**
+	 * Applies every migration not applied yet, in version order.
+	 *
+	 * @return the number of migrations applied
+	 * @throws java.sql.SQLException when a migration fails; it is rolled back
+	 * and the later ones are not run
+	 */
+	public int migrate() throws SQLException {
+		esql.executeUpdate("CREATE TABLE IF NOT EXISTS schema_migrations (version integer PRIMARY KEY, description text NOT NULL, " +
+			"checksum text NOT NULL, applied_at timestamptz NOT NULL DEFAULT now())");
+		int applied = 0;
+		for (final Migration m : MIGRATIONS){
+			boolean ran = esql.inTransaction(new Ticketmaster.Work<Boolean>(){
+				public Boolean run() throws SQLException {
+					esql.executeQuery("SELECT pg_advisory_xact_lock(?)", LOCK_KEY);
+					List<List<String>> done = esql.executeQueryAndReturnResult("SELECT checksum FROM schema_migrations WHERE version = ?", m.version);
+					if (!done.isEmpty()){
+						if (!done.get(0).get(0).equals(m.checksum()))
+							System.err.println("Migration " + m.version + " (" + m.description + ") changed after it was applied");
+						return false;
+					}//end if
+					long start = System.nanoTime();
+					List<Object[]> noParams = new ArrayList<Object[]>();
+					for (int i = 0; i < m.statements.length; ++i)
+						noParams.add(new Object[0]);
+					esql.executePipeline(Arrays.asList(m.statements), noParams);
+					esql.executeUpdate("INSERT INTO schema_migrations (version, description, checksum) VALUES (?, ?, ?)", m.version, m.description, m.checksum());
+					System.out.println(String.format("Applied migration %d: %s (%.0f ms)", m.version, m.description, (System.nanoTime() - start) / 1e6));
+					return true;
+				}
+			});
+			if (ran)
+				++applied;
+		}//end for
+		System.out.println(applied == 0 ? "Schema is up to date (version " + MIGRATIONS.length + ")" : "Schema is at version " + MIGRATIONS.length);
+		return applied;
+	}//end migrate
+}//end Migrations
@@ -0,0 +1,205 @@
+/*
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Movie search by title and description words, with optional genre,
+ * language and release date filters.  Matches are ranked by trigram
+ * similarity of the title and full-text rank of title and description, and
+ * returned a page at a time through the catalog cache.  The full-text and
+ * trigram indexes come with the schema migrations; the trigram one only
+ * where the server has pg_trgm.  Without pg_trgm the search falls back to
+ * full text and ILIKE.
+ *
+ * Autocomplete is answered in process from a sorted array of every word
+ * suffix of every title, loaded on first use and dropped when the catalog
+ * changes.
+ *
+ */
+
+public class MovieSearch{
+	//the text searched, as indexed by movies_fts
+	static final String DOCUMENT = "to_tsvector('simple', title || ' ' || COALESCE(description, ''))";
+
+	private final Ticketmaster esql;
+	private volatile boolean indexed = false;
+	private volatile boolean trigram = false;
+	//autocomplete keys, sorted, each "word suffix \0 title"
+	private volatile String[] prefixes = null;
+	//bumped by invalidate(), so a load that raced with it is not kept
+	private final AtomicLong generation = new AtomicLong();
+
+	/**
+	 * One page of search results.
+	 */
+	public static class Page{
+		public final List<String> columns;
+		public final List<List<String>> rows;
+		public final boolean more;
+
+		Page(List<String> columns, List<List<String>> rows, boolean more){
+			this.columns = columns;
+			this.rows = rows;
+			this.more = more;
+		}
+	}
+
+	public MovieSearch(Ticketmaster esql){
+		this.esql = esql;
+	}
+
+	/**
+	 * Checks once whether pg_trgm is installed; migration 7 installs it
+	 * where the server has it.  Without it the search uses full text only,
+	 * and the reason is reported.
+	 */
+	public synchronized void ensureIndexes(){
+		if (indexed)
+			return;
+		try{
+			trigram = esql.executeQuery("SELECT 1 FROM pg_extension WHERE extname = 'pg_trgm'") > 0;
+			if (!trigram)
+				System.err.println("pg_trgm is not installed, title search falls back to full text; see migration 7");
+		}catch (SQLException e){
+			System.err.println("Could not check for pg_trgm, title search falls back to full text: " + e.getMessage());
+		}//end try
+		indexed = true;
+	}//end ensureIndexes
+
+	/**
+	 * Searches the movies.  Blank arguments are ignored.
+	 *
+	 * @param term words or part of a title, or null to list by release date
+	 * @param genre only this genre
+	 * @param lang only this language
+	 * @param from released on or after this date
+	 * @param to released on or before this date
+	 * @param page the page, from 1
+	 * @param pageSize rows per page
+	 * @return the page, best match first
+	 * @throws java.sql.SQLException when the search fails
+	 */
+	public Page search(String term, String genre, String lang, String from, String to, int page, int pageSize) throws SQLException {
+		ensureIndexes();
+		List<Object> params = new ArrayList<Object>();
+		StringBuilder sql = new StringBuilder("SELECT mvid, title, rdate, genre, lang");
+		if (term != null){
+			sql.append(trigram
+				? ", ROUND(GREATEST(similarity(title, ?), ts_rank(" + DOCUMENT + ", plainto_tsquery('simple', ?)))::numeric, 3) AS rank"
+				: ", ROUND(ts_rank(" + DOCUMENT + ", plainto_tsquery('simple', ?))::numeric, 3) AS rank");
+			params.add(term);
+			if (trigram)
+				params.add(term);
+		}//end if
+		sql.append(" FROM Movies WHERE TRUE");
+		if (term != null){
+			sql.append(" AND (title ILIKE ? OR " + DOCUMENT + " @@ plainto_tsquery('simple', ?)");
+			params.add("%" + term.replace("\\", "\\\\").replace("%", "\\%").replace("_", "\\_") + "%");
+			params.add(term);
+			if (trigram){
+				sql.append(" OR title % ?");
+				params.add(term);
+			}//end if
+			sql.append(")");
+		}//end if
+		if (genre != null){
+			sql.append(" AND genre = ?");
+			params.add(genre);
+		}//end if
+		if (lang != null){
+			sql.append(" AND lang = ?");
+			params.add(lang);
+		}//end if
+		if (from != null){
+			sql.append(" AND rdate >= ?");
+			params.add(from);
+		}//end if
+		if (to != null){
+			sql.append(" AND rdate <= ?");
+			params.add(to);
+		}//end if
+		sql.append(term != null ? " ORDER BY rank DESC, mvid" : " ORDER BY rdate DESC, mvid");
+		// one extra row tells whether there is a next page
+		sql.append(" LIMIT ? OFFSET ?");
+		params.add(pageSize + 1);
+		params.add((long) (page - 1) * pageSize);
+
+		CatalogCache.Result result = esql.executeCatalogQuery(sql.toString(), params.toArray());
+		boolean more = result.rows.size() > pageSize;
+		return new Page(result.columns, more ? result.rows.subList(0, pageSize) : result.rows, more);
+	}//end search
+
+	/**
+	 * Suggests titles with a word starting with the given prefix.
+	 *
+	 * @param prefix what the user typed so far
+	 * @param limit the most titles returned
+	 * @return matching titles, in alphabetical order of the matched words
+	 * @throws java.sql.SQLException when the titles cannot be loaded
+	 */
+	public List<String> autocomplete(String prefix, int limit) throws SQLException {
+		String[] keys = prefixes;
+		if (keys == null)
+			keys = loadPrefixes();
+		String p = prefix.trim().toLowerCase(Locale.ROOT);
+		Set<String> titles = new LinkedHashSet<String>();
+		if (p.length() == 0)
+			return new ArrayList<String>(titles);
+		int i = Arrays.binarySearch(keys, p);
+		if (i < 0)
+			i = -i - 1;
+		for (; i < keys.length && titles.size() < limit && keys[i].startsWith(p); ++i)
+			titles.add(keys[i].substring(keys[i].indexOf('\u0000') + 1));
+		return new ArrayList<String>(titles);
+	}//end autocomplete
+
+	private synchronized String[] loadPrefixes() throws SQLException {
+		if (prefixes != null)
+			return prefixes;
+		long before = generation.get();
+		final List<String> keys = new ArrayList<String>();
+		esql.executeQueryForEach("SELECT DISTINCT title FROM Movies WHERE title IS NOT NULL", new Ticketmaster.RowHandler(){
+			public void row(ResultSet rs) throws SQLException {
+				String title = rs.getString(1).trim();
+				String lower = title.toLowerCase(Locale.ROOT);
+				for (int i = 0; i < lower.length(); ++i){
+					if (Character.isLetterOrDigit(lower.charAt(i)) && (i == 0 || !Character.isLetterOrDigit(lower.charAt(i - 1))))
+						keys.add(lower.substring(i) + '\u0000' + title);
+				}//end for
+			}
+		});
+		String[] sorted = keys.toArray(new String[keys.size()]);
+		Arrays.sort(sorted);
+		prefixes = sorted;
+		// invalidate() bumps the generation before clearing prefixes, so
+		// either it clears them after this or the check below does
+		if (generation.get() != before)
+			prefixes = null;
+		return sorted;
+	}//end loadPrefixes
+
+	/**
+	 * Drops the autocomplete index, to be reloaded on next use.  Called when
+	 * movies are added.
+	 */
+	public void invalidate(){
+		generation.incrementAndGet();
+		prefixes = null;
+	}
+}//end MovieSearch
@@ -0,0 +1,155 @@
+/*
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Per-show seat counts kept in show_occupancy by statement triggers on
+ * ShowSeats (migration 6), so the capacity and sales of a show are read
+ * from a handful of rows instead of counted from its seats.  Each show's
+ * counts are spread over STRIPES rows chosen by backend, so concurrent
+ * bookings for one show do not queue on a single counter row; reads add the
+ * stripes up.  reconcile() folds the stripes back into one row and corrects
+ * any drift from the seats themselves, e.g. after the triggers were disabled
+ * for a bulk load.
+ *
+ */
+
+public class Occupancy{
+	//rows per show the triggers spread their updates over
+	static final int STRIPES = 8;
+
+	static final String[] SCHEMA = {
+		"CREATE TABLE IF NOT EXISTS show_occupancy (sid integer NOT NULL REFERENCES Shows (sid) ON DELETE CASCADE, " +
+			"stripe smallint NOT NULL, capacity integer NOT NULL DEFAULT 0, taken integer NOT NULL DEFAULT 0, PRIMARY KEY (sid, stripe))",
+		"CREATE OR REPLACE FUNCTION show_occupancy_apply() RETURNS trigger LANGUAGE plpgsql AS $$ " +
+		"BEGIN " +
+			"IF TG_OP = 'INSERT' THEN " +
+				"INSERT INTO show_occupancy (sid, stripe, capacity, taken) " +
+				"SELECT sid, pg_backend_pid() % " + STRIPES + ", COUNT(*), COUNT(bid) FROM new_rows GROUP BY sid " +
+				"ON CONFLICT (sid, stripe) DO UPDATE SET capacity = show_occupancy.capacity + EXCLUDED.capacity, taken = show_occupancy.taken + EXCLUDED.taken; " +
+			"ELSIF TG_OP = 'DELETE' THEN " +
+				"INSERT INTO show_occupancy (sid, stripe, capacity, taken) " +
+				"SELECT sid, pg_backend_pid() % " + STRIPES + ", -COUNT(*), -COUNT(bid) FROM old_rows o WHERE EXISTS (SELECT 1 FROM Shows s WHERE s.sid = o.sid) GROUP BY sid " +
+				"ON CONFLICT (sid, stripe) DO UPDATE SET capacity = show_occupancy.capacity + EXCLUDED.capacity, taken = show_occupancy.taken + EXCLUDED.taken; " +
+			"ELSE " +
+				"INSERT INTO show_occupancy (sid, stripe, capacity, taken) " +
+				"SELECT sid, pg_backend_pid() % " + STRIPES + ", SUM(c), SUM(t) FROM (" +
+					"SELECT sid, 1 AS c, (bid IS NOT NULL)::int AS t FROM new_rows " +
+					"UNION ALL SELECT sid, -1, -(bid IS NOT NULL)::int FROM old_rows) d " +
+				"GROUP BY sid HAVING SUM(c) <> 0 OR SUM(t) <> 0 " +
+				"ON CONFLICT (sid, stripe) DO UPDATE SET capacity = show_occupancy.capacity + EXCLUDED.capacity, taken = show_occupancy.taken + EXCLUDED.taken; " +
+			"END IF; " +
+			"RETURN NULL; " +
+		"END $$",
+		"DROP TRIGGER IF EXISTS showseats_occupancy_insert ON ShowSeats",
+		"CREATE TRIGGER showseats_occupancy_insert AFTER INSERT ON ShowSeats REFERENCING NEW TABLE AS new_rows " +
+			"FOR EACH STATEMENT EXECUTE FUNCTION show_occupancy_apply()",
+		"DROP TRIGGER IF EXISTS showseats_occupancy_update ON ShowSeats",
+		"CREATE TRIGGER showseats_occupancy_update AFTER UPDATE ON ShowSeats REFERENCING OLD TABLE AS old_rows NEW TABLE AS new_rows " +
+			"FOR EACH STATEMENT EXECUTE FUNCTION show_occupancy_apply()",
+		"DROP TRIGGER IF EXISTS showseats_occupancy_delete ON ShowSeats",
+		"CREATE TRIGGER showseats_occupancy_delete AFTER DELETE ON ShowSeats REFERENCING OLD TABLE AS old_rows " +
+			"FOR EACH STATEMENT EXECUTE FUNCTION show_occupancy_apply()",
+		// the triggers hold off writers to ShowSeats until the migration commits, so the counts start exact
+		"DELETE FROM show_occupancy",
+		"INSERT INTO show_occupancy (sid, stripe, capacity, taken) SELECT sid, 0, COUNT(*), COUNT(bid) FROM ShowSeats GROUP BY sid"
+	};
+
+	private static final String RECONCILE =
+		"WITH folded AS (DELETE FROM show_occupancy WHERE stripe <> 0 RETURNING sid, capacity, taken), " +
+		"kept AS (SELECT sid, SUM(capacity) AS capacity, SUM(taken) AS taken FROM " +
+			"(SELECT sid, capacity, taken FROM show_occupancy WHERE stripe = 0 UNION ALL SELECT sid, capacity, taken FROM folded) k GROUP BY sid), " +
+		"actual AS (SELECT sid, COUNT(*) AS capacity, COUNT(bid) AS taken FROM ShowSeats GROUP BY sid), " +
+		"fixed AS (INSERT INTO show_occupancy (sid, stripe, capacity, taken) " +
+			"SELECT COALESCE(a.sid, k.sid), 0, COALESCE(a.capacity, 0), COALESCE(a.taken, 0) FROM actual a FULL JOIN kept k ON k.sid = a.sid " +
+			"WHERE EXISTS (SELECT 1 FROM Shows s WHERE s.sid = COALESCE(a.sid, k.sid)) " +
+			"ON CONFLICT (sid, stripe) DO UPDATE SET capacity = EXCLUDED.capacity, taken = EXCLUDED.taken " +
+			"RETURNING sid, capacity, taken) " +
+		"SELECT (SELECT COUNT(*) FROM fixed), (SELECT COUNT(*) FROM fixed f JOIN kept k ON k.sid = f.sid WHERE k.capacity <> f.capacity OR k.taken <> f.taken) + " +
+			"(SELECT COUNT(*) FROM fixed f WHERE NOT EXISTS (SELECT 1 FROM kept k WHERE k.sid = f.sid))";
+	public static final List<String> SELL_THROUGH_COLUMNS = Arrays.asList("sid", "title", "sdate", "sttime", "capacity", "taken", "pct");
+	private static final String SELL_THROUGH =
+		"SELECT o.sid, m.title, s.sdate, s.sttime, o.capacity, o.taken, " +
+			"CASE WHEN o.capacity > 0 THEN ROUND(100.0 * o.taken / o.capacity, 1) ELSE 0 END AS pct " +
+		"FROM (SELECT sid, SUM(capacity) AS capacity, SUM(taken) AS taken FROM show_occupancy GROUP BY sid) o " +
+		"JOIN Shows s ON s.sid = o.sid JOIN Movies m ON m.mvid = s.mvid " +
+		"WHERE s.sdate >= CURRENT_DATE ORDER BY pct DESC, o.sid LIMIT ?";
+
+	private final Ticketmaster esql;
+
+	/**
+	 * The seat counts of one show.
+	 */
+	public static class Counts{
+		public final int capacity;
+		public final int taken;
+
+		Counts(int capacity, int taken){
+			this.capacity = capacity;
+			this.taken = taken;
+		}
+
+		public int free(){
+			return capacity - taken;
+		}
+	}
+
+	public Occupancy(Ticketmaster esql){
+		this.esql = esql;
+	}
+
+	/**
+	 * @param sid the show
+	 * @return its seats and how many are taken, zero for a show without seats
+	 * @throws java.sql.SQLException when the counts cannot be read
+	 */
+	public Counts get(int sid) throws SQLException {
+		List<String> row = esql.executeQueryAndReturnResult(
+			"SELECT COALESCE(SUM(capacity), 0), COALESCE(SUM(taken), 0) FROM show_occupancy WHERE sid = ?", sid).get(0);
+		return new Counts(Integer.parseInt(row.get(0)), Integer.parseInt(row.get(1)));
+	}
+
+	/**
+	 * Lists the upcoming shows by the share of their seats sold.  The counts
+	 * are read live, not through the catalog cache.
+	 *
+	 * @param limit the most shows listed
+	 * @return sid, title, date, start time, capacity, taken and percent
+	 * taken, as named by SELL_THROUGH_COLUMNS
+	 * @throws java.sql.SQLException when the counts cannot be read
+	 */
+	public List<List<String>> sellThrough(int limit) throws SQLException {
+		return esql.executeQueryAndReturnResult(SELL_THROUGH, limit);
+	}
+
+	/**
+	 * Folds every show's stripes into one row and recounts the shows whose
+	 * counts drifted from their seats.  Seat changes wait while it counts,
+	 * so the counts it writes are exact.
+	 *
+	 * @return the number of shows whose counts were wrong
+	 * @throws java.sql.SQLException when the counts cannot be rewritten
+	 */
+	public int reconcile() throws SQLException {
+		long start = System.nanoTime();
+		List<String> row = esql.inTransaction(new Ticketmaster.Work<List<String>>(){
+			public List<String> run() throws SQLException {
+				esql.executeUpdate("LOCK TABLE ShowSeats IN SHARE MODE");
+				return esql.executeQueryAndReturnResult(RECONCILE).get(0);
+			}
+		});
+		int drifted = Integer.parseInt(row.get(1));
+		System.out.println(String.format("Reconciled %s show(s), %d drifted, in %.2f s", row.get(0), drifted, (System.nanoTime() - start) / 1e9));
+		return drifted;
+	}
+}//end Occupancy
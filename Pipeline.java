@@ -0,0 +1,128 @@
+/*
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.BiConsumer;
+
+/**
+ * Collects statements and runs them with as few round trips as possible.
+ * A transactional pipeline sends all of its statements in one message and
+ * the server runs them as one transaction, so later statements may depend
+ * on earlier ones through SQL (currval, subqueries).  A non-transactional
+ * pipeline is for independent statements: they run at the same time on
+ * separate pooled connections.
+ *
+ *   Pipeline p = esql.pipeline(true);
+ *   p.update("UPDATE ...", a);
+ *   CompletableFuture<List<List<String>>> rows = p.query("SELECT ...", b);
+ *   p.execute();
+ *
+ */
+
+public class Pipeline{
+	private final Ticketmaster esql;
+	private final boolean transactional;
+	private final List<String> sqls = new ArrayList<String>();
+	private final List<Object[]> params = new ArrayList<Object[]>();
+	private final List<CompletableFuture<Object>> results = new ArrayList<CompletableFuture<Object>>();
+	private final List<Boolean> queries = new ArrayList<Boolean>();
+	private boolean executed = false;
+
+	Pipeline(Ticketmaster esql, boolean transactional){
+		this.esql = esql;
+		this.transactional = transactional;
+	}
+
+	/**
+	 * Adds an INSERT, UPDATE or DELETE.
+	 *
+	 * @return the number of rows affected, once the pipeline has run
+	 */
+	@SuppressWarnings("unchecked")
+	public CompletableFuture<Integer> update(String sql, Object... values){
+		return (CompletableFuture<Integer>) (CompletableFuture<?>) add(sql, values, false);
+	}
+
+	/**
+	 * Adds a query.
+	 *
+	 * @return the rows, once the pipeline has run
+	 */
+	@SuppressWarnings("unchecked")
+	public CompletableFuture<List<List<String>>> query(String sql, Object... values){
+		return (CompletableFuture<List<List<String>>>) (CompletableFuture<?>) add(sql, values, true);
+	}
+
+	private CompletableFuture<Object> add(String sql, Object[] values, boolean query){
+		if (executed)
+			throw new IllegalStateException("The pipeline has already run");
+		CompletableFuture<Object> result = new CompletableFuture<Object>();
+		sqls.add(sql);
+		params.add(values);
+		queries.add(query);
+		results.add(result);
+		return result;
+	}
+
+	/**
+	 * Runs every statement and completes their futures.
+	 *
+	 * @throws java.sql.SQLException the first error; in a transactional
+	 * pipeline nothing took effect, otherwise the other statements did
+	 */
+	public void execute() throws SQLException {
+		if (executed || sqls.isEmpty())
+			return;
+		executed = true;
+		if (transactional){
+			List<Object> values;
+			try{
+				values = esql.executePipeline(sqls, params);
+			}catch (SQLException e){
+				for (CompletableFuture<Object> result : results)
+					result.completeExceptionally(e);
+				throw e;
+			}//end try
+			for (int i = 0; i < results.size(); ++i)
+				results.get(i).complete(values.get(i));
+			return;
+		}//end if
+
+		List<CompletableFuture<?>> pending = new ArrayList<CompletableFuture<?>>();
+		for (int i = 0; i < sqls.size(); ++i){
+			final CompletableFuture<Object> result = results.get(i);
+			CompletableFuture<?> step = queries.get(i)
+				? esql.executeQueryAndReturnResultAsync(sqls.get(i), params.get(i))
+				: esql.executeUpdateAsync(sqls.get(i), params.get(i));
+			pending.add(step.whenComplete(new BiConsumer<Object, Throwable>(){
+				public void accept(Object value, Throwable error){
+					if (error != null)
+						result.completeExceptionally(error);
+					else
+						result.complete(value);
+				}
+			}));
+		}//end for
+		SQLException first = null;
+		for (CompletableFuture<?> step : pending){
+			try{
+				Ticketmaster.await(step);
+			}catch (SQLException e){
+				if (first == null)
+					first = e;
+			}//end try
+		}//end for
+		if (first != null)
+			throw first;
+	}//end execute
+}//end Pipeline
@@ -0,0 +1,149 @@
+/*
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Collects the SQL templates the program runs, with the values last bound
+ * to each, and then explains every one with EXPLAIN (ANALYZE, BUFFERS).
+ * Statements that change data are explained inside a transaction that is
+ * rolled back.  A template is flagged when its plan reads a table with a
+ * sequential scan that goes through at least minRows rows, which usually
+ * means an index is missing.
+ *
+ */
+
+public class QueryAdvisor{
+	private static final Pattern SEQ_SCAN = Pattern.compile("Seq Scan on (\\S+).*\\(actual time=\\S+ rows=(\\d+) loops=(\\d+)\\)");
+	private static final Pattern REMOVED = Pattern.compile("Rows Removed by Filter: (\\d+)");
+	private static final Pattern EXECUTION = Pattern.compile("Execution Time: (\\S+) ms");
+
+	private final Ticketmaster esql;
+	private final long minRows;
+	private final Map<String, Object[]> templates = new ConcurrentHashMap<String, Object[]>();
+
+	/**
+	 * Thrown to roll back an explained statement, carrying its plan out.
+	 */
+	private static class Rollback extends SQLException{
+		private static final long serialVersionUID = 1L;
+
+		final List<List<String>> plan;
+
+		Rollback(List<List<String>> plan){
+			this.plan = plan;
+		}
+	}
+
+	public QueryAdvisor(Ticketmaster esql, long minRows){
+		this.esql = esql;
+		this.minRows = minRows;
+	}
+
+	/**
+	 * Records a statement about to run.  Utility statements and several
+	 * statements sent together cannot be explained and are skipped.
+	 */
+	public void capture(String sql, Object[] params){
+		String verb = sql.trim().split("\\s+", 2)[0].toUpperCase(Locale.ROOT);
+		if (sql.indexOf(';') >= 0)
+			return;
+		if (verb.equals("SELECT") || verb.equals("WITH") || verb.equals("INSERT") || verb.equals("UPDATE") || verb.equals("DELETE"))
+			templates.put(sql, params.clone());
+	}
+
+	/**
+	 * @return the number of templates captured so far
+	 */
+	public int size(){
+		return templates.size();
+	}
+
+	/**
+	 * Explains every captured template and prints its execution time,
+	 * buffer use and any sequential scans over minRows rows.
+	 *
+	 * @return the number of templates flagged
+	 */
+	public int report(){
+		List<String> sqls = new ArrayList<String>(templates.keySet());
+		Collections.sort(sqls);
+		int flagged = 0;
+		for (String sql : sqls){
+			System.out.println(sql);
+			List<String> plan;
+			try{
+				plan = explain(sql, templates.get(sql));
+			}catch (SQLException e){
+				System.out.println("  could not explain: " + e.getMessage());
+				continue;
+			}//end try
+			String time = "?";
+			String buffers = null;
+			List<String> scans = new ArrayList<String>();
+			for (int i = 0; i < plan.size(); ++i){
+				String line = plan.get(i);
+				Matcher m = SEQ_SCAN.matcher(line);
+				if (m.find()){
+					long rows = Long.parseLong(m.group(2)) * Long.parseLong(m.group(3));
+					if (i + 1 < plan.size()){
+						Matcher removed = REMOVED.matcher(plan.get(i + 1));
+						if (removed.find())
+							rows += Long.parseLong(removed.group(1)) * Long.parseLong(m.group(3));
+					}//end if
+					if (rows >= minRows)
+						scans.add(m.group(1) + " (" + rows + " rows)");
+					continue;
+				}//end if
+				m = EXECUTION.matcher(line);
+				if (m.find())
+					time = m.group(1);
+				else if (buffers == null && line.trim().startsWith("Buffers:"))
+					buffers = line.trim().substring("Buffers:".length()).trim();
+			}//end for
+			System.out.println("  " + time + " ms" + (buffers != null ? ", buffers " + buffers : ""));
+			if (!scans.isEmpty()){
+				++flagged;
+				System.out.println("  SEQUENTIAL SCAN: " + String.join(", ", scans));
+			}//end if
+		}//end for
+		System.out.println(String.format("%d template(s) explained, %d with sequential scans of %d rows or more", sqls.size(), flagged, minRows));
+		return flagged;
+	}//end report
+
+	/**
+	 * @return the lines of the plan, from a transaction that is rolled back
+	 */
+	private List<String> explain(final String sql, final Object[] params) throws SQLException {
+		List<List<String>> rows;
+		try{
+			esql.inTransaction(new Ticketmaster.Work<Void>(){
+				public Void run() throws SQLException {
+					throw new Rollback(esql.executeQueryAndReturnResult("EXPLAIN (ANALYZE, BUFFERS) " + sql, params));
+				}
+			});
+			return Collections.emptyList();
+		}catch (Rollback r){
+			rows = r.plan;
+		}//end try
+		List<String> plan = new ArrayList<String>(rows.size());
+		for (List<String> row : rows)
+			plan.add(row.get(0));
+		return plan;
+	}//end explain
+}//end QueryAdvisor
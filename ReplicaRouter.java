@@ -0,0 +1,224 @@
+/*
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Spreads read-only queries over a set of streaming replicas, each with its
+ * own connection pool.  A replica is picked round robin or as the one with
+ * the fewest queries in flight.  A background thread checks every replica
+ * with a small query and takes it out of rotation while it is unreachable or
+ * lags the primary by more than ticketmaster.replicaMaxLagMs.  When no
+ * replica is usable borrow() returns null and the caller uses the primary.
+ *
+ */
+
+public class ReplicaRouter{
+	private static final String LAG_QUERY =
+		"SELECT CASE WHEN NOT pg_is_in_recovery() OR pg_last_wal_receive_lsn() = pg_last_wal_replay_lsn() THEN 0 " +
+		"ELSE COALESCE(EXTRACT(EPOCH FROM now() - pg_last_xact_replay_timestamp()) * 1000, 0) END::bigint";
+
+	private final List<Replica> replicas = new ArrayList<Replica>();
+	private final boolean leastLoaded;
+	private final long checkMillis;
+	private final long maxLagMillis;
+	private final AtomicInteger next = new AtomicInteger();
+	private Thread checker = null;
+	private volatile boolean running = false;
+
+	/**
+	 * One replica endpoint and its pool.
+	 */
+	public static class Replica{
+		public final String url;
+		final ConnectionPool pool;
+		final AtomicInteger inFlight = new AtomicInteger();
+		volatile boolean healthy = true;
+		volatile long lagMillis = 0;
+
+		Replica(String url, ConnectionPool pool){
+			this.url = url;
+			this.pool = pool;
+		}
+	}
+
+	/**
+	 * @param urls the JDBC URLs of the replicas
+	 * @param user the database user
+	 * @param passwd the database password
+	 * @param poolSize connections per replica
+	 * @param statementCacheSize prepared statements cached per connection
+	 * @param borrowTimeoutMillis how long to wait for a replica connection
+	 * @param leastLoaded pick the replica with the fewest queries in flight
+	 * instead of round robin
+	 * @param checkMillis how often the replicas are checked
+	 * @param maxLagMillis the replication lag above which a replica is skipped
+	 */
+	public ReplicaRouter(List<String> urls, String user, String passwd, int poolSize, int statementCacheSize,
+			long borrowTimeoutMillis, boolean leastLoaded, long checkMillis, long maxLagMillis){
+		for (String url : urls)
+			replicas.add(new Replica(url, new ConnectionPool(url, user, passwd, poolSize, statementCacheSize, borrowTimeoutMillis)));
+		this.leastLoaded = leastLoaded;
+		this.checkMillis = checkMillis;
+		this.maxLagMillis = maxLagMillis;
+	}
+
+	/**
+	 * Turns the ticketmaster.replicas setting, a comma separated list of
+	 * host:port pairs or JDBC URLs, into JDBC URLs for a database.
+	 */
+	public static List<String> urls(String setting, String dbname){
+		List<String> urls = new ArrayList<String>();
+		for (String endpoint : setting.split(",")){
+			endpoint = endpoint.trim();
+			if (endpoint.length() == 0)
+				continue;
+			urls.add(endpoint.startsWith("jdbc:") ? endpoint : "jdbc:postgresql://" + endpoint + "/" + dbname);
+		}//end for
+		return urls;
+	}
+
+	/**
+	 * Checks every replica once and starts the background checker.
+	 */
+	public synchronized void start(){
+		if (running)
+			return;
+		checkAll();
+		running = true;
+		checker = new Thread(new Runnable(){
+			public void run(){
+				while (running){
+					try{
+						Thread.sleep(checkMillis);
+					}catch (InterruptedException e){
+						return;
+					}//end try
+					checkAll();
+				}//end while
+			}
+		}, "replica-check");
+		checker.setDaemon(true);
+		checker.start();
+	}//end start
+
+	private void checkAll(){
+		for (Replica r : replicas)
+			check(r);
+	}
+
+	private void check(Replica r){
+		ConnectionPool.PooledConnection pc = null;
+		SQLException error = null;
+		try{
+			pc = r.pool.borrow();
+			ResultSet rs = pc.prepare(LAG_QUERY).executeQuery();
+			rs.next();
+			r.lagMillis = rs.getLong(1);
+			rs.close();
+		}catch (SQLException e){
+			error = e;
+			if (pc != null)
+				pc.checkBroken(e);
+		}finally{
+			if (pc != null)
+				r.pool.release(pc);
+		}//end try
+		boolean healthy = error == null && r.lagMillis <= maxLagMillis;
+		if (healthy != r.healthy)
+			System.err.println("Replica " + r.url + (healthy ? " is back in rotation" :
+				" taken out of rotation: " + (error != null ? error.getMessage() : "lagging " + r.lagMillis + " ms")));
+		r.healthy = healthy;
+	}//end check
+
+	/**
+	 * Borrows a connection from a healthy replica.
+	 *
+	 * @return the connection, or null if no replica is usable
+	 */
+	public ConnectionPool.PooledConnection borrow(){
+		int n = replicas.size();
+		int first = leastLoaded ? leastLoadedIndex() : Math.floorMod(next.getAndIncrement(), n);
+		for (int i = 0; i < n; ++i){
+			Replica r = replicas.get((first + i) % n);
+			if (!r.healthy)
+				continue;
+			try{
+				ConnectionPool.PooledConnection pc = r.pool.borrow();
+				r.inFlight.incrementAndGet();
+				return pc;
+			}catch (SQLException e){
+				r.healthy = false;
+				System.err.println("Replica " + r.url + " taken out of rotation: " + e.getMessage());
+			}//end try
+		}//end for
+		return null;
+	}//end borrow
+
+	private int leastLoadedIndex(){
+		int best = 0;
+		int bestLoad = Integer.MAX_VALUE;
+		for (int i = 0; i < replicas.size(); ++i){
+			Replica r = replicas.get(i);
+			int load = r.inFlight.get();
+			if (r.healthy && load < bestLoad){
+				best = i;
+				bestLoad = load;
+			}//end if
+		}//end for
+		return best;
+	}
+
+	/**
+	 * Hands back a connection obtained from borrow().
+	 *
+	 * @return false if pc did not come from a replica
+	 */
+	public boolean release(ConnectionPool.PooledConnection pc){
+		for (Replica r : replicas){
+			if (pc.owner == r.pool){
+				r.inFlight.decrementAndGet();
+				if (pc.broken)
+					r.healthy = false;
+				r.pool.release(pc);
+				return true;
+			}//end if
+		}//end for
+		return false;
+	}
+
+	/**
+	 * @return one line per replica with its state, lag and load
+	 */
+	public String stats(){
+		StringBuilder sb = new StringBuilder();
+		for (Replica r : replicas)
+			sb.append(String.format("%s %s lag=%dms inFlight=%d connections=%d%n",
+				r.url, r.healthy ? "healthy" : "down", r.lagMillis, r.inFlight.get(), r.pool.size()));
+		return sb.toString();
+	}
+
+	/**
+	 * Stops the checker and closes the replica pools.
+	 */
+	public synchronized void close(){
+		running = false;
+		if (checker != null){
+			checker.interrupt();
+			checker = null;
+		}//end if
+		for (Replica r : replicas)
+			r.pool.close();
+	}
+}//end ReplicaRouter
@@ -0,0 +1,399 @@
+/*
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Types;
+
+/**
+ * Writes query results to a buffered character stream.  A sink is a
+ * RowHandler, so it can be passed straight to executeQueryForEach.  Column
+ * names and types are read from the metadata once, and every row is
+ * formatted into one reused buffer and written in a single call.  Integer
+ * columns are read with getLong and appended as numbers, so they cost no
+ * String per value.  Call finish() after the last row.
+ *
+ * Formats: text (the tab separated layout of executeQueryAndPrintResult),
+ * csv, json (an array with one object per line) and columnar (one JSON
+ * object of column arrays per batch of rows).
+ *
+ */
+
+public abstract class ResultSink implements Ticketmaster.RowHandler{
+	protected static final int TEXT = 0, INTEGER = 1, FLOAT = 2, DECIMAL = 3;
+
+	protected final Writer out;
+	protected final StringBuilder line = new StringBuilder(256);
+	private char[] chars = new char[256];
+	protected String[] columns = null;
+	//TEXT, INTEGER, FLOAT or DECIMAL for each column
+	protected int[] kinds = null;
+	protected int rows = 0;
+
+	protected ResultSink(Writer out){
+		this.out = out;
+	}
+
+	/**
+	 * @return a 64 KB buffered writer over System.out; flush it, do not close it
+	 */
+	public static Writer stdout(){
+		return new BufferedWriter(new OutputStreamWriter(System.out), 1 << 16);
+	}
+
+	/**
+	 * Returns the sink for a format name.
+	 *
+	 * @param format one of text, csv, json or columnar
+	 * @param out where the formatted rows go
+	 * @return a new sink
+	 * @throws java.lang.IllegalArgumentException for an unknown format
+	 */
+	public static ResultSink forFormat(String format, Writer out){
+		if (format.equalsIgnoreCase("text") || format.equalsIgnoreCase("tsv"))
+			return new Text(out);
+		if (format.equalsIgnoreCase("csv"))
+			return new Csv(out);
+		if (format.equalsIgnoreCase("json"))
+			return new JsonRows(out);
+		if (format.equalsIgnoreCase("columnar"))
+			return new Columnar(out, Integer.getInteger("ticketmaster.columnarBatch", 4096));
+		throw new IllegalArgumentException("Unknown output format: " + format);
+	}//end forFormat
+
+	public void row(ResultSet rs) throws SQLException {
+		if (columns == null){
+			ResultSetMetaData rsmd = rs.getMetaData ();
+			int numCol = rsmd.getColumnCount ();
+			columns = new String[numCol];
+			kinds = new int[numCol];
+			for (int i = 0; i < numCol; ++i){
+				columns[i] = rsmd.getColumnName (i + 1);
+				kinds[i] = kind (rsmd.getColumnType (i + 1));
+			}//end for
+			begin ();
+		}//end if
+		format (rs);
+		++rows;
+	}//end row
+
+	/**
+	 * Writes whatever the format needs after the last row and flushes.
+	 *
+	 * @return the number of rows written
+	 * @throws java.sql.SQLException when the output cannot be written
+	 */
+	public int finish() throws SQLException {
+		end ();
+		try{
+			out.flush ();
+		}catch (IOException e){
+			throw new SQLException("Unable to write result: " + e.getMessage(), e);
+		}//end try
+		return rows;
+	}//end finish
+
+	/** Called with the metadata loaded, before the first row. */
+	protected void begin() throws SQLException {
+	}
+
+	/** Formats and writes the current row. */
+	protected abstract void format(ResultSet rs) throws SQLException;
+
+	/** Called once after the last row. */
+	protected void end() throws SQLException {
+	}
+
+	/**
+	 * Writes the line buffer to the output and empties it.
+	 */
+	protected void writeLine() throws SQLException {
+		int len = line.length ();
+		if (chars.length < len)
+			chars = new char[Math.max(len, chars.length * 2)];
+		line.getChars (0, len, chars, 0);
+		line.setLength (0);
+		try{
+			out.write (chars, 0, len);
+		}catch (IOException e){
+			throw new SQLException("Unable to write result: " + e.getMessage(), e);
+		}//end try
+	}//end writeLine
+
+	/**
+	 * Appends a numeric column of the current row to the line buffer.
+	 * Integers are read with getLong; with json set, floating point columns
+	 * are read with getDouble, otherwise as the server formats them.
+	 *
+	 * @param i the column, from 1
+	 * @param json whether NaN and the infinities must be written as null
+	 * @return false, with nothing appended, when the value is NULL
+	 */
+	protected boolean appendNumber(ResultSet rs, int i, boolean json) throws SQLException {
+		if (kinds[i - 1] == INTEGER){
+			long v = rs.getLong (i);
+			if (rs.wasNull ())
+				return false;
+			line.append(v);
+			return true;
+		}//end if
+		if (kinds[i - 1] == FLOAT && json){
+			double v = rs.getDouble (i);
+			if (rs.wasNull ())
+				return false;
+			appendJson(v);
+			return true;
+		}//end if
+		String v = rs.getString (i);
+		if (v == null)
+			return false;
+		if (json)
+			appendJson(v);
+		else
+			line.append(v);
+		return true;
+	}//end appendNumber
+
+	/**
+	 * Appends a floating point value as a JSON number, or null for NaN and
+	 * the infinities, which JSON has no literal for.
+	 */
+	protected void appendJson(double v){
+		if (Double.isNaN(v) || Double.isInfinite(v))
+			line.append("null");
+		else
+			line.append(v);
+	}
+
+	/**
+	 * Appends a NUMERIC value as a JSON number, or null for NaN and the
+	 * infinities.
+	 */
+	protected void appendJson(String v){
+		char c = v.charAt(v.length() - 1);
+		if (c >= '0' && c <= '9')
+			line.append(v);
+		else
+			line.append("null");
+	}
+
+	private static int kind(int type){
+		switch (type){
+			case Types.TINYINT: case Types.SMALLINT: case Types.INTEGER: case Types.BIGINT:
+				return INTEGER;
+			case Types.REAL: case Types.FLOAT: case Types.DOUBLE:
+				return FLOAT;
+			case Types.NUMERIC: case Types.DECIMAL:
+				return DECIMAL;
+			default:
+				return TEXT;
+		}//end switch
+	}
+
+	/**
+	 * Tab separated, with a header line before the first row and a tab after
+	 * every value, as executeQueryAndPrintResult has always printed.
+	 */
+	public static class Text extends ResultSink{
+		public Text(Writer out){
+			super(out);
+		}
+
+		protected void begin() throws SQLException {
+			for (int i = 0; i < columns.length; ++i)
+				line.append(columns[i]).append('\t');
+			line.append('\n');
+			writeLine ();
+		}
+
+		protected void format(ResultSet rs) throws SQLException {
+			for (int i = 1; i <= columns.length; ++i){
+				if (kinds[i - 1] == TEXT)
+					line.append(rs.getString (i));
+				else if (!appendNumber (rs, i, false))
+					line.append("null");
+				line.append('\t');
+			}//end for
+			line.append('\n');
+			writeLine ();
+		}
+	}//end Text
+
+	/**
+	 * Comma separated values with a header line, quoted as in RFC 4180.
+	 * NULL is written as an empty field.
+	 */
+	public static class Csv extends ResultSink{
+		public Csv(Writer out){
+			super(out);
+		}
+
+		protected void begin() throws SQLException {
+			for (int i = 0; i < columns.length; ++i){
+				if (i > 0)
+					line.append(',');
+				field(columns[i]);
+			}//end for
+			line.append("\r\n");
+			writeLine ();
+		}
+
+		protected void format(ResultSet rs) throws SQLException {
+			for (int i = 1; i <= columns.length; ++i){
+				if (i > 1)
+					line.append(',');
+				if (kinds[i - 1] != TEXT){
+					appendNumber (rs, i, false);
+					continue;
+				}//end if
+				String value = rs.getString (i);
+				if (value != null)
+					field(value);
+			}//end for
+			line.append("\r\n");
+			writeLine ();
+		}
+
+		private void field(String value){
+			boolean quote = false;
+			for (int i = 0; i < value.length() && !quote; ++i){
+				char c = value.charAt(i);
+				quote = c == ',' || c == '"' || c == '\n' || c == '\r';
+			}//end for
+			if (!quote){
+				line.append(value);
+				return;
+			}//end if
+			line.append('"');
+			for (int i = 0; i < value.length(); ++i){
+				char c = value.charAt(i);
+				if (c == '"')
+					line.append('"');
+				line.append(c);
+			}//end for
+			line.append('"');
+		}
+	}//end Csv
+
+	/**
+	 * A JSON array with one object per row, one row per line.  Numeric
+	 * columns are written unquoted, NaN and infinities as null.
+	 */
+	public static class JsonRows extends ResultSink{
+		public JsonRows(Writer out){
+			super(out);
+		}
+
+		protected void format(ResultSet rs) throws SQLException {
+			line.append(rows == 0 ? "[\n{" : ",\n{");
+			for (int i = 1; i <= columns.length; ++i){
+				if (i > 1)
+					line.append(',');
+				Json.quote(line, columns[i - 1]).append(':');
+				if (kinds[i - 1] == TEXT)
+					Json.quote(line, rs.getString (i));
+				else if (!appendNumber (rs, i, true))
+					line.append("null");
+			}//end for
+			line.append('}');
+			writeLine ();
+		}
+
+		protected void end() throws SQLException {
+			line.append(rows == 0 ? "[]\n" : "\n]\n");
+			writeLine ();
+		}
+	}//end JsonRows
+
+	/**
+	 * Collects up to batchSize rows column by column and writes each batch
+	 * as one JSON object mapping column names to arrays of values, one batch
+	 * per line.  The column arrays are reused from batch to batch; integer
+	 * and floating point columns are kept in long and double arrays.
+	 */
+	public static class Columnar extends ResultSink{
+		private final int batchSize;
+		//a long[], double[] or String[] per column
+		private Object[] values;
+		private boolean[][] nulls;
+		private int filled = 0;
+
+		public Columnar(Writer out, int batchSize){
+			super(out);
+			this.batchSize = batchSize;
+		}
+
+		protected void begin() throws SQLException {
+			values = new Object[columns.length];
+			nulls = new boolean[columns.length][batchSize];
+			for (int i = 0; i < columns.length; ++i){
+				if (kinds[i] == INTEGER)
+					values[i] = new long[batchSize];
+				else if (kinds[i] == FLOAT)
+					values[i] = new double[batchSize];
+				else
+					values[i] = new String[batchSize];
+			}//end for
+		}
+
+		protected void format(ResultSet rs) throws SQLException {
+			for (int i = 0; i < columns.length; ++i){
+				if (kinds[i] == INTEGER)
+					((long[]) values[i])[filled] = rs.getLong (i + 1);
+				else if (kinds[i] == FLOAT)
+					((double[]) values[i])[filled] = rs.getDouble (i + 1);
+				else
+					((String[]) values[i])[filled] = rs.getString (i + 1);
+				nulls[i][filled] = rs.wasNull ();
+			}//end for
+			if (++filled == batchSize)
+				flushBatch ();
+		}
+
+		protected void end() throws SQLException {
+			if (filled > 0)
+				flushBatch ();
+		}
+
+		private void flushBatch() throws SQLException {
+			line.append('{');
+			for (int i = 0; i < columns.length; ++i){
+				if (i > 0)
+					line.append(',');
+				Json.quote(line, columns[i]).append(":[");
+				for (int r = 0; r < filled; ++r){
+					if (r > 0)
+						line.append(',');
+					if (nulls[i][r])
+						line.append("null");
+					else if (kinds[i] == INTEGER)
+						line.append(((long[]) values[i])[r]);
+					else if (kinds[i] == FLOAT)
+						appendJson(((double[]) values[i])[r]);
+					else if (kinds[i] == DECIMAL)
+						appendJson(((String[]) values[i])[r]);
+					else
+						Json.quote(line, ((String[]) values[i])[r]);
+					if (values[i] instanceof String[])
+						((String[]) values[i])[r] = null;
+				}//end for
+				line.append(']');
+			}//end for
+			line.append("}\n");
+			writeLine ();
+			filled = 0;
+		}
+	}//end Columnar
+}//end ResultSink
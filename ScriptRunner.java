@@ -0,0 +1,256 @@
+/*
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs a file of menu operations unattended, on a number of worker threads
+ * sharing the connection pool.  Each line is one operation, either as JSON
+ *
+ *   {"op": 2, "args": ["12", "2020-08-01 10:00:00", "2", "a@b.com", "A1", "A2", "card", "yes"]}
+ *
+ * or as CSV whose first field is the operation:
+ *
+ *   CancelPendingBookings
+ *   14,a@b.com
+ *
+ * The operation is a menu number or an operation name such as AddBooking.
+ * The arguments are the answers to the operation's prompts, in order.  Blank
+ * lines and lines starting with # are skipped.
+ *
+ * Operations run in no particular order, so on their own they must not
+ * depend on each other.  Operations that do, such as a booking and its
+ * payment, share a session, given as "session" in JSON or after an @ in the
+ * CSV operation field (AddBooking@alice); a session's operations run in file
+ * order, one after the other, on one worker.  Each operation's output is
+ * printed in one piece when it finishes, unless ticketmaster.scriptQuiet is
+ * set.  A throughput and latency summary is printed at the end.
+ *
+ */
+
+public class ScriptRunner{
+	private final Ticketmaster esql;
+	private final int threads;
+	private final boolean quiet;
+
+	/**
+	 * One line of the script.
+	 */
+	static class Task{
+		final int line;
+		final int choice;
+		final List<String> args;
+		final String session;
+
+		Task(int line, int choice, List<String> args, String session){
+			this.line = line;
+			this.choice = choice;
+			this.args = args;
+			this.session = session;
+		}
+	}
+
+	public ScriptRunner(Ticketmaster esql, int threads, boolean quiet){
+		this.esql = esql;
+		this.threads = threads;
+		this.quiet = quiet;
+	}
+
+	/**
+	 * Reads and parses a script file.
+	 *
+	 * @param file the script
+	 * @return the operations in file order
+	 * @throws java.io.IOException when the file cannot be read or a line is invalid
+	 */
+	public static List<Task> read(String file) throws IOException {
+		List<Task> tasks = new ArrayList<Task>();
+		BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+		try{
+			String line;
+			int number = 0;
+			while ((line = reader.readLine()) != null){
+				++number;
+				line = line.trim();
+				if (line.length() == 0 || line.startsWith("#"))
+					continue;
+				try{
+					tasks.add(parse(number, line));
+				}catch (IllegalArgumentException e){
+					throw new IOException(file + ":" + number + ": " + e.getMessage());
+				}//end try
+			}//end while
+		}finally{
+			reader.close();
+		}//end try
+		return tasks;
+	}//end read
+
+	static Task parse(int number, String line) throws IOException {
+		Object op;
+		String session = null;
+		List<String> args = new ArrayList<String>();
+		if (line.startsWith("{")){
+			Object parsed = Json.parse(line);
+			if (!(parsed instanceof Map))
+				throw new IllegalArgumentException("Expected a JSON object");
+			Map<?, ?> map = (Map<?, ?>) parsed;
+			op = map.get("op");
+			if (map.get("session") != null)
+				session = String.valueOf(map.get("session"));
+			Object list = map.get("args");
+			if (list instanceof List){
+				for (Object arg : (List<?>) list)
+					args.add(arg == null ? "" : String.valueOf(arg));
+			}//end if
+		} else {
+			List<String> fields = BulkLoader.readRecord(new BufferedReader(new StringReader(line)));
+			String field = fields.get(0).trim();
+			int at = field.indexOf('@');
+			if (at >= 0){
+				session = field.substring(at + 1);
+				field = field.substring(0, at);
+			}//end if
+			op = field;
+			args.addAll(fields.subList(1, fields.size()));
+		}//end if
+		if (session != null && session.length() == 0)
+			throw new IllegalArgumentException("Empty session");
+		return new Task(number, choice(op), args, session);
+	}//end parse
+
+	/**
+	 * Resolves a menu number or operation name to a menu choice.
+	 */
+	static int choice(Object op){
+		if (op instanceof Number)
+			return check(((Number) op).intValue());
+		String name = String.valueOf(op);
+		if (name.matches("\\d+"))
+			return check(Integer.parseInt(name));
+		for (int i = 1; i < Ticketmaster.OPERATIONS.length; ++i){
+			if (Ticketmaster.OPERATIONS[i].equalsIgnoreCase(name))
+				return i;
+		}//end for
+		throw new IllegalArgumentException("Unknown operation " + name);
+	}
+
+	private static int check(int choice){
+		if (choice < 1 || choice >= Ticketmaster.OPERATIONS.length)
+			throw new IllegalArgumentException("Unknown operation " + choice);
+		return choice;
+	}
+
+	/**
+	 * Runs every task and prints the summary.  Tasks without a session run
+	 * on their own; the tasks of a session run in order on one worker.
+	 *
+	 * @param tasks the operations to run
+	 * @return the number of operations that failed
+	 * @throws java.lang.InterruptedException when interrupted while waiting
+	 */
+	public int run(List<Task> tasks) throws InterruptedException {
+		SessionIO.install();
+		final AtomicInteger failed = new AtomicInteger();
+		ExecutorService workers = Executors.newFixedThreadPool(threads);
+		long start = System.nanoTime();
+		for (final List<Task> sequence : sequences(tasks)){
+			workers.execute(new Runnable(){
+				public void run(){
+					for (Task task : sequence){
+						if (!execute(task))
+							failed.incrementAndGet();
+					}//end for
+				}
+			});
+		}//end for
+		workers.shutdown();
+		workers.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+		double secs = (System.nanoTime() - start) / 1e9;
+
+		System.out.println();
+		System.out.println(String.format("Ran %d operations on %d threads in %.2f s: %.1f ops/s, %d failed",
+			tasks.size(), threads, secs, secs > 0 ? tasks.size() / secs : 0.0, failed.get()));
+		System.out.print(esql.metrics().report());
+		return failed.get();
+	}//end run
+
+	/**
+	 * Splits the tasks into the sequences that must run in order: one per
+	 * session, and one for each task without a session, in the order they
+	 * first appear.
+	 */
+	static List<List<Task>> sequences(List<Task> tasks){
+		List<List<Task>> sequences = new ArrayList<List<Task>>();
+		Map<String, List<Task>> sessions = new LinkedHashMap<String, List<Task>>();
+		for (Task task : tasks){
+			if (task.session == null){
+				List<Task> single = new ArrayList<Task>(1);
+				single.add(task);
+				sequences.add(single);
+				continue;
+			}//end if
+			List<Task> sequence = sessions.get(task.session);
+			if (sequence == null){
+				sequence = new ArrayList<Task>();
+				sessions.put(task.session, sequence);
+				sequences.add(sequence);
+			}//end if
+			sequence.add(task);
+		}//end for
+		return sequences;
+	}//end sequences
+
+	/**
+	 * Runs one task on the calling thread.
+	 *
+	 * @return false if the operation failed
+	 */
+	boolean execute(Task task){
+		ByteArrayOutputStream captured = quiet ? null : new ByteArrayOutputStream();
+		OutputStream out = quiet ? SessionIO.NULL : captured;
+		boolean ok = true;
+		SessionIO.bind(task.args, out);
+		esql.session(task.session);
+		try{
+			Ticketmaster.dispatch(esql, task.choice);
+		}catch (Exception e){
+			ok = false;
+			e.printStackTrace(new java.io.PrintStream(out, true));
+		}finally{
+			esql.session(null);
+			SessionIO.unbind();
+		}//end try
+		// the operations report their own failures through the metrics
+		ok = ok && !esql.metrics().failed();
+		if (captured != null){
+			synchronized (System.out){
+				System.out.println("--- line " + task.line + ": " + Ticketmaster.OPERATIONS[task.choice] + (ok ? "" : " (failed)"));
+				System.out.print(captured.toString());
+				System.out.flush();
+			}
+		}//end if
+		return ok;
+	}//end execute
+}//end ScriptRunner
@@ -0,0 +1,298 @@
+/*
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * In-memory seat maps for the shows being booked.  A show's seats are
+ * loaded with one query the first time they are needed and kept as parallel
+ * arrays indexed by slot, in csid order: csid, seat number and price, with
+ * the taken seats in a BitSet and one BitSet per price.  Counting the free
+ * seats, listing them and finding free seats at a given price are bit
+ * operations over seats/64 words.
+ *
+ * The maps follow the bookings made through BookingEngine.  Paths that free
+ * seats in bulk invalidate them, and maps older than
+ * ticketmaster.seatIndexTtlMs are reloaded, so changes made by other
+ * processes are picked up.  The database stays the authority: a claim that
+ * finds a seat already taken invalidates the show.
+ *
+ */
+
+public class SeatIndex{
+	private final Ticketmaster esql;
+	private final int maxShows;
+	private final long ttlMillis;
+	private final LinkedHashMap<Integer, Show> shows;
+	//the change count at each show's last change, kept while loads are in
+	//flight so a load that raced with a change to its show is not cached
+	private final HashMap<Integer, Long> stamps = new HashMap<Integer, Long>();
+	private long changes = 0;
+	private long clears = 0;
+	private int inFlight = 0;
+	private long hits = 0;
+	private long loads = 0;
+
+	/**
+	 * The seat map of one show.
+	 */
+	public static class Show{
+		public final int sid;
+		private final int[] csids;
+		private final String[] snos;
+		private final int[] prices;
+		private final Map<String, Integer> slots;
+		private final BitSet taken;
+		private final int[] priceLevels;
+		private final BitSet[] atPrice;
+		final long loadedAt;
+
+		Show(int sid, int[] csids, String[] snos, int[] prices, BitSet taken){
+			this.sid = sid;
+			this.csids = csids;
+			this.snos = snos;
+			this.prices = prices;
+			this.taken = taken;
+			this.loadedAt = System.currentTimeMillis();
+			this.slots = new HashMap<String, Integer>(snos.length * 2);
+			for (int i = 0; i < snos.length; ++i)
+				slots.put(snos[i], i);
+			int[] levels = prices.clone();
+			Arrays.sort(levels);
+			int n = 0;
+			for (int i = 0; i < levels.length; ++i){
+				if (i == 0 || levels[i] != levels[i - 1])
+					levels[n++] = levels[i];
+			}//end for
+			this.priceLevels = Arrays.copyOf(levels, n);
+			this.atPrice = new BitSet[n];
+			for (int i = 0; i < n; ++i)
+				atPrice[i] = new BitSet(csids.length);
+			for (int i = 0; i < prices.length; ++i)
+				atPrice[Arrays.binarySearch(priceLevels, prices[i])].set(i);
+		}
+
+		/**
+		 * @return the number of seats in the show
+		 */
+		public int size(){
+			return csids.length;
+		}
+
+		public synchronized int freeCount(){
+			return csids.length - taken.cardinality();
+		}
+
+		/**
+		 * @return the seat numbers of the free seats, in csid order
+		 */
+		public synchronized List<String> free(){
+			List<String> result = new ArrayList<String>(csids.length - taken.cardinality());
+			for (int i = taken.nextClearBit(0); i < csids.length; i = taken.nextClearBit(i + 1))
+				result.add(snos[i]);
+			return result;
+		}
+
+		/**
+		 * @return the seat numbers of the free seats costing price, in csid order
+		 */
+		public synchronized List<String> freeAtPrice(int price){
+			List<String> result = new ArrayList<String>();
+			int level = Arrays.binarySearch(priceLevels, price);
+			if (level < 0)
+				return result;
+			BitSet candidates = (BitSet) atPrice[level].clone();
+			candidates.andNot(taken);
+			for (int i = candidates.nextSetBit(0); i >= 0; i = candidates.nextSetBit(i + 1))
+				result.add(snos[i]);
+			return result;
+		}
+
+		/**
+		 * @return the slot of a seat number, or -1 if the show has no such seat
+		 */
+		public int slot(String sno){
+			Integer slot = slots.get(sno);
+			return slot == null ? -1 : slot;
+		}
+
+		/**
+		 * @return the slot of a cinema seat, or -1 if the show has no such seat
+		 */
+		public int slotOf(int csid){
+			int slot = Arrays.binarySearch(csids, csid);
+			return slot < 0 ? -1 : slot;
+		}
+
+		public int csid(int slot){
+			return csids[slot];
+		}
+
+		public String sno(int slot){
+			return snos[slot];
+		}
+
+		public int price(int slot){
+			return prices[slot];
+		}
+
+		public synchronized boolean isFree(int slot){
+			return !taken.get(slot);
+		}
+
+		synchronized void mark(List<String> seats, boolean isTaken){
+			for (String sno : seats){
+				int slot = slot(sno);
+				if (slot >= 0)
+					taken.set(slot, isTaken);
+			}//end for
+		}
+	}//end Show
+
+	public SeatIndex(Ticketmaster esql, int maxShows, long ttlMillis){
+		this.esql = esql;
+		this.maxShows = maxShows;
+		this.ttlMillis = ttlMillis;
+		this.shows = new LinkedHashMap<Integer, Show>(16, 0.75f, true){
+			protected boolean removeEldestEntry(Map.Entry<Integer, Show> eldest){
+				return size() > SeatIndex.this.maxShows;
+			}
+		};
+	}
+
+	/**
+	 * Returns the seat map of a show, loading it if it is not cached.  A show
+	 * with no ShowSeats gets an empty map.
+	 *
+	 * @param sid the show
+	 * @return the seat map
+	 * @throws java.sql.SQLException when the seats cannot be loaded
+	 */
+	public Show get(int sid) throws SQLException {
+		long before;
+		long beforeClears;
+		synchronized (this){
+			Show show = shows.get(sid);
+			if (show != null && show.loadedAt + ttlMillis > System.currentTimeMillis()){
+				++hits;
+				return show;
+			}//end if
+			++loads;
+			++inFlight;
+			before = stamp(sid);
+			beforeClears = clears;
+		}
+		try{
+			Show show = load(sid);
+			synchronized (this){
+				if (stamp(sid) == before && clears == beforeClears)
+					shows.put(sid, show);
+			}
+			return show;
+		}finally{
+			synchronized (this){
+				if (--inFlight == 0)
+					stamps.clear();
+			}
+		}//end try
+	}//end get
+
+	private Show load(int sid) throws SQLException {
+		final int[][] ints = { new int[64], new int[64] };
+		final List<String> snos = new ArrayList<String>();
+		final BitSet taken = new BitSet();
+		esql.executeQueryForEach(
+			"SELECT ss.csid, cs.sno, ss.price, ss.bid IS NOT NULL FROM ShowSeats ss JOIN CinemaSeats cs ON cs.csid = ss.csid WHERE ss.sid = ? ORDER BY ss.csid",
+			new Ticketmaster.RowHandler(){
+				public void row(ResultSet rs) throws SQLException {
+					int n = snos.size();
+					if (n == ints[0].length){
+						ints[0] = Arrays.copyOf(ints[0], n * 2);
+						ints[1] = Arrays.copyOf(ints[1], n * 2);
+					}//end if
+					ints[0][n] = rs.getInt(1);
+					ints[1][n] = rs.getInt(3);
+					snos.add(rs.getString(2));
+					if (rs.getBoolean(4))
+						taken.set(n);
+				}
+			}, sid);
+		int n = snos.size();
+		return new Show(sid, Arrays.copyOf(ints[0], n), snos.toArray(new String[n]), Arrays.copyOf(ints[1], n), taken);
+	}//end load
+
+	private long stamp(int sid){
+		Long stamp = stamps.get(sid);
+		return stamp == null ? 0 : stamp;
+	}
+
+	private void changed(int sid){
+		if (inFlight > 0)
+			stamps.put(sid, ++changes);
+	}
+
+	/**
+	 * Records seats claimed by a committed booking.
+	 */
+	public void markTaken(int sid, List<String> snos){
+		mark(sid, snos, true);
+	}
+
+	/**
+	 * Records seats freed by a committed change.
+	 */
+	public void markFree(int sid, List<String> snos){
+		mark(sid, snos, false);
+	}
+
+	private void mark(int sid, List<String> snos, boolean isTaken){
+		Show show;
+		synchronized (this){
+			changed(sid);
+			show = shows.get(sid);
+		}
+		if (show != null)
+			show.mark(snos, isTaken);
+	}
+
+	/**
+	 * Drops one show's map, to be reloaded on next use.
+	 */
+	public synchronized void invalidate(int sid){
+		changed(sid);
+		shows.remove(sid);
+	}
+
+	/**
+	 * Drops every map.  Called by paths that free or remove seats without
+	 * knowing their shows.
+	 */
+	public synchronized void invalidateAll(){
+		++clears;
+		shows.clear();
+	}
+
+	/**
+	 * @return a one line summary of the index counters
+	 */
+	public synchronized String stats(){
+		long lookups = hits + loads;
+		return String.format("shows=%d hits=%d loads=%d hitRate=%.1f%%",
+			shows.size(), hits, loads, lookups == 0 ? 0.0 : 100.0 * hits / lookups);
+	}
+}//end SeatIndex
@@ -0,0 +1,161 @@
+/*
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.Reader;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Per-thread console for the menu operations.  The operations read their
+ * prompts from Ticketmaster.in and print to System.out; SessionIO lets a
+ * worker thread bind its own input lines and output stream, so the same
+ * operations can run unattended and in parallel.  Threads with nothing
+ * bound use the real console.  Besides what they print, the operations
+ * record their results (ids, costs, rows) through field() and rows(), for
+ * callers such as the HTTP server that reply with structured data.
+ *
+ */
+
+public class SessionIO{
+	private static final ThreadLocal<BufferedReader> input = new ThreadLocal<BufferedReader>();
+	private static final ThreadLocal<OutputStream> output = new ThreadLocal<OutputStream>();
+	private static final ThreadLocal<Result> result = new ThreadLocal<Result>();
+	private static PrintStream console = null;
+
+	/**
+	 * What an operation recorded: named fields and, for listings, a table.
+	 */
+	public static class Result{
+		public final Map<String, Object> fields = new LinkedHashMap<String, Object>();
+		//null unless the operation listed rows
+		public List<String> columns = null;
+		public final List<List<String>> rows = new ArrayList<List<String>>();
+	}//end Result
+
+	/**
+	 * Reader installed as Ticketmaster.in: returns the lines bound to the
+	 * current thread, or reads the wrapped console.
+	 */
+	public static class Input extends BufferedReader{
+		public Input(Reader console){
+			super(console);
+		}
+
+		public String readLine() throws IOException {
+			BufferedReader bound = input.get();
+			String line = bound != null ? bound.readLine() : super.readLine();
+			AuditJournal.input(line);
+			return line;
+		}
+	}//end Input
+
+	/**
+	 * Replaces System.out with a stream that writes to the output bound to
+	 * the current thread, or to the original System.out.  Safe to call more
+	 * than once.
+	 */
+	public static synchronized void install(){
+		if (console != null)
+			return;
+		console = System.out;
+		System.setOut(new PrintStream(new OutputStream(){
+			public void write(int b) throws IOException {
+				target().write(b);
+			}
+
+			public void write(byte[] b, int off, int len) throws IOException {
+				target().write(b, off, len);
+			}
+
+			public void flush() throws IOException {
+				target().flush();
+			}
+		}, true));
+	}//end install
+
+	private static OutputStream target(){
+		OutputStream out = output.get();
+		return out != null ? out : console;
+	}
+
+	/**
+	 * Binds answers and an output stream to the current thread.  Each answer
+	 * is returned by one readLine(); once they run out readLine() returns
+	 * null.
+	 *
+	 * @param answers the lines the operation will read
+	 * @param out where the operation's output goes
+	 */
+	public static void bind(List<String> answers, OutputStream out){
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < answers.size(); ++i)
+			sb.append(answers.get(i)).append('\n');
+		input.set(new BufferedReader(new StringReader(sb.toString())));
+		output.set(out);
+		result.set(new Result());
+	}
+
+	/**
+	 * Returns the current thread to the real console.
+	 */
+	public static void unbind(){
+		input.remove();
+		output.remove();
+		result.remove();
+	}
+
+	/**
+	 * @return what the operation on this thread recorded, or null when
+	 * nothing is bound
+	 */
+	public static Result result(){
+		return result.get();
+	}
+
+	/**
+	 * Records a result field of the operation on this thread; a number,
+	 * boolean, string or list of strings.  Does nothing when unbound.
+	 */
+	public static void field(String name, Object value){
+		Result r = result.get();
+		if (r != null)
+			r.fields.put(name, value);
+	}
+
+	/**
+	 * Records rows the operation listed.  Pages of the same listing are
+	 * appended to each other.  Does nothing when unbound.
+	 */
+	public static void rows(List<String> columns, List<List<String>> rows){
+		Result r = result.get();
+		if (r == null)
+			return;
+		r.columns = columns;
+		r.rows.addAll(rows);
+	}
+
+	/**
+	 * An output stream that discards everything.
+	 */
+	public static final OutputStream NULL = new OutputStream(){
+		public void write(int b){
+		}
+
+		public void write(byte[] b, int off, int len){
+		}
+	};
+}//end SessionIO
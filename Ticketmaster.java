@@ -8,18 +8,32 @@
  */
 
 
-import java.sql.DriverManager;
-import java.sql.Connection;
-import java.sql.Statement;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
 import java.io.File;
 import java.io.FileReader;
+import java.io.EOFException;
+import java.io.IOException;
 import java.io.BufferedReader;
 import java.io.InputStreamReader;
+import java.io.BufferedWriter;
+import java.io.FileOutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.util.List;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 
 /**
  * This class defines a simple embedded SQL utility class that is designed to
@@ -28,154 +42,1013 @@ import java.util.ArrayList;
  */
 
 public class Ticketmaster{
-	//reference to physical database connection
-	private Connection _connection = null;
-	static BufferedReader in = new BufferedReader(new InputStreamReader(System.in));
+	//pool of physical database connections
+	private ConnectionPool _pool = null;
+	//connection bound to the current thread by inTransaction
+	private final ThreadLocal<ConnectionPool.PooledConnection> _bound = new ThreadLocal<ConnectionPool.PooledConnection>();
+	//replicas for the list and report queries, or null to read from the primary
+	private ReplicaRouter _replicas = null;
+	//whether this thread's queries may go to a replica
+	private final ThreadLocal<Boolean> _readReplica = new ThreadLocal<Boolean>();
+	//when this thread last wrote to the primary, for read-your-writes
+	private final ThreadLocal<long[]> _lastWrite = new ThreadLocal<long[]>(){
+		protected long[] initialValue(){
+			return new long[1];
+		}
+	};
+	//the client session this thread is serving, if any
+	private final ThreadLocal<String> _session = new ThreadLocal<String>();
+	//when each client session last wrote to the primary, for read-your-writes across threads
+	private final ConcurrentHashMap<String, Long> _sessionWrites = new ConcurrentHashMap<String, Long>();
+	private volatile boolean _catalogSequencesReady = false;
+	//threads for the asynchronous helpers, created on first use
+	private ExecutorService _async = null;
+	private static final long READ_YOUR_WRITES_NANOS = Long.getLong("ticketmaster.readYourWritesMs", 5000L) * 1000000L;
+	//read-through cache for movie, show and theater listings
+	private final CatalogCache _catalog = new CatalogCache(
+		Integer.getInteger("ticketmaster.catalogCacheSize", 1024),
+		Long.getLong("ticketmaster.catalogTtlMs", 60000L));
+	//per-operation counts and latencies
+	private final Metrics _metrics = new Metrics(Long.getLong("ticketmaster.slowSqlMs", 200L));
+	//seat claims and payments
+	private final BookingEngine _bookings = new BookingEngine(this);
+	//per-show seat maps for availability lookups
+	private final SeatIndex _seats = new SeatIndex(this,
+		Integer.getInteger("ticketmaster.seatIndexShows", 1024),
+		Long.getLong("ticketmaster.seatIndexTtlMs", 30000L));
+	//cancels bookings left pending past their hold
+	private final BookingExpiry _expiry = new BookingExpiry(this,
+		Long.getLong("ticketmaster.holdMinutes", 15L) * 60000L,
+		Long.getLong("ticketmaster.expiryTickMs", 1000L),
+		Integer.getInteger("ticketmaster.expirySlots", 512),
+		Integer.getInteger("ticketmaster.expiryBatch", 50));
+	//movie search and title autocomplete
+	private final MovieSearch _search = new MovieSearch(this);
+	//paged booking and pending user reports
+	private final Listings _listings = new Listings(this);
+	//per-show seat counts kept by triggers
+	private final Occupancy _occupancy = new Occupancy(this);
+	//chunked cancel and clear jobs
+	private final BookingSweeper _sweeper = new BookingSweeper(this,
+		Integer.getInteger("ticketmaster.chunkSize", 1000),
+		System.getProperty("ticketmaster.checkpointDir", "."));
+	//journal of the operations that change data
+	private final AuditJournal _journal = new AuditJournal(System.getProperty("ticketmaster.journalDir", "journal"),
+		Integer.getInteger("ticketmaster.journalSegmentMb", 64) << 20,
+		Integer.getInteger("ticketmaster.journalBuffer", 8192),
+		Long.getLong("ticketmaster.journalFlushMs", 1000L));
+	//collects the SQL templates run, while --advise is running
+	private volatile QueryAdvisor _advisor = null;
+	static BufferedReader in = new SessionIO.Input(new InputStreamReader(System.in));
+	
+	//statements prepared while warming up, saved on exit
+	private static final String STATEMENTS_FILE = System.getProperty("ticketmaster.statementsFile", "ticketmaster.statements");
+	
+	//rows fetched per round trip by executeQueryForEach
+	private static final int FETCH_SIZE = Integer.getInteger("ticketmaster.fetchSize", 1000);
+	
+	/**
+	 * A unit of work run on a single connection by inTransaction.
+	 */
+	public interface Work<T>{
+		T run() throws SQLException;
+	}
+	
+	/**
+	 * Receives the rows of executeQueryForEach one at a time.
+	 */
+	public interface RowHandler{
+		void row(ResultSet rs) throws SQLException;
+	}
 	
+	/**
+	 * Sets up the connection pools and warms them up: opens
+	 * ticketmaster.warmupConnections connections in parallel and prepares on
+	 * each the statements the last run used most, retrying with exponential
+	 * backoff while the server does not answer.  With ticketmaster.lazyConnect
+	 * the warm-up runs in the background and the constructor returns at once.
+	 * 
+	 * @throws java.sql.SQLException when no connection could be opened
+	 */
 	public Ticketmaster(String dbname, String dbport, String user, String passwd) throws SQLException {
-		System.out.print("Connecting to database...");
+		// constructs the connection URL
+		String url = "jdbc:postgresql://localhost:" + dbport + "/" + dbname;
+		System.out.println ("Connection URL: " + url + "\n");
+		
+		this._pool = new ConnectionPool(url, user, passwd,
+			Integer.getInteger("ticketmaster.poolSize", 8),
+			Integer.getInteger("ticketmaster.statementCacheSize", 64),
+			Long.getLong("ticketmaster.borrowTimeoutMs", 30000L));
+		String replicas = System.getProperty("ticketmaster.replicas");
+		if (replicas != null && replicas.trim().length() > 0){
+			this._replicas = new ReplicaRouter(ReplicaRouter.urls(replicas, dbname), user, passwd,
+				Integer.getInteger("ticketmaster.replicaPoolSize", Integer.getInteger("ticketmaster.poolSize", 8)),
+				Integer.getInteger("ticketmaster.statementCacheSize", 64),
+				Long.getLong("ticketmaster.borrowTimeoutMs", 30000L),
+				"least-loaded".equals(System.getProperty("ticketmaster.replicaPolicy")),
+				Long.getLong("ticketmaster.replicaCheckMs", 5000L),
+				Long.getLong("ticketmaster.replicaMaxLagMs", 10000L));
+		}//end if
+		if (Boolean.getBoolean("ticketmaster.lazyConnect")){
+			Thread warmer = new Thread(new Runnable(){
+				public void run(){
+					try{
+						warmUp();
+					}catch (SQLException e){
+						System.err.println("Warm-up failed, connecting on first use: " + e.getMessage());
+					}//end try
+					if (_replicas != null)
+						_replicas.start();
+				}
+			}, "warmup");
+			warmer.setDaemon(true);
+			warmer.start();
+		}else{
+			System.out.print("Connecting to database...");
+			try{
+				warmUp();
+			}catch (SQLException e){
+				throw new SQLException("Unable to Connect to Database: " + e.getMessage() +
+					"\nMake sure you started postgres on this machine", e.getSQLState(), e);
+			}//end try
+			System.out.println("Done");
+			if (_replicas != null)
+				_replicas.start();
+		}//end if
+	}
+	
+	private void warmUp() throws SQLException {
+		long start = System.nanoTime ();
+		List<String> sqls = readStatements ();
+		int opened = _pool.warmUp (Math.min (_pool.maxSize (), Integer.getInteger ("ticketmaster.warmupConnections", 4)), sqls,
+			Integer.getInteger ("ticketmaster.connectRetries", 5), Long.getLong ("ticketmaster.connectBackoffMs", 200L));
+		System.err.println (String.format ("Warmed up %d connection(s) with %d statement(s) in %.0f ms", opened, sqls.size (), (System.nanoTime () - start) / 1e6));
+	}
+	
+	/**
+	 * @return the statements saved by the last run, or none
+	 */
+	private static List<String> readStatements () {
+		List<String> sqls = new ArrayList<String>();
+		File file = new File (STATEMENTS_FILE);
+		if (!file.exists ())
+			return sqls;
 		try{
-			// constructs the connection URL
-			String url = "jdbc:postgresql://localhost:" + dbport + "/" + dbname;
-			System.out.println ("Connection URL: " + url + "\n");
-			
-			// obtain a physical connection
-	        this._connection = DriverManager.getConnection(url, user, passwd);
-	        System.out.println("Done");
-		}catch(Exception e){
-			System.err.println("Error - Unable to Connect to Database: " + e.getMessage());
-	        System.out.println("Make sure you started postgres on this machine");
-	        System.exit(-1);
-		}
+			BufferedReader reader = new BufferedReader (new FileReader (file));
+			try{
+				String line;
+				while ((line = reader.readLine ()) != null)
+					if (line.trim ().length () > 0)
+						sqls.add ((String) Json.parse (line));
+			}finally{
+				reader.close ();
+			}//end try
+		}catch (IOException | RuntimeException e){
+			System.err.println ("Ignoring " + file + ": " + e.getMessage ());
+		}//end try
+		return sqls;
 	}
 	
+	/**
+	 * Saves the statements the pooled connections have cached, for the next
+	 * run to prepare while warming up.
+	 */
+	private void saveStatements () {
+		List<String> sqls = _pool.templates ();
+		if (sqls.isEmpty ())
+			return;
+		int keep = Integer.getInteger ("ticketmaster.statementCacheSize", 64);
+		if (sqls.size () > keep)
+			sqls = sqls.subList (sqls.size () - keep, sqls.size ());
+		try{
+			File file = new File (STATEMENTS_FILE);
+			File tmp = new File (STATEMENTS_FILE + ".tmp");
+			Writer out = new BufferedWriter (new OutputStreamWriter (new FileOutputStream (tmp), "UTF-8"));
+			try{
+				for (String sql : sqls)
+					out.write (Json.quote (new StringBuilder (), sql).append ('\n').toString ());
+			}finally{
+				out.close ();
+			}//end try
+			Files.move (tmp.toPath (), file.toPath (), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		}catch (IOException e){
+			System.err.println ("Could not save " + STATEMENTS_FILE + ": " + e.getMessage ());
+		}//end try
+	}
+	
+	/**
+	 * Returns the connection bound to this thread by inTransaction, or
+	 * borrows one from the pool.  Queries made inside readFromReplicas go to
+	 * a replica, unless this thread or its client session wrote to the
+	 * primary within ticketmaster.readYourWritesMs or no replica is usable.
+	 */
+	private ConnectionPool.PooledConnection acquire(boolean query) throws SQLException {
+		ConnectionPool.PooledConnection pc = _bound.get();
+		if (pc != null)
+			return pc;
+		if (query && _replicas != null && _readReplica.get() != null && !wroteRecently()){
+			pc = _replicas.borrow();
+			if (pc != null)
+				return pc;
+		}//end if
+		return _pool.borrow();
+	}
+	
+	/**
+	 * Hands back a connection obtained from acquire().  Connections bound to
+	 * a transaction stay with the thread until the transaction ends.
+	 */
+	private void release(ConnectionPool.PooledConnection pc, SQLException error){
+		if (error != null)
+			pc.checkBroken(error);
+		if (_bound.get() == pc)
+			return;
+		if (pc.owner == _pool)
+			_pool.release(pc);
+		else
+			_replicas.release(pc);
+	}
+	
+	/**
+	 * Records that this thread, and its client session if it has one,
+	 * changed the primary, so their reads stay on the primary for
+	 * ticketmaster.readYourWritesMs.
+	 */
+	private void wrote(){
+		if (_replicas == null)
+			return;
+		long now = System.nanoTime();
+		_lastWrite.get()[0] = now;
+		String session = _session.get();
+		if (session == null)
+			return;
+		_sessionWrites.put(session, now);
+		// forget sessions whose window has passed
+		if (_sessionWrites.size() > 1024){
+			for (Iterator<Long> it = _sessionWrites.values().iterator(); it.hasNext(); ){
+				if (now - it.next() > READ_YOUR_WRITES_NANOS)
+					it.remove();
+			}//end for
+		}//end if
+	}
+	
+	private boolean wroteRecently(){
+		long now = System.nanoTime();
+		long last = _lastWrite.get()[0];
+		if (last != 0 && now - last <= READ_YOUR_WRITES_NANOS)
+			return true;
+		String session = _session.get();
+		if (session == null)
+			return false;
+		Long wrote = _sessionWrites.get(session);
+		return wrote != null && now - wrote <= READ_YOUR_WRITES_NANOS;
+	}
+	
+	/**
+	 * Names the client session this thread is serving, until called with
+	 * null.  A session's writes keep its reads on the primary for
+	 * ticketmaster.readYourWritesMs, whichever thread serves them.
+	 * 
+	 * @param session the client's session key, or null
+	 */
+	public void session(String session){
+		if (session != null)
+			_session.set(session);
+		else
+			_session.remove();
+	}
+	
+	/**
+	 * Lets this thread's queries go to a replica until called with false.
+	 * Used around the list and report operations, which only read.  Updates
+	 * and transactions always use the primary.
+	 * 
+	 * @param on whether to route queries to replicas
+	 */
+	public void readFromReplicas(boolean on){
+		if (on)
+			_readReplica.set(Boolean.TRUE);
+		else
+			_readReplica.remove();
+	}
+	
+	/**
+	 * @return the replica router, or null if no replicas are configured
+	 */
+	public ReplicaRouter replicas(){
+		return _replicas;
+	}
+	
+	/**
+	 * Prepares (or reuses) the statement for a SQL template and binds the
+	 * given values to its ? placeholders in order.
+	 */
+	private PreparedStatement prepare(ConnectionPool.PooledConnection pc, String sql, Object[] params) throws SQLException {
+		QueryAdvisor advisor = _advisor;
+		if (advisor != null)
+			advisor.capture(sql, params);
+		PreparedStatement ps = pc.prepare(sql);
+		ps.clearParameters();
+		for (int i = 0; i < params.length; ++i)
+			ps.setObject(i + 1, params[i]);
+		return ps;
+	}
+	
+	/**
+	 * Starts or stops handing every statement run to an advisor.
+	 * 
+	 * @param advisor the advisor, or null to stop
+	 */
+	public void capture(QueryAdvisor advisor){
+		_advisor = advisor;
+	}
+	
+	/**
+	 * @return the cache behind executeCatalogQuery
+	 */
+	public CatalogCache catalog(){
+		return _catalog;
+	}
+	
+	/**
+	 * @return the maximum number of pooled connections
+	 */
+	public int poolSize(){
+		return _pool.maxSize ();
+	}
+	
+	/**
+	 * @return the counters and latency histograms of this instance
+	 */
+	public Metrics metrics(){
+		return _metrics;
+	}
+	
+	/**
+	 * Reports a failed menu operation: prints the stack trace as before and
+	 * counts the operation as an error in the metrics.
+	 * 
+	 * @param e the failure
+	 */
+	public void reportError(Exception e){
+		_metrics.markFailed ();
+		AuditJournal.failed (e);
+		e.printStackTrace ();
+	}
+	
+	/**
+	 * @return the booking engine used for seat claims and payments
+	 */
+	public BookingEngine bookings(){
+		return _bookings;
+	}
+	
+	/**
+	 * @return the in-memory seat maps of the shows
+	 */
+	public SeatIndex seats(){
+		return _seats;
+	}
+	
+	/**
+	 * @return the service that cancels bookings left pending past their hold
+	 */
+	public BookingExpiry expiry(){
+		return _expiry;
+	}
+	
+	/**
+	 * @return the movie search
+	 */
+	public MovieSearch search(){
+		return _search;
+	}
+	
+	/**
+	 * @return the paged booking and pending user reports
+	 */
+	public Listings listings(){
+		return _listings;
+	}
+	
+	/**
+	 * @return the journal of operations that change data
+	 */
+	public AuditJournal journal(){
+		return _journal;
+	}
+	
+	/**
+	 * @return the per-show seat counts
+	 */
+	public Occupancy occupancy(){
+		return _occupancy;
+	}
+	
+	/**
+	 * @return the chunked jobs that cancel and clear bookings
+	 */
+	public BookingSweeper sweeper(){
+		return _sweeper;
+	}
+	
+	/**
+	 * Returns a comma separated list of n ? placeholders, for IN lists.
+	 * 
+	 * @param n the number of placeholders
+	 * @return the placeholder list
+	 */
+	public static String placeholders(int n){
+		StringBuilder sb = new StringBuilder(n * 3);
+		for (int i = 0; i < n; ++i)
+			sb.append(i == 0 ? "?" : ", ?");
+		return sb.toString();
+	}
+	
+	/**
+	 * Method to run several statements as one transaction.  Every query
+	 * helper called by the same thread inside work uses the same connection,
+	 * which is committed when work returns and rolled back when it throws.
+	 * Nested calls join the outer transaction.
+	 * 
+	 * @param work the statements to run
+	 * @return the value returned by work
+	 * @throws java.sql.SQLException whatever work throws, after rolling back
+	 */
+	public <T> T inTransaction(Work<T> work) throws SQLException {
+		if (_bound.get() != null)
+			return work.run();
+		ConnectionPool.PooledConnection pc = _pool.borrow();
+		_bound.set(pc);
+		try{
+			pc.getConnection().setAutoCommit(false);
+			T result = work.run();
+			pc.getConnection().commit();
+			wrote();
+			return result;
+		}catch (SQLException e){
+			try{
+				pc.getConnection().rollback();
+			}catch (SQLException re){
+				pc.checkBroken(re);
+			}//end try
+			pc.checkBroken(e);
+			throw e;
+		}catch (RuntimeException e){
+			try{
+				pc.getConnection().rollback();
+			}catch (SQLException re){
+				pc.checkBroken(re);
+			}//end try
+			throw e;
+		}finally{
+			_bound.remove();
+			_pool.release(pc);
+		}//end try
+	}//end inTransaction
+	
 	/**
 	 * Method to execute an update SQL statement.  Update SQL instructions
 	 * includes CREATE, INSERT, UPDATE, DELETE, and DROP.
 	 * 
-	 * @param sql the input SQL string
+	 * @param sql the input SQL string, with ? placeholders for values
+	 * @param params the values bound to the placeholders
+	 * @return the number of rows affected
 	 * @throws java.sql.SQLException when update failed
 	 * */
-	public void executeUpdate (String sql) throws SQLException { 
-		// creates a statement object
-		Statement stmt = this._connection.createStatement ();
-
-		// issues the update instruction
-		stmt.executeUpdate (sql);
-
-		// close the instruction
-	    stmt.close ();
+	public int executeUpdate (String sql, Object... params) throws SQLException { 
+		long start = System.nanoTime ();
+		long rows = 0;
+		ConnectionPool.PooledConnection pc = acquire (false);
+		SQLException error = null;
+		try{
+			// issues the update instruction
+			int count = prepare (pc, sql, params).executeUpdate ();
+			rows = count;
+			wrote ();
+			return count;
+		}catch (SQLException e){
+			error = e;
+			throw e;
+		}finally{
+			release (pc, error);
+			_metrics.recordSql ("executeUpdate", sql, start, rows, error == null);
+		}
 	}//end executeUpdate
 
+	/**
+	 * Method to execute one update SQL statement for many sets of values as a
+	 * JDBC batch.  The driver sends the whole batch in one round trip and
+	 * rewrites batched INSERTs into multi-row INSERTs.
+	 * 
+	 * @param sql the input SQL string, with ? placeholders for values
+	 * @param rows one array of bind values per execution
+	 * @return the number of rows affected by each execution
+	 * @throws java.sql.SQLException when the batch failed
+	 */
+	public int[] executeBatch (String sql, List<Object[]> rows) throws SQLException {
+		long start = System.nanoTime ();
+		ConnectionPool.PooledConnection pc = acquire (false);
+		SQLException error = null;
+		try{
+			PreparedStatement ps = pc.prepare (sql);
+			ps.clearBatch ();
+			for (int r = 0; r < rows.size (); ++r){
+				Object[] params = rows.get (r);
+				for (int i = 0; i < params.length; ++i)
+					ps.setObject (i + 1, params[i]);
+				ps.addBatch ();
+			}//end for
+			int[] counts = ps.executeBatch ();
+			wrote ();
+			return counts;
+		}catch (SQLException e){
+			error = e;
+			throw e;
+		}finally{
+			release (pc, error);
+			_metrics.recordSql ("executeBatch", sql, start, rows.size (), error == null);
+		}
+	}//end executeBatch
+	
 	/**
 	 * Method to execute an input query SQL instruction (i.e. SELECT).  This
 	 * method issues the query to the DBMS and outputs the results to
 	 * standard out.
 	 * 
-	 * @param query the input query string
+	 * @param query the input query string, with ? placeholders for values
+	 * @param params the values bound to the placeholders
 	 * @return the number of rows returned
 	 * @throws java.sql.SQLException when failed to execute the query
 	 */
-	public int executeQueryAndPrintResult (String query) throws SQLException {
-		//creates a statement object
-		Statement stmt = this._connection.createStatement ();
-
-		//issues the query instruction
-		ResultSet rs = stmt.executeQuery (query);
-
-		/*
-		 *  obtains the metadata object for the returned result set.  The metadata
-		 *  contains row and column info.
-		 */
-		ResultSetMetaData rsmd = rs.getMetaData ();
-		int numCol = rsmd.getColumnCount ();
-		int rowCount = 0;
-		
-		//iterates through the result set and output them to standard out.
-		boolean outputHeader = true;
-		while (rs.next()){
-			if(outputHeader){
-				for(int i = 1; i <= numCol; i++){
-					System.out.print(rsmd.getColumnName(i) + "\t");
-			    }
-			    System.out.println();
-			    outputHeader = false;
-			}
-			for (int i=1; i<=numCol; ++i)
-				System.out.print (rs.getString (i) + "\t");
-			System.out.println ();
-			++rowCount;
-		}//end while
-		stmt.close ();
-		return rowCount;
+	public int executeQueryAndPrintResult (String query, Object... params) throws SQLException {
+		return executeQueryAndWriteResult (new ResultSink.Text (ResultSink.stdout ()), query, params);
+	}
+	
+	/**
+	 * Method to execute an input query SQL instruction (i.e. SELECT) and
+	 * stream the results into a sink, e.g. a CSV or JSON file.
+	 * 
+	 * @param sink formats and writes the rows
+	 * @param query the input query string, with ? placeholders for values
+	 * @param params the values bound to the placeholders
+	 * @return the number of rows returned
+	 * @throws java.sql.SQLException when failed to execute the query or write the rows
+	 */
+	public int executeQueryAndWriteResult (ResultSink sink, String query, Object... params) throws SQLException {
+		executeQueryForEach (query, sink, params);
+		return sink.finish ();
 	}
 	
+	/**
+	 * Method to execute an input query SQL instruction (i.e. SELECT) and hand
+	 * each row to a callback as it arrives.  Rows are fetched from a server
+	 * side cursor ticketmaster.fetchSize rows at a time, so only one batch is
+	 * ever held in memory.  The handler reads columns with the typed ResultSet
+	 * getters and must not advance or close the result set.
+	 * 
+	 * @param query the input query string, with ? placeholders for values
+	 * @param handler called once per row, positioned on that row
+	 * @param params the values bound to the placeholders
+	 * @return the number of rows returned
+	 * @throws java.sql.SQLException when failed to execute the query
+	 */
+	public int executeQueryForEach (String query, RowHandler handler, Object... params) throws SQLException {
+		long start = System.nanoTime ();
+		int rowCount = 0;
+		ConnectionPool.PooledConnection pc = acquire (true);
+		boolean bound = _bound.get() == pc;
+		SQLException error = null;
+		try{
+			// cursors only stream inside a transaction
+			if (!bound)
+				pc.getConnection().setAutoCommit (false);
+			PreparedStatement ps = prepare (pc, query, params);
+			ps.setFetchSize (FETCH_SIZE);
+			ResultSet rs = ps.executeQuery ();
+			while (rs.next()){
+				handler.row (rs);
+				++rowCount;
+			}//end while
+			rs.close ();
+			if (!bound)
+				pc.getConnection().commit ();
+			return rowCount;
+		}catch (SQLException e){
+			error = e;
+			throw e;
+		}finally{
+			// release() rolls back and restores autocommit if still open
+			release (pc, error);
+			_metrics.recordSql ("executeQueryForEach", query, start, rowCount, error == null);
+		}
+	}//end executeQueryForEach
+	
 	/**
 	 * Method to execute an input query SQL instruction (i.e. SELECT).  This
 	 * method issues the query to the DBMS and returns the results as
 	 * a list of records. Each record in turn is a list of attribute values
 	 * 
-	 * @param query the input query string
+	 * @param query the input query string, with ? placeholders for values
+	 * @param params the values bound to the placeholders
 	 * @return the query result as a list of records
 	 * @throws java.sql.SQLException when failed to execute the query
 	 */
-	public List<List<String>> executeQueryAndReturnResult (String query) throws SQLException { 
-		//creates a statement object 
-		Statement stmt = this._connection.createStatement (); 
-		
-		//issues the query instruction 
-		ResultSet rs = stmt.executeQuery (query); 
-	 
-		/*
-		 * obtains the metadata object for the returned result set.  The metadata 
-		 * contains row and column info. 
-		*/ 
-		ResultSetMetaData rsmd = rs.getMetaData (); 
-		int numCol = rsmd.getColumnCount (); 
-		int rowCount = 0; 
-	 
-		//iterates through the result set and saves the data returned by the query. 
-		boolean outputHeader = false;
-		List<List<String>> result  = new ArrayList<List<String>>(); 
-		while (rs.next()){
-			List<String> record = new ArrayList<String>(); 
-			for (int i=1; i<=numCol; ++i) 
-				record.add(rs.getString (i)); 
-			result.add(record); 
-		}//end while 
-		stmt.close (); 
-		return result; 
+	public List<List<String>> executeQueryAndReturnResult (String query, Object... params) throws SQLException { 
+		return returnResult ("executeQueryAndReturnResult", false, query, params);
 	}//end executeQueryAndReturnResult
 	
+	/**
+	 * Method to execute a statement that changes data and returns rows, such
+	 * as an UPDATE or DELETE ... RETURNING or a WITH query whose parts do.
+	 * Unlike executeQueryAndReturnResult it always runs on the primary and
+	 * counts as a write, so this thread's reads stay off the replicas for a
+	 * while afterwards.
+	 * 
+	 * @param sql the statement, with ? placeholders for values
+	 * @param params the values bound to the placeholders
+	 * @return the rows returned, as a list of records
+	 * @throws java.sql.SQLException when the statement failed
+	 */
+	public List<List<String>> executeWriteQuery (String sql, Object... params) throws SQLException {
+		return returnResult ("executeWriteQuery", true, sql, params);
+	}//end executeWriteQuery
+	
+	private List<List<String>> returnResult (String method, boolean write, String query, Object[] params) throws SQLException {
+		long start = System.nanoTime ();
+		long rows = 0;
+		ConnectionPool.PooledConnection pc = acquire (!write);
+		SQLException error = null;
+		try{
+			//issues the query instruction 
+			ResultSet rs = prepare (pc, query, params).executeQuery (); 
+		 
+			/*
+			 * obtains the metadata object for the returned result set.  The metadata 
+			 * contains row and column info. 
+			*/ 
+			ResultSetMetaData rsmd = rs.getMetaData (); 
+			int numCol = rsmd.getColumnCount (); 
+		 
+			//iterates through the result set and saves the data returned by the query. 
+			List<List<String>> result  = new ArrayList<List<String>>(); 
+			while (rs.next()){
+				List<String> record = new ArrayList<String>(numCol); 
+				for (int i=1; i<=numCol; ++i) 
+					record.add(rs.getString (i)); 
+				result.add(record); 
+			}//end while 
+			rs.close (); 
+			rows = result.size ();
+			if (write)
+				wrote ();
+			return result; 
+		}catch (SQLException e){
+			error = e;
+			throw e;
+		}finally{
+			release (pc, error);
+			_metrics.recordSql (method, query, start, rows, error == null);
+		}
+	}//end returnResult
+	
+	/**
+	 * Method to run several statements in one round trip.  The statements
+	 * are sent together and the server runs them as one transaction (or as
+	 * part of the transaction bound to this thread), so either all of them
+	 * take effect or none does.
+	 * 
+	 * @param sqls the statements, each with ? placeholders for values
+	 * @param params the values for each statement's placeholders
+	 * @return one entry per statement: the update count as an Integer, or
+	 * the rows of a query as a List of records
+	 * @throws java.sql.SQLException when any statement failed
+	 */
+	public List<Object> executePipeline (List<String> sqls, List<Object[]> params) throws SQLException {
+		long start = System.nanoTime ();
+		long rows = 0;
+		StringBuilder sql = new StringBuilder();
+		List<Object> values = new ArrayList<Object>();
+		for (int i = 0; i < sqls.size (); ++i){
+			if (i > 0)
+				sql.append (";\n");
+			sql.append (sqls.get (i));
+			values.addAll (Arrays.asList (params.get (i)));
+		}//end for
+		ConnectionPool.PooledConnection pc = acquire (false);
+		SQLException error = null;
+		try{
+			PreparedStatement ps = prepare (pc, sql.toString (), values.toArray ());
+			List<Object> results = new ArrayList<Object>(sqls.size ());
+			boolean isQuery = ps.execute ();
+			while (true){
+				if (isQuery){
+					ResultSet rs = ps.getResultSet ();
+					int numCol = rs.getMetaData ().getColumnCount ();
+					List<List<String>> result = new ArrayList<List<String>>();
+					while (rs.next ()){
+						List<String> record = new ArrayList<String>(numCol);
+						for (int i = 1; i <= numCol; ++i)
+							record.add (rs.getString (i));
+						result.add (record);
+					}//end while
+					rs.close ();
+					rows += result.size ();
+					results.add (result);
+				}else{
+					int count = ps.getUpdateCount ();
+					if (count == -1)
+						break;
+					rows += count;
+					results.add (count);
+				}//end if
+				isQuery = ps.getMoreResults ();
+			}//end while
+			wrote ();
+			return results;
+		}catch (SQLException e){
+			error = e;
+			throw e;
+		}finally{
+			release (pc, error);
+			_metrics.recordSql ("executePipeline", sql.toString (), start, rows, error == null);
+		}
+	}//end executePipeline
+	
+	/**
+	 * Runs work on a background thread.  The work gets its own connection,
+	 * outside any transaction of the calling thread; wrap it in inTransaction
+	 * to run several statements as one.
+	 * 
+	 * @param work the statements to run
+	 * @return a future completed with work's result, or exceptionally with
+	 * the SQLException it threw
+	 */
+	public <T> CompletableFuture<T> async (final Work<T> work){
+		final CompletableFuture<T> future = new CompletableFuture<T>();
+		asyncExecutor ().execute (new Runnable(){
+			public void run(){
+				try{
+					future.complete (work.run ());
+				}catch (Throwable t){
+					future.completeExceptionally (t);
+				}//end try
+			}
+		});
+		return future;
+	}//end async
+	
+	private synchronized ExecutorService asyncExecutor (){
+		if (_async == null){
+			_async = Executors.newCachedThreadPool (new ThreadFactory(){
+				public Thread newThread(Runnable r){
+					Thread t = new Thread (r, "ticketmaster-async");
+					t.setDaemon (true);
+					return t;
+				}
+			});
+		}//end if
+		return _async;
+	}
+	
+	/**
+	 * Asynchronous executeUpdate.
+	 */
+	public CompletableFuture<Integer> executeUpdateAsync (final String sql, final Object... params){
+		return async (new Work<Integer>(){
+			public Integer run() throws SQLException {
+				return executeUpdate (sql, params);
+			}
+		});
+	}
+	
+	/**
+	 * Asynchronous executeQueryAndReturnResult.
+	 */
+	public CompletableFuture<List<List<String>>> executeQueryAndReturnResultAsync (final String query, final Object... params){
+		return async (new Work<List<List<String>>>(){
+			public List<List<String>> run() throws SQLException {
+				return executeQueryAndReturnResult (query, params);
+			}
+		});
+	}
+	
+	/**
+	 * Asynchronous executeQuery.
+	 */
+	public CompletableFuture<Integer> executeQueryAsync (final String query, final Object... params){
+		return async (new Work<Integer>(){
+			public Integer run() throws SQLException {
+				return executeQuery (query, params);
+			}
+		});
+	}
+	
+	/**
+	 * Waits for a future from one of the asynchronous helpers.
+	 * 
+	 * @param future the pending result
+	 * @return the result
+	 * @throws java.sql.SQLException the error the statement failed with
+	 */
+	public static <T> T await (CompletableFuture<T> future) throws SQLException {
+		try{
+			return future.join ();
+		}catch (CompletionException e){
+			Throwable cause = e.getCause ();
+			if (cause instanceof SQLException)
+				throw (SQLException) cause;
+			if (cause instanceof RuntimeException)
+				throw (RuntimeException) cause;
+			if (cause instanceof Error)
+				throw (Error) cause;
+			throw new SQLException (cause);
+		}//end try
+	}//end await
+	
+	/**
+	 * Starts a pipeline of statements.
+	 * 
+	 * @param transactional send the statements together as one transaction
+	 * in one round trip, instead of running them concurrently on separate
+	 * connections
+	 * @return an empty pipeline
+	 */
+	public Pipeline pipeline (boolean transactional){
+		return new Pipeline (this, transactional);
+	}
+	
 	/**
 	 * Method to execute an input query SQL instruction (i.e. SELECT).  This
 	 * method issues the query to the DBMS and returns the number of results
 	 * 
-	 * @param query the input query string
+	 * @param query the input query string, with ? placeholders for values
+	 * @param params the values bound to the placeholders
 	 * @return the number of rows returned
 	 * @throws java.sql.SQLException when failed to execute the query
 	 */
-	public int executeQuery (String query) throws SQLException {
-		//creates a statement object
-		Statement stmt = this._connection.createStatement ();
-
-		//issues the query instruction
-		ResultSet rs = stmt.executeQuery (query);
-
+	public int executeQuery (String query, Object... params) throws SQLException {
+		long start = System.nanoTime ();
 		int rowCount = 0;
+		ConnectionPool.PooledConnection pc = acquire (true);
+		SQLException error = null;
+		try{
+			//issues the query instruction
+			ResultSet rs = prepare (pc, query, params).executeQuery ();
 
-		//iterates through the result set and count nuber of results.
-		if(rs.next()){
-			rowCount++;
-		}//end while
-		stmt.close ();
-		return rowCount;
+			//iterates through the result set and count nuber of results.
+			if(rs.next()){
+				rowCount++;
+			}//end while
+			rs.close ();
+			return rowCount;
+		}catch (SQLException e){
+			error = e;
+			throw e;
+		}finally{
+			release (pc, error);
+			_metrics.recordSql ("executeQuery", query, start, rowCount, error == null);
+		}
+	}
+	
+	/**
+	 * Method to execute a query over the slowly changing catalog tables
+	 * (movies, shows, plays, theaters, cinemas) through the catalog cache.
+	 * The database is only queried on a miss or after the entry expired.
+	 * 
+	 * @param query the input query string, with ? placeholders for values
+	 * @param params the values bound to the placeholders
+	 * @return the cached column names and rows
+	 * @throws java.sql.SQLException when failed to execute the query
+	 */
+	public CatalogCache.Result executeCatalogQuery (String query, Object... params) throws SQLException {
+		String key = CatalogCache.key (query, params);
+		long generation = _catalog.generation ();
+		CatalogCache.Result cached = _catalog.get (key);
+		if (cached != null)
+			return cached;
+		final List<String> columns = new ArrayList<String>();
+		final List<List<String>> rows = new ArrayList<List<String>>();
+		executeQueryForEach (query, new RowHandler(){
+			public void row(ResultSet rs) throws SQLException {
+				int numCol = rs.getMetaData ().getColumnCount ();
+				if (columns.isEmpty ()){
+					for (int i = 1; i <= numCol; ++i)
+						columns.add (rs.getMetaData ().getColumnName (i));
+				}//end if
+				List<String> record = new ArrayList<String>(numCol);
+				for (int i = 1; i <= numCol; ++i)
+					record.add (rs.getString (i));
+				rows.add (record);
+			}
+		}, params);
+		return _catalog.put (key, generation, columns, rows);
+	}//end executeCatalogQuery
+	
+	/**
+	 * Method to print a catalog query result to standard out, in the same
+	 * layout as executeQueryAndPrintResult, using the catalog cache.
+	 * 
+	 * @param query the input query string, with ? placeholders for values
+	 * @param params the values bound to the placeholders
+	 * @return the number of rows printed
+	 * @throws java.sql.SQLException when failed to execute the query
+	 */
+	public int printCatalogQuery (String query, Object... params) throws SQLException {
+		CatalogCache.Result result = executeCatalogQuery (query, params);
+		SessionIO.rows (result.columns, result.rows);
+		if (result.rows.isEmpty ())
+			return 0;
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < result.columns.size (); ++i)
+			sb.append (result.columns.get (i)).append ('\t');
+		sb.append ('\n');
+		for (int r = 0; r < result.rows.size (); ++r){
+			List<String> record = result.rows.get (r);
+			for (int i = 0; i < record.size (); ++i)
+				sb.append (record.get (i)).append ('\t');
+			sb.append ('\n');
+		}//end for
+		System.out.print (sb);
+		System.out.flush ();
+		return result.rows.size ();
+	}//end printCatalogQuery
+	
+	/**
+	 * Method to remove every show of the given cinemas within a date range,
+	 * together with its Plays and ShowSeats rows.  All three deletes run as
+	 * one statement, so the removal is atomic and costs one round trip no
+	 * matter how many shows match.
+	 * 
+	 * @param cids the cinemas
+	 * @param fromDate the first show date to remove
+	 * @param toDate the last show date to remove
+	 * @return the rows deleted from Plays, ShowSeats and Shows, in that order
+	 * @throws java.sql.SQLException when the removal failed; nothing is deleted
+	 */
+	public int[] removeShows (List<String> cids, String fromDate, String toDate) throws SQLException {
+		if (cids.isEmpty ())
+			return new int[3];
+		String sql =
+			"WITH doomed AS (SELECT DISTINCT S.sid FROM Shows S, Theaters T, Plays P " +
+				"WHERE S.sid = P.sid AND P.tid = T.tid AND T.cid IN (" + placeholders (cids.size ()) + ") AND S.sdate BETWEEN ? AND ?), " +
+			"p AS (DELETE FROM Plays WHERE sid IN (SELECT sid FROM doomed) RETURNING 1), " +
+			"ss AS (DELETE FROM ShowSeats WHERE sid IN (SELECT sid FROM doomed) RETURNING 1), " +
+			"s AS (DELETE FROM Shows WHERE sid IN (SELECT sid FROM doomed) RETURNING 1) " +
+			"SELECT (SELECT COUNT(*) FROM p), (SELECT COUNT(*) FROM ss), (SELECT COUNT(*) FROM s)";
+		List<Object> params = new ArrayList<Object>(cids);
+		params.add (fromDate);
+		params.add (toDate);
+		List<String> counts = executeWriteQuery (sql, params.toArray ()).get (0);
+		_catalog.invalidateAll ();
+		_seats.invalidateAll ();
+		return new int[]{ Integer.parseInt (counts.get (0)), Integer.parseInt (counts.get (1)), Integer.parseInt (counts.get (2)) };
+	}//end removeShows
+	
+	/**
+	 * Creates the id sequences for Movies and Shows, once per run.
+	 * 
+	 * @throws java.sql.SQLException when the sequences cannot be created
+	 */
+	public void ensureCatalogSequences () throws SQLException {
+		if (_catalogSequencesReady)
+			return;
+		ensureSequence ("movies_mvid_seq", "Movies", "mvid");
+		ensureSequence ("shows_sid_seq", "Shows", "sid");
+		_catalogSequencesReady = true;
+	}
+	
+	/**
+	 * Method to create a sequence for a table's integer key if it does not
+	 * exist yet, and move it past the largest key already in the table.  The
+	 * sequence is only ever moved forward, so another process taking ids
+	 * from it at the same time is not set back to ids already handed out.
+	 * 
+	 * @param sequence name of the DB sequence
+	 * @param table the table the ids are for
+	 * @param column the id column
+	 * @throws java.sql.SQLException when the sequence cannot be created
+	 */
+	public void ensureSequence (String sequence, String table, String column) throws SQLException {
+		executeUpdate ("CREATE SEQUENCE IF NOT EXISTS " + sequence);
+		executeQuery ("SELECT setval('" + sequence + "', m) FROM (SELECT MAX(" + column + ") AS m FROM " + table + ") t " +
+			"WHERE m > (SELECT last_value FROM " + sequence + ")");
+	}//end ensureSequence
+	
+	/**
+	 * Returns the physical connection bound to this thread by inTransaction,
+	 * for driver specific APIs such as COPY.
+	 */
+	java.sql.Connection boundConnection (){
+		ConnectionPool.PooledConnection pc = _bound.get ();
+		return pc == null ? null : pc.getConnection ();
 	}
 	
 	/**
 	 * Method to fetch the last value from sequence. This
 	 * method issues the query to the DBMS and returns the current 
-	 * value of sequence used for autogenerated keys
+	 * value of sequence used for autogenerated keys.  currval is session
+	 * bound, so call it inside the same inTransaction as the nextval.
 	 * 
 	 * @param sequence name of the DB sequence
 	 * @return current value of a sequence
@@ -183,24 +1056,41 @@ public class Ticketmaster{
 	 */
 	
 	public int getCurrSeqVal(String sequence) throws SQLException {
-		Statement stmt = this._connection.createStatement ();
-		
-		ResultSet rs = stmt.executeQuery (String.format("Select currval('%s')", sequence));
-		if (rs.next()) return rs.getInt(1);
-		return -1;
+		long start = System.nanoTime ();
+		ConnectionPool.PooledConnection pc = acquire (false);
+		SQLException error = null;
+		try{
+			ResultSet rs = prepare (pc, "SELECT currval(?)", new Object[]{ sequence }).executeQuery ();
+			int value = rs.next() ? rs.getInt(1) : -1;
+			rs.close ();
+			return value;
+		}catch (SQLException e){
+			error = e;
+			throw e;
+		}finally{
+			release (pc, error);
+			_metrics.recordSql ("getCurrSeqVal", "SELECT currval(?)", start, 1, error == null);
+		}
 	}
 
 	/**
-	 * Method to close the physical connection if it is open.
+	 * Method to close the physical connections in the pool.
 	 */
 	public void cleanup(){
-		try{
-			if (this._connection != null){
-				this._connection.close ();
-			}//end if
-		}catch (SQLException e){
-	         // ignored.
-		}//end try
+		this._expiry.stop ();
+		this._journal.stop ();
+		synchronized (this){
+			if (this._async != null)
+				this._async.shutdown ();
+		}
+		this._metrics.stop ();
+		if (this._replicas != null){
+			this._replicas.close ();
+		}//end if
+		if (this._pool != null){
+			saveStatements ();
+			this._pool.close ();
+		}//end if
 	}//end cleanup
 
 	/**
@@ -209,34 +1099,52 @@ public class Ticketmaster{
 	 * @param args the command line arguments this inclues the <mysql|pgsql> <login file>
 	 */
 	public static void main (String[] args) {
-		if (args.length != 3) {
+		if (args.length < 3) {
 			System.err.println (
 				"Usage: " + "java [-classpath <classpath>] " + Ticketmaster.class.getName () +
-		            " <dbname> <port> <user>");
+		            " <dbname> <port> <user> [command]");
+			System.err.println (
+				"Commands:\n" +
+				"  --export <text|csv|json|columnar> <file> <query>   write a query result to a file\n" +
+				"  --load <table> <file.csv> [batchSize]              bulk load a CSV file with JDBC batches\n" +
+				"  --copy <table> <file.csv>                          bulk load a CSV file with COPY FROM STDIN\n" +
+				"  --seatmaps <price> [sid ...]                       create ShowSeats for shows that have none\n" +
+				"  --script <file> [threads]                          run a file of menu operations in parallel\n" +
+				"  --cancel-pending [olderThan]                       cancel pending bookings in chunks\n" +
+				"  --clear-cancelled [olderThan]                      delete cancelled bookings in chunks\n" +
+				"  --migrate                                          create or upgrade the tables, sequences and indexes\n" +
+				"  --advise <file> [threads]                          run a script, then EXPLAIN every query it ran\n" +
+				"  --occupancy [limit]                                list upcoming shows by share of seats sold\n" +
+				"  --reconcile-occupancy                              fold and recount the per-show seat counts\n" +
+				"  --journal-inspect <dir> [text]                     print the audit journal, or its events containing text\n" +
+				"  --journal-replay <dir> [fromSeq]                   rerun the journaled operations in order\n" +
+				"  --serve <port>                                     serve the menu operations over HTTP on localhost");
 			return;
 		}//end if
 		
 		Ticketmaster esql = null;
 		
 		try{
-			System.out.println("(1)");
-			
-			try {
-				Class.forName("org.postgresql.Driver");
-			}catch(Exception e){
-
-				System.out.println("Where is your PostgreSQL JDBC Driver? " + "Include in your library path!");
-				e.printStackTrace();
-				return;
-			}
-			
-			System.out.println("(2)");
+			// the driver registers itself when first asked for a connection
 			String dbname = args[0];
 			String dbport = args[1];
 			String user = args[2];
 			
 			esql = new Ticketmaster (dbname, dbport, user, "");
 			
+			Integer metricsPort = Integer.getInteger("ticketmaster.metricsPort");
+			if (metricsPort != null)
+				esql.metrics().serve(metricsPort);
+			if (Boolean.getBoolean("ticketmaster.expiry"))
+				esql.expiry().start();
+			if (System.getProperty("ticketmaster.journalDir") != null)
+				esql.journal().start();
+			
+			if (args.length > 3) {
+				runCommand(esql, args);
+				return;
+			}//end if
+			
 			boolean keepon = true;
 			while(keepon){
 				System.out.println("MAIN MENU");
@@ -255,34 +1163,29 @@ public class Ticketmaster{
 				System.out.println("12. List the First Name, Last Name, and Email of Users with a Pending Booking");
 				System.out.println("13. List the Title, Duration, Date, and Time of Shows Playing a Given Movie at a Given Cinema During a Date Range");
 				System.out.println("14. List the Movie Title, Show Date & Start Time, Theater Name, and Cinema Seat Number for all Bookings of a Given User");
-				System.out.println("15. EXIT");
+				System.out.println("15. Search Movies");
+				System.out.println("16. EXIT");
 				
 				/*
 				 * FOLLOW THE SPECIFICATION IN THE PROJECT DESCRIPTION
 				 */
-				switch (readChoice()){
-					case 1: AddUser(esql); break;
-					case 2: AddBooking(esql); break;
-					case 3: AddMovieShowingToTheater(esql); break;
-					case 4: CancelPendingBookings(esql); break;
-					case 5: ChangeSeatsForBooking(esql); break;
-					case 6: RemovePayment(esql); break;
-					case 7: ClearCancelledBookings(esql); break;
-					case 8: RemoveShowsOnDate(esql); break;
-					case 9: ListTheatersPlayingShow(esql); break;
-					case 10: ListShowsStartingOnTimeAndDate(esql); break;
-					case 11: ListMovieTitlesContainingLoveReleasedAfter2010(esql); break;
-					case 12: ListUsersWithPendingBooking(esql); break;
-					case 13: ListMovieAndShowInfoAtCinemaInDateRange(esql); break;
-					case 14: ListBookingInfoForUser(esql); break;
-					case 15: keepon = false; break;
-				}
+				keepon = dispatch(esql, readChoice());
 			}
 		}catch(Exception e){
 			System.err.println (e.getMessage ());
 		}finally{
 			try{
 				if(esql != null) {
+					if (esql.catalog().hits() + esql.catalog().misses() > 0)
+						System.out.println("Catalog cache: " + esql.catalog().stats());
+					System.out.println("Seat index: " + esql.seats().stats());
+					if (esql.journal().running())
+						System.out.println("Audit journal: " + esql.journal().stats());
+					if (esql.replicas() != null)
+						System.out.print("Replicas:\n" + esql.replicas().stats());
+					String metricsFile = System.getProperty("ticketmaster.metricsFile");
+					if (metricsFile != null)
+						esql.metrics().writeFile(metricsFile);
 					System.out.print("Disconnecting from database...");
 					esql.cleanup ();
 					System.out.println("Done\n\nBye !");
@@ -293,14 +1196,159 @@ public class Ticketmaster{
 		}
 	}
 
+	//menu operation names, indexed by menu choice
+	static final String[] OPERATIONS = { null,
+		"AddUser", "AddBooking", "AddMovieShowingToTheater", "CancelPendingBookings",
+		"ChangeSeatsForBooking", "RemovePayment", "ClearCancelledBookings", "RemoveShowsOnDate",
+		"ListTheatersPlayingShow", "ListShowsStartingOnTimeAndDate", "ListMovieTitlesContainingLoveReleasedAfter2010",
+		"ListUsersWithPendingBooking", "ListMovieAndShowInfoAtCinemaInDateRange", "ListBookingInfoForUser", "SearchMovies" };
+	
+	/**
+	 * Runs the menu operation for a choice and records its latency, the rows
+	 * its queries returned and whether it failed.
+	 * 
+	 * @param esql the connected database
+	 * @param choice the menu choice
+	 * @return false if the choice was EXIT
+	 * @throws java.lang.Exception when the operation fails
+	 */
+	public static boolean dispatch(Ticketmaster esql, int choice) throws Exception {
+		if (choice == OPERATIONS.length)
+			return false;
+		if (choice < 1 || choice >= OPERATIONS.length)
+			return true;
+		long start = esql.metrics().start();
+		// the list, report and search operations only read, so they may use a replica
+		esql.readFromReplicas(choice >= 9);
+		if (choice <= 8)
+			esql.journal().begin(OPERATIONS[choice]);
+		try{
+			switch (choice){
+				case 1: AddUser(esql); break;
+				case 2: AddBooking(esql); break;
+				case 3: AddMovieShowingToTheater(esql); break;
+				case 4: CancelPendingBookings(esql); break;
+				case 5: ChangeSeatsForBooking(esql); break;
+				case 6: RemovePayment(esql); break;
+				case 7: ClearCancelledBookings(esql); break;
+				case 8: RemoveShowsOnDate(esql); break;
+				case 9: ListTheatersPlayingShow(esql); break;
+				case 10: ListShowsStartingOnTimeAndDate(esql); break;
+				case 11: ListMovieTitlesContainingLoveReleasedAfter2010(esql); break;
+				case 12: ListUsersWithPendingBooking(esql); break;
+				case 13: ListMovieAndShowInfoAtCinemaInDateRange(esql); break;
+				case 14: ListBookingInfoForUser(esql); break;
+				case 15: SearchMovies(esql); break;
+			}
+		}catch (Exception e){
+			esql.metrics().markFailed();
+			AuditJournal.failed(e);
+			throw e;
+		}finally{
+			esql.journal().end(!esql.metrics().failed());
+			esql.readFromReplicas(false);
+			esql.metrics().finish("menu." + OPERATIONS[choice], start);
+		}
+		return true;
+	}//end dispatch
+	
+	/**
+	 * Runs one of the non-interactive commands given after the connection
+	 * arguments instead of the menu.
+	 * 
+	 * @param esql the connected database
+	 * @param args the full command line
+	 * @throws java.lang.Exception when the command fails
+	 */
+	public static void runCommand(Ticketmaster esql, String[] args) throws Exception {
+		String command = args[3];
+		if (command.equals("--export") && args.length == 7) {
+			Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(args[5]), "UTF-8"), 1 << 16);
+			try{
+				long start = System.nanoTime();
+				int rows = esql.executeQueryAndWriteResult(ResultSink.forFormat(args[4], out), args[6]);
+				System.out.println(String.format("Exported %d rows in %.2f s", rows, (System.nanoTime() - start) / 1e9));
+			}finally{
+				out.close();
+			}
+		} else if (command.equals("--load") && (args.length == 6 || args.length == 7)) {
+			int batchSize = args.length == 7 ? Integer.parseInt(args[6]) : Integer.getInteger("ticketmaster.batchSize", 1000);
+			new BulkLoader(esql, batchSize).loadBatched(args[4], args[5]);
+		} else if (command.equals("--copy") && args.length == 6) {
+			new BulkLoader(esql, 0).loadCopy(args[4], args[5]);
+		} else if (command.equals("--seatmaps") && args.length >= 5) {
+			new BulkLoader(esql, 0).generateSeatMaps(Arrays.asList(args).subList(5, args.length), Integer.parseInt(args[4]));
+		} else if (command.equals("--script") && (args.length == 5 || args.length == 6)) {
+			int threads = args.length == 6 ? Integer.parseInt(args[5]) : esql.poolSize();
+			ScriptRunner runner = new ScriptRunner(esql, threads, Boolean.getBoolean("ticketmaster.scriptQuiet"));
+			runner.run(ScriptRunner.read(args[4]));
+		} else if (command.equals("--cancel-pending") && (args.length == 4 || args.length == 5)) {
+			esql.journal().begin(command);
+			try{
+				esql.sweeper().cancelPending(args.length == 5 ? args[4] : null);
+			}catch (Exception e){
+				AuditJournal.failed(e);
+				esql.journal().end(false);
+				throw e;
+			}
+			esql.journal().end(true);
+		} else if (command.equals("--clear-cancelled") && (args.length == 4 || args.length == 5)) {
+			esql.journal().begin(command);
+			try{
+				esql.sweeper().clearCancelled(args.length == 5 ? args[4] : null);
+			}catch (Exception e){
+				AuditJournal.failed(e);
+				esql.journal().end(false);
+				throw e;
+			}
+			esql.journal().end(true);
+		} else if (command.equals("--migrate") && args.length == 4) {
+			new Migrations(esql).migrate();
+		} else if (command.equals("--advise") && (args.length == 5 || args.length == 6)) {
+			int threads = args.length == 6 ? Integer.parseInt(args[5]) : esql.poolSize();
+			QueryAdvisor advisor = new QueryAdvisor(esql, Long.getLong("ticketmaster.adviseMinRows", 1000L));
+			esql.capture(advisor);
+			try{
+				new ScriptRunner(esql, threads, true).run(ScriptRunner.read(args[4]));
+			}finally{
+				esql.capture(null);
+			}
+			advisor.report();
+		} else if (command.equals("--occupancy") && (args.length == 4 || args.length == 5)) {
+			List<List<String>> rows = esql.occupancy().sellThrough(args.length == 5 ? Integer.parseInt(args[4]) : 20);
+			System.out.println(String.join("\t", Occupancy.SELL_THROUGH_COLUMNS));
+			for (List<String> row : rows)
+				System.out.println(String.join("\t", row));
+		} else if (command.equals("--reconcile-occupancy") && args.length == 4) {
+			esql.occupancy().reconcile();
+		} else if (command.equals("--journal-inspect") && (args.length == 5 || args.length == 6)) {
+			AuditJournal.inspect(args[4], args.length == 6 ? args[5] : null);
+		} else if (command.equals("--journal-replay") && (args.length == 5 || args.length == 6)) {
+			// one thread, so the operations run in journal order
+			new ScriptRunner(esql, 1, Boolean.getBoolean("ticketmaster.scriptQuiet"))
+				.run(AuditJournal.replay(args[4], args.length == 6 ? Long.parseLong(args[5]) : 0));
+		} else if (command.equals("--serve") && args.length == 5) {
+			TicketmasterServer server = new TicketmasterServer(esql,
+				Integer.getInteger("ticketmaster.maxInFlight", 4 * esql.poolSize()),
+				Long.getLong("ticketmaster.queueTimeoutMs", 1000));
+			server.start(Integer.parseInt(args[4]));
+			server.awaitShutdown();
+		} else {
+			System.err.println("Unknown command: " + String.join(" ", Arrays.copyOfRange(args, 3, args.length)));
+		}//end if
+	}//end runCommand
+	
 	public static int readChoice() {
 		int input;
 		// returns only if a correct value is given.
 		do {
 			System.out.print("Please make your choice: ");
 			try { // read the integer, parse it and break.
-				input = Integer.parseInt(in.readLine());
+				input = Integer.parseInt(required(in.readLine()));
 				break;
+			}catch (EOFException e) {
+				// the console was closed: treat it as EXIT
+				return OPERATIONS.length;
 			}catch (Exception e) {
 				System.out.println("Your input is invalid!");
 				continue;
@@ -309,6 +1357,27 @@ public class Ticketmaster{
 		return input;
 	}//end readChoice
 	
+	/**
+	 * @return the trimmed answer, or null if it was blank or missing
+	 */
+	static String optional(String answer) {
+		return answer == null || answer.trim().length() == 0 ? null : answer.trim();
+	}
+	
+	/**
+	 * Used by the prompts that repeat until they get a valid answer, so a
+	 * script or HTTP request that runs out of answers fails instead of
+	 * looping forever.
+	 * 
+	 * @return the answer
+	 * @throws java.io.EOFException when there is no more input
+	 */
+	static String required(String answer) throws EOFException {
+		if (answer == null)
+			throw new EOFException("Ran out of input");
+		return answer;
+	}
+	
 	public static void AddUser(Ticketmaster esql){//1
 		try{
 			System.out.printf("Email: ");
@@ -321,112 +1390,107 @@ public class Ticketmaster{
 			String phone = in.readLine();
 			System.out.printf("Password: ");
 			String pwd = in.readLine();
-			esql.executeUpdate(String.format("INSERT INTO users VALUES ('%s', '%s', '%s', '%s', '%s');", email, lname, fname, phone,"7AEE99C0E48BC90FEF4C030DD7D3A867195966D452E699F97777157"));
+			AuditJournal.redact();
+			esql.executeUpdate("INSERT INTO users VALUES (?, ?, ?, ?, ?)", email, lname, fname, phone,"7AEE99C0E48BC90FEF4C030DD7D3A867195966D452E699F97777157");
 			System.out.println("User Added Successfully");
     		}
     		catch( Exception e) {
-      			e.printStackTrace();
+      			esql.reportError(e);
     		}
   	}
 	
 	public static void AddBooking(Ticketmaster esql){//2
 		try{
-			List<List<String>> result = esql.executeQueryAndReturnResult("SELECT MAX(bid) FROM Bookings");
-			int bid = Integer.parseInt(result.get(0).get(0))+1;
 			boolean flag = true;
-			String status;
 			String bdatetime;
 			int sid;
 			int seats=0;
 			String email=null;
 			System.out.println("Show ID: ");
 			sid = Integer.parseInt(in.readLine());		
-			//System.out.println("Status: ");
-			status = "Pending";
+			//load the seat map while the rest of the booking is entered
+			final int show = sid;
+			CompletableFuture<SeatIndex.Show> seatMap = esql.async(new Ticketmaster.Work<SeatIndex.Show>(){
+				public SeatIndex.Show run() throws SQLException {
+					return esql.seats().get(show);
+				}
+			});
 			System.out.println("DateTime: ");
 			bdatetime = in.readLine();
+			Ticketmaster.await(seatMap);
 			//Booking
 			while(flag) {
 				System.out.println("# Seats: ");
-				seats = Integer.parseInt(in.readLine());
-				result = esql.executeQueryAndReturnResult(String.format("SELECT seats FROM Bookings WHERE sid = %d",sid));
-				int count=0;
-				for(int i =0; i<result.size(); i++) {
-					count = count+Integer.parseInt(result.get(i).get(0));
-				}
-				count = count+seats;			
-				result = esql.executeQueryAndReturnResult(String.format("SELECT T.tseats FROM Theaters T, Plays P  WHERE P.sid = %d AND P.tid = T.tid", sid));
-				if(count < Integer.parseInt(result.get(0).get(0))) {
+				seats = Integer.parseInt(required(in.readLine()));
+				int free = esql.seats().get(sid).freeCount();
+				if(seats > 0 && seats <= free) {
 					flag = false;
-				} 
-				if(flag == true) {
+				} else {
 					System.out.println("Not enough seats available");
 				}
 			}
 			flag = true;
 			while(flag) {
 				System.out.println("Email: ");
-				email = in.readLine();
+				email = required(in.readLine());
 				System.out.println(email);
-				if(esql.executeQuery(String.format("SELECT fname FROM Users WHERE email = '%s'",email))>0) {
+				if(esql.executeQuery("SELECT fname FROM Users WHERE email = ?",email)>0) {
 					flag = false;
 				} else {
 					System.out.println("Invalid email address");
 				}
 			}
-			esql.executeUpdate(String.format("INSERT INTO Bookings (bid, status, bdatetime, seats, sid, email) VALUES ('%d', '%s', '%s', '%d', '%d', '%s')", bid, status, bdatetime, seats, sid, email));
 			//ShowSeats
-			int cost=0;			
-			System.out.println(String.format("Available seats for Show %d are: ",sid));
-			String tid = esql.executeQueryAndReturnResult(String.format("SELECT tid FROM Plays Where sid = '%d'", sid)).get(0).get(0);
-			result = esql.executeQueryAndReturnResult(String.format("SELECT C.sno FROM CinemaSeats C, ShowSeats S WHERE C.tid = '%s' AND C.csid = S.csid AND S.bid IS NULL",tid));
-			System.out.println(result);
-			if(result.size() == 0) {
-				return;
+			BookingEngine.Booking booking = null;
+			while(booking == null) {
+				System.out.println(String.format("Available seats for Show %d are: ",sid));
+				List<String> result = esql.seats().get(sid).free();
+				System.out.println(result);
+				if(result.size() < seats) {
+					System.out.println("Not enough seats available");
+					return;
+				}
+				List<String> selection = new ArrayList<String>();
+				for(int i = 0; i < seats; i++) {
+					System.out.println("Which Seat would you like: ");
+					selection.add(required(in.readLine()));
+				}
+				try {
+					booking = esql.bookings().claimSeats(sid, email, bdatetime, selection);
+				} catch(BookingEngine.SeatsUnavailableException e) {
+					System.out.println("Some of those seats were just taken, please choose again");
+				}
 			}
-			int i =0;
-			do {
-				String select;
-				String selection;
-				System.out.println("Which Seat would you like: ");
-				i++;
-				select = in.readLine();
-				selection = esql.executeQueryAndReturnResult(String.format("SELECT S.csid FROM CinemaSeats C, ShowSeats S WHERE C.sno = '%s' AND C.tid = '%s' AND C.csid = S.csid",select, tid)).get(0).get(0);
-				System.out.println(selection);
-				esql.executeUpdate(String.format("UPDATE ShowSeats SET bid = '%d' WHERE csid = '%s'", bid, selection));
-				cost = cost+Integer.parseInt(esql.executeQueryAndReturnResult(String.format("SELECT price FROM ShowSeats WHERE csid = '%s'",selection)).get(0).get(0));
-			} while(i<seats);
-			System.out.println(String.format("Total cost is: %d",cost));
-			//System.out.println(result.get(0));
+			SessionIO.field("bid", booking.bid);
+			SessionIO.field("cost", booking.cost);
+			SessionIO.field("seats", booking.seats);
+			System.out.println(String.format("Booking ID: %d",booking.bid));
+			System.out.println(String.format("Total cost is: %d",booking.cost));
 			//Payment
-			result = esql.executeQueryAndReturnResult("SELECT MAX(pid) FROM Payments");
-			int pid = Integer.parseInt(result.get(0).get(0))+1;
 			System.out.println("Payment Method: ");
 			String method = in.readLine();
 			System.out.println("Would you like to pay?(yes/no)");
 			String response = in.readLine();
 			
-			int amount = cost;
 			int min = 10000000;
 			int max = 99999999;
-			int trid = (int)Math.random() * (max - min + 1) + min;
+			int trid = (int)(Math.random() * (max - min + 1)) + min;
 			//Write to db
 			if(response.equals("yes")) {
-				esql.executeUpdate(String.format("UPDATE Bookings SET status = 'Paid' WHERE bid = '%d'",bid));
-				esql.executeUpdate(String.format("INSERT INTO Payments (pid, bid, pmethod, pdatetime, amount, trid) VALUES ('%d', '%d', '%s', '%s', '%d', '%d')", pid, bid, method, bdatetime, amount, trid));
+				esql.bookings().pay(booking.bid, method, bdatetime, booking.cost, trid);
+				SessionIO.field("trid", trid);
 			}
+			SessionIO.field("paid", response.equals("yes"));
 		}
 		catch(Exception e) {
-			e.printStackTrace();
+			esql.reportError(e);
 		}
 	}
 	
 	public static void AddMovieShowingToTheater(Ticketmaster esql){//3
 		try{
-			int newMvid = Integer.parseInt(esql.executeQueryAndReturnResult("SELECT MAX(mvid) FROM movies").get(0).get(0))+ 1;
-      			String mvid = Integer.toString(newMvid);
-      			System.out.println("==========Movie Information==========");
-      			System.out.printf("Title: ");
+			System.out.println("==========Movie Information==========");
+			System.out.printf("Title: ");
 			String title = in.readLine();
 			System.out.printf("Release Date (YYYY-MM-DD): ");
 			String rdate = in.readLine();
@@ -440,60 +1504,96 @@ public class Ticketmaster{
 			String lang = in.readLine();
 			System.out.printf("Genre: ");
 			String genre = in.readLine();
-      			esql.executeUpdate(String.format("INSERT INTO movies VALUES ('%s', '%s', '%s', '%s', '%s', '%s', '%s', '%s');", mvid, title, rdate, country, description, duration, lang, genre));
-			int newSid = Integer.parseInt(esql.executeQueryAndReturnResult("SELECT MAX(sid) FROM shows").get(0).get(0))+ 1;
-      			String sid = Integer.toString(newSid);
-      			System.out.println("==========Show  Information==========");
+			System.out.println("==========Show  Information==========");
 			System.out.printf("Date (YYYY-MM-DD): ");
 			String sdate = in.readLine();
 			System.out.printf("Start Time (HH:MM:SS): ");
 			String sttime = in.readLine();
 			System.out.printf("End Time (HH:MM:SS): ");
 			String edtime = in.readLine();
-      			esql.executeUpdate(String.format("INSERT INTO shows VALUES ('%s', '%s', '%s', '%s', '%s');", sid, mvid, sdate, sttime, edtime)); 
-      			System.out.println("==========Play  Information==========");
-      			System.out.printf("Theater ID: ");
-      			String tid = in.readLine(); 
-      			esql.executeUpdate(String.format("INSERT INTO plays VALUES ('%s', '%s');", sid, tid));
-	    		System.out.println("Added Movie Showing to Theater Successfully");
-    		}
-    		catch( Exception e) {
-      			e.printStackTrace();
-    		}
+			System.out.println("==========Play  Information==========");
+			System.out.printf("Theater ID: ");
+			String tid = in.readLine();
+			//the movie, show and play go in together, as one transaction
+			esql.ensureCatalogSequences();
+			Pipeline p = esql.pipeline(true);
+			p.update("INSERT INTO movies VALUES (nextval('movies_mvid_seq'), ?, ?, ?, ?, ?, ?, ?)", title, rdate, country, description, duration, lang, genre);
+			p.update("INSERT INTO shows VALUES (nextval('shows_sid_seq'), currval('movies_mvid_seq'), ?, ?, ?)", sdate, sttime, edtime);
+			p.update("INSERT INTO plays VALUES (currval('shows_sid_seq'), ?)", tid);
+			CompletableFuture<List<List<String>>> ids = p.query("SELECT currval('movies_mvid_seq'), currval('shows_sid_seq')");
+			p.execute();
+			esql.catalog().invalidateAll();
+			esql.search().invalidate();
+			List<String> id = Ticketmaster.await(ids).get(0);
+			AuditJournal.note("mvid", id.get(0));
+			AuditJournal.note("sid", id.get(1));
+			System.out.println(String.format("Added Movie Showing to Theater Successfully (movie %s, show %s)", id.get(0), id.get(1)));
+		}
+		catch( Exception e) {
+			esql.reportError(e);
+		}
 	}
 	
 	public static void CancelPendingBookings(Ticketmaster esql){//4
 		try{
-			esql.executeUpdate("UPDATE showseats ss SET bid = NULL From bookings b WHERE b.bid = ss.bid;");
-			esql.executeUpdate("UPDATE Bookings SET status = 'Cancelled' WHERE status = 'Pending'");		
+			System.out.println("Only bookings made before (yyyy-mm-dd hh:mm, blank for all): ");
+			esql.sweeper().cancelPending(optional(in.readLine()));
+		}
+		catch(BookingSweeper.AlreadyRunningException e) {
+			System.out.println(e.getMessage());
+			esql.metrics().markFailed();
 		}
 		catch(Exception e) {
-			e.printStackTrace();
+			esql.reportError(e);
 		}
 	}
 	
 	public static void ChangeSeatsForBooking(Ticketmaster esql) throws Exception{//5
 		try{
 			System.out.println("Enter your booking ID: ");
-			String bid = in.readLine();
-			String sid = esql.executeQueryAndReturnResult(String.format("SELECT sid FROM Bookings WHERE bid = '%s'",bid)).get(0).get(0);
+			int bid = Integer.parseInt(in.readLine());
+			List<BookingEngine.BookedSeat> booked = esql.bookings().bookedSeats(bid);
+			if(booked.isEmpty()) {
+				System.out.println("This booking holds no seats");
+				return;
+			}
+			SeatIndex.Show show = esql.seats().get(booked.get(0).sid);
 			System.out.println("Current Seat(s) for this booking are: ");
-			List<List<String>> result = esql.executeQueryAndReturnResult(String.format("SELECT csid FROM ShowSeats WHERE bid = '%s'", bid));
-			//System.out.println(result);
-			for(int i =0; i<result.size(); i++) {
-				System.out.println(esql.executeQueryAndReturnResult(String.format("SELECT sno FROM CinemaSeats WHERE csid = '%s'",result.get(i).get(0))).get(0).get(0));
+			for(BookingEngine.BookedSeat seat : booked) {
+				System.out.println(seat.sno);
 				System.out.println("Price: ");
-				String price = esql.executeQueryAndReturnResult(String.format("SELECT price FROM ShowSeats WHERE csid = '%s'",result.get(i).get(0))).get(0).get(0);
-				System.out.println(price);
+				System.out.println(seat.price);
 				System.out.println("Available Exchanges: ");
-				List<List<String>> posible = esql.executeQueryAndReturnResult(String.format("SELECT csid FROM ShowSeats WHERE price = '%s' AND sid = '%s' AND bid IS NULL", price, sid));
-				for(int j=0; j<posible.size(); j++) {
-					System.out.println(esql.executeQueryAndReturnResult(String.format("SELECT sno FROM CinemaSeats WHERE csid = '%s'", posible.get(i).get(0))));
-				}
+				System.out.println(show.freeAtPrice(seat.price));
+			}
+			List<String> from = new ArrayList<String>();
+			List<String> to = new ArrayList<String>();
+			while(true) {
+				System.out.println("Seat to change (blank when done): ");
+				String sno = optional(in.readLine());
+				if(sno == null)
+					break;
+				System.out.println("New seat: ");
+				from.add(sno);
+				to.add(required(in.readLine()).trim());
+			}
+			if(from.isEmpty()) {
+				System.out.println("No seats changed");
+				return;
+			}
+			try {
+				esql.bookings().exchange(bid, from, to);
+				SessionIO.field("bid", bid);
+				SessionIO.field("from", from);
+				SessionIO.field("to", to);
+				System.out.println(String.format("Changed %d seat(s) for booking %d", from.size(), bid));
+			} catch(BookingEngine.SeatsUnavailableException e) {
+				System.out.println(e.getMessage() + "; no seats were changed");
+				esql.metrics().markFailed();
 			}
 		}
 		catch(Exception e) {
-			e.printStackTrace();
+			esql.reportError(e);
 		}
 	}
 	
@@ -502,40 +1602,62 @@ public class Ticketmaster{
 			System.out.println("Enter booking ID: ");
 			String bid = in.readLine();
 			
-			esql.executeUpdate(String.format("UPDATE ShowSeats SET bid = '' WHERE bid = '%s'", bid));
-			esql.executeUpdate(String.format("UPDATE Bookings SET status = 'Cancelled' WHERE bid = '%s'",bid));
-			esql.executeUpdate(String.format("DELETE FROM Payments WHERE bid = '%s'",bid));
+			//release the seats, cancel the booking and drop the payment in one round trip
+			Pipeline p = esql.pipeline(true);
+			CompletableFuture<Integer> seats = p.update("UPDATE ShowSeats SET bid = NULL WHERE bid = ?", bid);
+			p.update("UPDATE Bookings SET status = 'Cancelled' WHERE bid = ?", bid);
+			CompletableFuture<Integer> payments = p.update("DELETE FROM Payments WHERE bid = ?", bid);
+			p.execute();
+			esql.seats().invalidateAll();
+			AuditJournal.note("bid", bid);
+			AuditJournal.note("payments", Ticketmaster.await(payments));
+			AuditJournal.note("seats", Ticketmaster.await(seats));
+			SessionIO.field("bid", Integer.parseInt(bid.trim()));
+			SessionIO.field("payments", Ticketmaster.await(payments));
+			SessionIO.field("seats", Ticketmaster.await(seats));
+			System.out.println(String.format("Removed %d payment(s) and released %d seat(s)", Ticketmaster.await(payments), Ticketmaster.await(seats)));
 		}
 		catch(Exception e) {
-			e.printStackTrace();
+			esql.reportError(e);
 		}		
 	}
 	
 	public static void ClearCancelledBookings(Ticketmaster esql){//7
 		try{
-			esql.executeUpdate("DELETE FROM Bookings WHERE status = 'Cancelled'");
+			System.out.println("Only bookings made before (yyyy-mm-dd hh:mm, blank for all): ");
+			esql.sweeper().clearCancelled(optional(in.readLine()));
+		}
+		catch(BookingSweeper.AlreadyRunningException e) {
+			System.out.println(e.getMessage());
+			esql.metrics().markFailed();
 		}
 		catch(Exception e) {
-			e.printStackTrace();
+			esql.reportError(e);
 		}	
 	}
 	
 	public static void RemoveShowsOnDate(Ticketmaster esql){//8
 		try{
-			System.out.println("Which Cinema ID: ");
-			String cid = in.readLine();
+			System.out.println("Which Cinema ID(s) (comma separated): ");
+			List<String> cids = new ArrayList<String>();
+			for(String cid : in.readLine().split(",")) {
+				if(cid.trim().length() > 0)
+					cids.add(cid.trim());
+			}
 			System.out.println("What Date(#/#/##): ");
 			String date = in.readLine();
-			List<List<String>> result = esql.executeQueryAndReturnResult(String.format("SELECT S.sid FROM Shows S, Theaters T, Plays P WHERE S.sid = P.sid AND P.tid = T.tid AND T.cid = '%s' AND S.sdate = '%s'",cid, date));
-			System.out.println(result);
-			for(int i=0; i<result.size(); i++) {
-				esql.executeUpdate(String.format("DELETE FROM Plays WHERE sid = '%s'", result.get(i).get(0)));
-				esql.executeUpdate(String.format("DELETE FROM ShowSeats WHERE sid = '%s'", result.get(i).get(0)));
-				esql.executeUpdate(String.format("DELETE FROM Shows WHERE sid = '%s'", result.get(i).get(0)));
-			}
+			System.out.println("Through Date (blank for the same day): ");
+			String through = in.readLine();
+			if(through == null || through.trim().length() == 0)
+				through = date;
+			int[] removed = esql.removeShows(cids, date, through);
+			AuditJournal.note("shows", removed[2]);
+			AuditJournal.note("plays", removed[0]);
+			AuditJournal.note("showseats", removed[1]);
+			System.out.println(String.format("Removed %d show(s), %d play(s) and %d show seat(s)", removed[2], removed[0], removed[1]));
 		}
 		catch(Exception e) {
-			e.printStackTrace();
+			esql.reportError(e);
 		}
 	}
 	
@@ -544,11 +1666,12 @@ public class Ticketmaster{
 		try {
 			System.out.println("Which show would you like to search?");
 			String sid = in.readLine();
-			List<List<String>> result = esql.executeQueryAndReturnResult(String.format("SELECT T.tname FROM Theaters T, Plays P Where P.sid = '%s' AND T.tid = P.tid",sid));
-			System.out.println(result);			
+			CatalogCache.Result theaters = esql.executeCatalogQuery("SELECT T.tname FROM Theaters T, Plays P Where P.sid = ? AND T.tid = P.tid",sid);
+			SessionIO.rows(theaters.columns, theaters.rows);
+			System.out.println(theaters.rows);			
 		}
 		catch(Exception e) {
-			e.printStackTrace();
+			esql.reportError(e);
 		}
 	}
 	
@@ -559,30 +1682,35 @@ public class Ticketmaster{
 			String sdate = in.readLine();
 			System.out.printf("Start Time (HH:MM:SS): ");
 			String sttime = in.readLine();
-			esql.executeQueryAndPrintResult(String.format("SELECT * FROM shows where sdate = '%s' and sttime = '%s';", sdate, sttime));
+			esql.printCatalogQuery("SELECT * FROM shows where sdate = ? and sttime = ?", sdate, sttime);
 		}
 		catch(Exception e){
-			e.printStackTrace();
+			esql.reportError(e);
 		}	
 	}
 
 	public static void ListMovieTitlesContainingLoveReleasedAfter2010(Ticketmaster esql){//11
 		//
 		try{
-			esql.executeQueryAndPrintResult("SELECT * FROM movies WHERE LOWER(title) LIKE '%love%' and rdate >=  '2011-01-01';");
+			//ILIKE can use the trigram index on title, LOWER(title) LIKE cannot
+			esql.search().ensureIndexes();
+			esql.printCatalogQuery("SELECT * FROM movies WHERE title ILIKE '%love%' and rdate >=  '2011-01-01'");
 		}
 		catch(Exception e){
-			e.printStackTrace();
+			esql.reportError(e);
 		}
 	}
 
 	public static void ListUsersWithPendingBooking(Ticketmaster esql){//12
 		//
 		try{
-			esql.executeQueryAndPrintResult("SELECT u.* FROM bookings b, users u WHERE b.status = 'Pending' and u.email = b.email;");
+			int pageSize = Integer.getInteger("ticketmaster.listPageSize", 50);
+			Listings.Page page = esql.listings().usersWithPendingBooking(null, pageSize);
+			while(printPage(page) && page.next != null)
+				page = esql.listings().usersWithPendingBooking(page.next, pageSize);
 		}
 		catch(Exception e){
-			e.printStackTrace();
+			esql.reportError(e);
 		}
 	}
 
@@ -598,10 +1726,10 @@ public class Ticketmaster{
 			String startDate = in.readLine();
 			System.out.printf("End Date (YYYY-MM-DD): ");
 			String endDate = in.readLine();	
-			esql.executeQueryAndPrintResult(String.format("SELECT m.title, m.duration, s.sdate, s.sttime FROM movies m, shows s, cinemas c WHERE c.cid = '%s' and m.mvid = '%s' and s.sdate BETWEEN '%s' and '%s';", cid, mid, startDate, endDate));
+			esql.printCatalogQuery("SELECT m.title, m.duration, s.sdate, s.sttime FROM movies m, shows s, cinemas c WHERE c.cid = ? and m.mvid = ? and s.sdate BETWEEN ? and ?", cid, mid, startDate, endDate);
 		}
 		catch(Exception e){
-			e.printStackTrace();
+			esql.reportError(e);
 		}
 	}
 
@@ -610,10 +1738,72 @@ public class Ticketmaster{
 		try{
 			System.out.printf("Email: ");
 			String email = in.readLine();
-			esql.executeQueryAndPrintResult(String.format("SELECT m.title, s.sdate, s.sttime, t.tname, cs.sno FROM bookings b, movies m, shows s, theaters t, cinemaseats cs, plays p WHERE b.email = '%s' and b.sid = s.sid and m.mvid = s.mvid and p.sid = s.sid and p.tid = t.tid and cs.tid = t.tid;", email));
+			int pageSize = Integer.getInteger("ticketmaster.listPageSize", 50);
+			Listings.Page page = esql.listings().bookingsForUser(email, null, pageSize);
+			while(printPage(page) && page.next != null)
+				page = esql.listings().bookingsForUser(email, page.next, pageSize);
+		}
+		catch(Exception e){
+			esql.reportError(e);
+		}
+	}
+	
+	/**
+	 * Prints one page of a listing and, if there are more, asks whether to
+	 * go on.
+	 * 
+	 * @return true to fetch the next page
+	 */
+	static boolean printPage(Listings.Page page) throws IOException {
+		SessionIO.rows(page.columns, page.rows);
+		if(page.estimate >= 0)
+			System.out.println("About " + page.estimate + " row(s)");
+		System.out.println(String.join("\t", page.columns));
+		for(List<String> row : page.rows)
+			System.out.println(String.join("\t", row));
+		if(page.next == null)
+			return false;
+		System.out.printf("More? (y/n): ");
+		String answer = in.readLine();
+		return answer != null && answer.trim().equalsIgnoreCase("y");
+	}
+	
+	public static void SearchMovies(Ticketmaster esql){//15
+		try{
+			System.out.println("Search for (title or words, blank for all): ");
+			String term = optional(in.readLine());
+			System.out.println("Genre (blank for any): ");
+			String genre = optional(in.readLine());
+			System.out.println("Language (blank for any): ");
+			String lang = optional(in.readLine());
+			System.out.println("Released from (YYYY-MM-DD, blank for any): ");
+			String from = optional(in.readLine());
+			System.out.println("Released through (YYYY-MM-DD, blank for any): ");
+			String to = optional(in.readLine());
+			System.out.println("Page (blank for 1): ");
+			String page = optional(in.readLine());
+			int pageNo = page == null ? 1 : Math.max(1, Integer.parseInt(page));
+			int pageSize = Integer.getInteger("ticketmaster.searchPageSize", 20);
+			MovieSearch.Page result = esql.search().search(term, genre, lang, from, to, pageNo, pageSize);
+			SessionIO.rows(result.columns, result.rows);
+			SessionIO.field("more", result.more);
+			if(result.rows.isEmpty()) {
+				System.out.println("No movies found");
+				if(term != null && pageNo == 1) {
+					List<String> suggestions = esql.search().autocomplete(term, 5);
+					SessionIO.field("suggestions", suggestions);
+					if(!suggestions.isEmpty())
+						System.out.println("Did you mean: " + String.join(", ", suggestions));
+				}
+				return;
+			}
+			System.out.println(String.join("\t", result.columns));
+			for(List<String> row : result.rows)
+				System.out.println(String.join("\t", row));
+			System.out.println(String.format("Page %d%s", pageNo, result.more ? " (more on page " + (pageNo + 1) + ")" : ""));
 		}
 		catch(Exception e){
-			e.printStackTrace();
+			esql.reportError(e);
 		}
 	}
 	
@@ -0,0 +1,233 @@
+/*
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Throughput benchmarks for the data access layer, run against a local
+ * Postgres.  Each benchmark is run for a number of timed warmup iterations
+ * whose results are thrown away, then for a number of measured iterations,
+ * and the mean and standard deviation of the measured ops/s are reported,
+ * in the manner of JMH's throughput mode.  Read benchmarks count rows and
+ * insert benchmarks count inserted rows as operations.  Every operation
+ * hands its result to consume(), which writes it to a volatile field, as
+ * JMH's Blackhole does, so the JIT cannot drop the work being measured.
+ * Only run() is timed: an operation's after() step, such as giving a
+ * claimed seat back, is left out of its ops/s.  The harness is plain Java
+ * rather than JMH because JMH refuses benchmark classes in the default
+ * package, and the classes benchmarked here all live in it.
+ *
+ *   java -cp .:postgresql.jar TicketmasterBench <dbname> <port> <user> <sid> <email>
+ *
+ * Tuning: -Dticketmaster.bench.warmups=3 -Dticketmaster.bench.iterations=5
+ * -Dticketmaster.bench.iterationMs=2000 -Dticketmaster.bench.only=<name prefix>
+ *
+ * The insert benchmarks use a scratch table bench_rows, which is dropped at
+ * the end.  The booking benchmark claims one seat of the given show and
+ * gives it back, so the show needs at least 64 free seats.
+ *
+ */
+
+public class TicketmasterBench{
+	private static final int WARMUPS = Integer.getInteger("ticketmaster.bench.warmups", 3);
+	private static final int ITERATIONS = Integer.getInteger("ticketmaster.bench.iterations", 5);
+	private static final long ITERATION_MS = Long.getLong("ticketmaster.bench.iterationMs", 2000L);
+	private static final String ONLY = System.getProperty("ticketmaster.bench.only", "");
+
+	//results of the operations are written here so they are never dead code
+	private static volatile Object sink;
+	private static volatile long sinkLong;
+
+	/**
+	 * One benchmark operation.  run() is called repeatedly from each thread
+	 * and returns the number of operations it performed; after() is called
+	 * once after each run(), outside the timing.
+	 */
+	static abstract class Op{
+		abstract int run(int thread) throws Exception;
+
+		void after(int thread) throws Exception {
+		}
+	}
+
+	public static void main (String[] args) throws Exception {
+		if (args.length < 5) {
+			System.err.println (
+				"Usage: " + "java [-classpath <classpath>] " + TicketmasterBench.class.getName () +
+					" <dbname> <port> <user> <sid> <email>");
+			return;
+		}//end if
+		System.setProperty("ticketmaster.poolSize", System.getProperty("ticketmaster.poolSize", "64"));
+		final Ticketmaster esql = new Ticketmaster(args[0], args[1], args[2], "");
+		final int sid = Integer.parseInt(args[3]);
+		final String email = args[4];
+		System.out.println(String.format("# Warmup: %d x %d ms, Measurement: %d x %d ms", WARMUPS, ITERATION_MS, ITERATIONS, ITERATION_MS));
+		System.out.println(String.format("%-36s %8s %14s %12s", "Benchmark", "Threads", "ops/s", "error"));
+
+		try{
+			// materialized vs streamed reads of the largest table
+			bench("read.executeQueryAndReturnResult", 1, new Op(){
+				public int run(int thread) throws Exception {
+					List<List<String>> rows = esql.executeQueryAndReturnResult("SELECT * FROM ShowSeats");
+					consume(rows);
+					return rows.size();
+				}
+			});
+			bench("read.executeQueryForEach", 1, new Op(){
+				public int run(int thread) throws Exception {
+					final long[] sum = new long[1];
+					int rows = esql.executeQueryForEach("SELECT * FROM ShowSeats", new Ticketmaster.RowHandler(){
+						public void row(ResultSet rs) throws SQLException {
+							sum[0] += rs.getInt(1);
+						}
+					});
+					consume(sum[0]);
+					return rows;
+				}
+			});
+
+			// single-row updates vs batched inserts
+			esql.executeUpdate("DROP TABLE IF EXISTS bench_rows");
+			esql.executeUpdate("CREATE TABLE bench_rows (id int, payload text)");
+			bench("write.executeUpdate", 1, new Op(){
+				public int run(int thread) throws Exception {
+					consume(esql.executeUpdate("INSERT INTO bench_rows VALUES (?, ?)", thread, "payload"));
+					return 1;
+				}
+			});
+			final List<Object[]> batch = new ArrayList<Object[]>();
+			for (int i = 0; i < 1000; ++i)
+				batch.add(new Object[]{ i, "payload" });
+			bench("write.executeBatch(1000)", 1, new Op(){
+				public int run(int thread) throws Exception {
+					return esql.inTransaction(new Ticketmaster.Work<Integer>(){
+						public Integer run() throws SQLException {
+							consume(esql.executeBatch("INSERT INTO bench_rows VALUES (?, ?)", batch));
+							return batch.size();
+						}
+					});
+				}
+			});
+			esql.executeUpdate("DROP TABLE bench_rows");
+
+			// the AddBooking seat claim under contention
+			int[] threads = { 1, 8, 64 };
+			for (int t = 0; t < threads.length; ++t){
+				final int[] claimed = new int[threads[t]];
+				bench("booking.claimAny", threads[t], new Op(){
+					public int run(int thread) throws Exception {
+						BookingEngine.Booking b = esql.bookings().claimAny(sid, email, "2020-01-01 00:00:00", 1);
+						consume(b.bid);
+						claimed[thread] = b.bid;
+						return 1;
+					}
+
+					// give the seat back, untimed, so the score is the claim rate
+					void after(int thread) throws Exception {
+						final int bid = claimed[thread];
+						esql.inTransaction(new Ticketmaster.Work<Void>(){
+							public Void run() throws SQLException {
+								esql.executeUpdate("UPDATE ShowSeats SET bid = NULL WHERE bid = ?", bid);
+								esql.executeUpdate("DELETE FROM Bookings WHERE bid = ?", bid);
+								return null;
+							}
+						});
+					}
+				});
+			}//end for
+			System.out.println(String.format("# sink %d %s", sinkLong, sink != null ? sink.getClass().getSimpleName() : "-"));
+		}finally{
+			esql.cleanup();
+		}//end try
+	}//end main
+
+	/**
+	 * Keeps a result alive, like JMH's Blackhole.consume.
+	 */
+	static void consume(Object result){
+		sink = result;
+	}
+
+	static void consume(long result){
+		sinkLong = result;
+	}
+
+	private static void bench(String name, int threads, Op op) throws Exception {
+		if (!name.startsWith(ONLY))
+			return;
+		for (int i = 0; i < WARMUPS; ++i)
+			iteration(threads, op);
+		double[] score = new double[ITERATIONS];
+		double mean = 0;
+		for (int i = 0; i < ITERATIONS; ++i){
+			score[i] = iteration(threads, op);
+			mean += score[i] / ITERATIONS;
+		}//end for
+		double var = 0;
+		for (int i = 0; i < ITERATIONS; ++i)
+			var += (score[i] - mean) * (score[i] - mean);
+		double sd = ITERATIONS > 1 ? Math.sqrt(var / (ITERATIONS - 1)) : 0;
+		System.out.println(String.format("%-36s %8d %14.1f %12.1f", name, threads, mean, sd));
+	}//end bench
+
+	/**
+	 * Runs op from the given number of threads for one iteration.
+	 *
+	 * @return operations per second, summed over the threads, each thread's
+	 * rate taken over the time it spent in run()
+	 */
+	private static double iteration(int threads, final Op op) throws Exception {
+		final AtomicBoolean stop = new AtomicBoolean(false);
+		final long[] ops = new long[threads];
+		final long[] nanos = new long[threads];
+		final CountDownLatch start = new CountDownLatch(1);
+		final CountDownLatch done = new CountDownLatch(threads);
+		final AtomicReference<Exception> failure = new AtomicReference<Exception>();
+		for (int t = 0; t < threads; ++t){
+			final int thread = t;
+			new Thread(new Runnable(){
+				public void run(){
+					try{
+						start.await();
+						while (!stop.get()){
+							long began = System.nanoTime();
+							ops[thread] += op.run(thread);
+							nanos[thread] += System.nanoTime() - began;
+							op.after(thread);
+						}//end while
+					}catch (Exception e){
+						failure.compareAndSet(null, e);
+					}finally{
+						done.countDown();
+					}//end try
+				}
+			}).start();
+		}//end for
+		start.countDown();
+		Thread.sleep(ITERATION_MS);
+		stop.set(true);
+		done.await();
+		if (failure.get() != null)
+			throw failure.get();
+		// the latch makes each thread's counts visible here
+		double rate = 0;
+		for (int t = 0; t < threads; ++t){
+			if (nanos[t] > 0)
+				rate += ops[t] / (nanos[t] / 1e9);
+		}//end for
+		return rate;
+	}//end iteration
+}//end TicketmasterBench
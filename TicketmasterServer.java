@@ -0,0 +1,479 @@
+/*
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.StringWriter;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.security.SecureRandom;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Serves the menu operations over HTTP/JSON on localhost.
+ *
+ *   GET  /ops                 lists the operations
+ *   POST /ops/{name or 1-15}  runs one, body {"args": [...]} or [...]
+ *   GET  /autocomplete?q=lov  movie titles with a word starting with q
+ *   GET  /bookings?email=..   a user's bookings, newest first, a page at a time
+ *   GET  /pending-users       users with a pending booking, a page at a time
+ *   GET  /occupancy[?sid=..]  seat counts of a show, or the best selling shows
+ *   GET  /metrics             Prometheus metrics
+ *
+ * The arguments are the answers to the operation's prompts, in order.  The
+ * reply carries the operation's results as fields, such as bid, cost and
+ * seats for a booking, columns and rows for a listing, and what it printed
+ * as output.  Every request runs on its own
+ * virtual thread when the JVM has them (Java 21), otherwise on a cached
+ * platform thread pool, and borrows pooled JDBC connections.  At most
+ * ticketmaster.maxInFlight requests run at once; a request that cannot
+ * start within ticketmaster.queueTimeoutMs is rejected with 503.
+ *
+ * The paged listings take limit (ticketmaster.listPageSize by default) and
+ * page, the next token of the previous reply.
+ *
+ * Replies to /ops, the listings and /occupancy carry an X-Session header.
+ * A client that sends it back with its later requests reads its own writes
+ * for ticketmaster.readYourWritesMs, even when replicas are configured and
+ * its requests run on different threads.
+ *
+ */
+
+public class TicketmasterServer{
+	private final Ticketmaster esql;
+	private final Semaphore inFlight;
+	private final SecureRandom random = new SecureRandom();
+	private final long queueTimeoutMillis;
+	private HttpServer server;
+	private ExecutorService executor;
+
+	public TicketmasterServer(Ticketmaster esql, int maxInFlight, long queueTimeoutMillis){
+		this.esql = esql;
+		this.inFlight = new Semaphore(maxInFlight);
+		this.queueTimeoutMillis = queueTimeoutMillis;
+	}
+
+	/**
+	 * Starts listening on localhost.
+	 *
+	 * @param port the TCP port
+	 * @throws java.io.IOException when the port cannot be bound
+	 */
+	public void start(int port) throws IOException {
+		SessionIO.install();
+		executor = newExecutor();
+		server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 1024);
+		server.setExecutor(executor);
+		server.createContext("/ops", new HttpHandler(){
+			public void handle(HttpExchange exchange) throws IOException {
+				try{
+					session(exchange);
+					ops(exchange);
+				}catch (RuntimeException e){
+					reply(exchange, 500, error(e.toString()));
+				}finally{
+					esql.session(null);
+					exchange.close();
+				}//end try
+			}
+		});
+		server.createContext("/autocomplete", new HttpHandler(){
+			public void handle(HttpExchange exchange) throws IOException {
+				try{
+					autocomplete(exchange);
+				}catch (RuntimeException e){
+					reply(exchange, 500, error(e.toString()));
+				}finally{
+					exchange.close();
+				}//end try
+			}
+		});
+		server.createContext("/bookings", new HttpHandler(){
+			public void handle(HttpExchange exchange) throws IOException {
+				try{
+					session(exchange);
+					listing(exchange, true);
+				}catch (RuntimeException e){
+					reply(exchange, 500, error(e.toString()));
+				}finally{
+					esql.session(null);
+					exchange.close();
+				}//end try
+			}
+		});
+		server.createContext("/pending-users", new HttpHandler(){
+			public void handle(HttpExchange exchange) throws IOException {
+				try{
+					session(exchange);
+					listing(exchange, false);
+				}catch (RuntimeException e){
+					reply(exchange, 500, error(e.toString()));
+				}finally{
+					esql.session(null);
+					exchange.close();
+				}//end try
+			}
+		});
+		server.createContext("/occupancy", new HttpHandler(){
+			public void handle(HttpExchange exchange) throws IOException {
+				try{
+					session(exchange);
+					occupancy(exchange);
+				}catch (RuntimeException e){
+					reply(exchange, 500, error(e.toString()));
+				}finally{
+					esql.session(null);
+					exchange.close();
+				}//end try
+			}
+		});
+		server.createContext("/metrics", new HttpHandler(){
+			public void handle(HttpExchange exchange) throws IOException {
+				StringWriter body = new StringWriter();
+				esql.metrics().writePrometheus(body);
+				exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4");
+				send(exchange, 200, body.toString());
+				exchange.close();
+			}
+		});
+		server.start();
+		System.out.println("Serving Ticketmaster on http://localhost:" + port + "/ops");
+	}//end start
+
+	/**
+	 * Stops accepting requests and waits up to a second for running ones.
+	 */
+	public void stop(){
+		if (server != null)
+			server.stop(1);
+		if (executor != null)
+			executor.shutdown();
+	}
+
+	/**
+	 * Blocks until the JVM is asked to shut down, then stops the server and
+	 * closes the connections.
+	 *
+	 * @throws java.lang.InterruptedException when interrupted while waiting
+	 */
+	public void awaitShutdown() throws InterruptedException {
+		final CountDownLatch done = new CountDownLatch(1);
+		Runtime.getRuntime().addShutdownHook(new Thread(){
+			public void run(){
+				TicketmasterServer.this.stop();
+				esql.cleanup();
+				done.countDown();
+			}
+		});
+		done.await();
+	}
+
+	/**
+	 * Uses a virtual thread per request if this JVM supports them.
+	 */
+	private static ExecutorService newExecutor(){
+		try{
+			return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+		}catch (ReflectiveOperationException e){
+			return Executors.newCachedThreadPool();
+		}//end try
+	}
+
+	/**
+	 * Binds the request's X-Session to the current thread, starting a new
+	 * session if it has none, and returns it in the reply.
+	 */
+	private void session(HttpExchange exchange){
+		String session = exchange.getRequestHeaders().getFirst("X-Session");
+		if (session == null || session.length() == 0 || session.length() > 64){
+			byte[] bytes = new byte[16];
+			random.nextBytes(bytes);
+			StringBuilder sb = new StringBuilder(32);
+			for (byte b : bytes)
+				sb.append(String.format("%02x", b & 0xff));
+			session = sb.toString();
+		}//end if
+		exchange.getResponseHeaders().set("X-Session", session);
+		esql.session(session);
+	}
+
+	private void ops(HttpExchange exchange) throws IOException {
+		String path = exchange.getRequestURI().getPath();
+		if (path.equals("/ops") || path.equals("/ops/")){
+			StringBuilder sb = new StringBuilder("[");
+			for (int i = 1; i < Ticketmaster.OPERATIONS.length; ++i){
+				if (i > 1)
+					sb.append(',');
+				sb.append("{\"id\":").append(i).append(",\"name\":");
+				Json.quote(sb, Ticketmaster.OPERATIONS[i]).append('}');
+			}//end for
+			reply(exchange, 200, sb.append(']').toString());
+			return;
+		}//end if
+		if (!exchange.getRequestMethod().equals("POST")){
+			exchange.getResponseHeaders().set("Allow", "POST");
+			reply(exchange, 405, error("Use POST to run an operation"));
+			return;
+		}//end if
+
+		int choice;
+		List<String> args;
+		try{
+			choice = ScriptRunner.choice(path.substring("/ops/".length()));
+			args = arguments(readBody(exchange.getRequestBody()));
+		}catch (IllegalArgumentException e){
+			reply(exchange, 400, error(e.getMessage()));
+			return;
+		}//end try
+
+		try{
+			if (!inFlight.tryAcquire(queueTimeoutMillis, TimeUnit.MILLISECONDS)){
+				exchange.getResponseHeaders().set("Retry-After", "1");
+				reply(exchange, 503, error("Too many requests in flight"));
+				return;
+			}//end if
+		}catch (InterruptedException e){
+			Thread.currentThread().interrupt();
+			reply(exchange, 503, error("Interrupted"));
+			return;
+		}//end try
+
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		long start = System.nanoTime();
+		boolean ok = true;
+		SessionIO.Result result = null;
+		try{
+			SessionIO.bind(args, output);
+			Ticketmaster.dispatch(esql, choice);
+		}catch (Exception e){
+			ok = false;
+		}finally{
+			result = SessionIO.result();
+			SessionIO.unbind();
+			inFlight.release();
+		}//end try
+		ok = ok && !esql.metrics().failed();
+
+		StringBuilder sb = new StringBuilder("{\"op\":");
+		Json.quote(sb, Ticketmaster.OPERATIONS[choice]);
+		sb.append(",\"ok\":").append(ok);
+		sb.append(",\"millis\":").append((System.nanoTime() - start) / 1000000.0);
+		for (Map.Entry<String, Object> field : result.fields.entrySet()){
+			Json.quote(sb.append(','), field.getKey()).append(':');
+			value(sb, field.getValue());
+		}//end for
+		if (result.columns != null)
+			table(sb.append(','), result.columns, result.rows);
+		sb.append(",\"output\":");
+		Json.quote(sb, output.toString("UTF-8")).append('}');
+		reply(exchange, ok ? 200 : 500, sb.toString());
+	}//end ops
+
+	private void autocomplete(HttpExchange exchange) throws IOException {
+		String q = queryParams(exchange).get("q");
+		if (q == null)
+			q = "";
+		List<String> titles;
+		try{
+			titles = esql.search().autocomplete(q, Integer.getInteger("ticketmaster.autocompleteLimit", 10));
+		}catch (SQLException e){
+			reply(exchange, 500, error(e.getMessage()));
+			return;
+		}//end try
+		StringBuilder sb = new StringBuilder("[");
+		for (int i = 0; i < titles.size(); ++i){
+			if (i > 0)
+				sb.append(',');
+			Json.quote(sb, titles.get(i));
+		}//end for
+		reply(exchange, 200, sb.append(']').toString());
+	}//end autocomplete
+
+	private void listing(HttpExchange exchange, boolean bookings) throws IOException {
+		Map<String, String> params = queryParams(exchange);
+		String email = params.get("email");
+		if (bookings && email == null){
+			reply(exchange, 400, error("email is required"));
+			return;
+		}//end if
+		Listings.Page page;
+		esql.readFromReplicas(true);
+		try{
+			int limit = params.containsKey("limit") ? Integer.parseInt(params.get("limit")) : Integer.getInteger("ticketmaster.listPageSize", 50);
+			if (limit < 1 || limit > 1000)
+				throw new IllegalArgumentException("limit must be between 1 and 1000");
+			page = bookings
+				? esql.listings().bookingsForUser(email, params.get("page"), limit)
+				: esql.listings().usersWithPendingBooking(params.get("page"), limit);
+		}catch (IllegalArgumentException e){
+			reply(exchange, 400, error(e.getMessage()));
+			return;
+		}catch (SQLException e){
+			reply(exchange, 500, error(e.getMessage()));
+			return;
+		}finally{
+			esql.readFromReplicas(false);
+		}//end try
+		StringBuilder sb = table(new StringBuilder("{"), page.columns, page.rows);
+		sb.append(",\"next\":");
+		if (page.next == null)
+			sb.append("null");
+		else
+			Json.quote(sb, page.next);
+		if (page.estimate >= 0)
+			sb.append(",\"estimate\":").append(page.estimate);
+		reply(exchange, 200, sb.append('}').toString());
+	}//end listing
+
+	private void occupancy(HttpExchange exchange) throws IOException {
+		Map<String, String> params = queryParams(exchange);
+		StringBuilder sb = new StringBuilder("{");
+		esql.readFromReplicas(true);
+		try{
+			if (params.containsKey("sid")){
+				Occupancy.Counts counts = esql.occupancy().get(Integer.parseInt(params.get("sid")));
+				sb.append("\"capacity\":").append(counts.capacity).append(",\"taken\":").append(counts.taken);
+			}else{
+				table(sb, Occupancy.SELL_THROUGH_COLUMNS, esql.occupancy().sellThrough(params.containsKey("limit") ? Integer.parseInt(params.get("limit")) : 20));
+			}//end if
+		}catch (IllegalArgumentException e){
+			reply(exchange, 400, error(e.getMessage()));
+			return;
+		}catch (SQLException e){
+			reply(exchange, 500, error(e.getMessage()));
+			return;
+		}finally{
+			esql.readFromReplicas(false);
+		}//end try
+		reply(exchange, 200, sb.append('}').toString());
+	}//end occupancy
+
+	/**
+	 * Appends a result field's value to sb: numbers and booleans as they
+	 * are, lists as arrays of strings, anything else as a string.
+	 */
+	private static StringBuilder value(StringBuilder sb, Object value){
+		if (value == null || value instanceof Number || value instanceof Boolean)
+			return sb.append(value);
+		if (!(value instanceof List))
+			return Json.quote(sb, String.valueOf(value));
+		sb.append('[');
+		List<?> list = (List<?>) value;
+		for (int i = 0; i < list.size(); ++i){
+			if (i > 0)
+				sb.append(',');
+			Json.quote(sb, String.valueOf(list.get(i)));
+		}//end for
+		return sb.append(']');
+	}
+
+	/**
+	 * Appends "columns":[...],"rows":[[...],...] to sb.
+	 */
+	private static StringBuilder table(StringBuilder sb, List<String> columns, List<List<String>> rows){
+		sb.append("\"columns\":[");
+		for (int i = 0; i < columns.size(); ++i){
+			if (i > 0)
+				sb.append(',');
+			Json.quote(sb, columns.get(i));
+		}//end for
+		sb.append("],\"rows\":[");
+		for (int r = 0; r < rows.size(); ++r){
+			sb.append(r > 0 ? ",[" : "[");
+			List<String> row = rows.get(r);
+			for (int i = 0; i < row.size(); ++i){
+				if (i > 0)
+					sb.append(',');
+				if (row.get(i) == null)
+					sb.append("null");
+				else
+					Json.quote(sb, row.get(i));
+			}//end for
+			sb.append(']');
+		}//end for
+		return sb.append(']');
+	}
+
+	/**
+	 * @return the decoded parameters of the request's query string
+	 */
+	private static Map<String, String> queryParams(HttpExchange exchange) throws IOException {
+		Map<String, String> params = new HashMap<String, String>();
+		String query = exchange.getRequestURI().getRawQuery();
+		if (query == null)
+			return params;
+		for (String param : query.split("&")){
+			int eq = param.indexOf('=');
+			if (eq > 0)
+				params.put(URLDecoder.decode(param.substring(0, eq), "UTF-8"), URLDecoder.decode(param.substring(eq + 1), "UTF-8"));
+		}//end for
+		return params;
+	}
+
+	/**
+	 * Accepts {"args": [...]}, a bare array, or an empty body.
+	 */
+	private static List<String> arguments(String body){
+		List<String> args = new ArrayList<String>();
+		if (body.trim().length() == 0)
+			return args;
+		Object parsed = Json.parse(body);
+		if (parsed instanceof Map)
+			parsed = ((Map<?, ?>) parsed).get("args");
+		if (parsed == null)
+			return args;
+		if (!(parsed instanceof List))
+			throw new IllegalArgumentException("args must be an array");
+		for (Object arg : (List<?>) parsed)
+			args.add(arg == null ? "" : String.valueOf(arg));
+		return args;
+	}
+
+	private static String readBody(InputStream in) throws IOException {
+		ByteArrayOutputStream body = new ByteArrayOutputStream();
+		byte[] buf = new byte[4096];
+		int n;
+		while ((n = in.read(buf)) > 0)
+			body.write(buf, 0, n);
+		return body.toString("UTF-8");
+	}
+
+	private static String error(String message){
+		return Json.quote(new StringBuilder("{\"ok\":false,\"error\":"), message).append('}').toString();
+	}
+
+	private static void reply(HttpExchange exchange, int status, String json) throws IOException {
+		exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+		send(exchange, status, json);
+	}
+
+	private static void send(HttpExchange exchange, int status, String body) throws IOException {
+		byte[] bytes = body.getBytes("UTF-8");
+		exchange.sendResponseHeaders(status, bytes.length);
+		OutputStream os = exchange.getResponseBody();
+		os.write(bytes);
+		os.close();
+	}
+}//end TicketmasterServer
@@ -0,0 +1,370 @@
+/*
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Queue;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Drives a mix of menu operations against a database filled by
+ * DataGenerator and reports throughput, latency percentiles and the rates of
+ * conflicts and aborts for each operation.
+ *
+ * The operations are browse (a movie search or a show's seat map), book
+ * (chosen free seats of a show), pay, cancel and change (one seat of a
+ * booking for a free seat at the same price) on bookings the run made
+ * earlier, and history (a user's booking listing).  Pay, cancel and change
+ * book instead while the run has no bookings for them.  Shows are picked
+ * with a power law, so a few of them are hot and their seats are contended.
+ *
+ * In a closed loop (the default) each thread starts its next operation when
+ * the last one ends, after an optional think time.  With
+ * ticketmaster.load.rate set the loop is open: operations arrive at that
+ * total rate with exponential gaps whatever the latency, and latency is
+ * taken from when an operation was due rather than when it started, so a
+ * stalled database shows up in the percentiles instead of slowing the
+ * arrivals.
+ *
+ * A conflict is a seat taken meanwhile or a booking that is no longer
+ * pending; an abort is a serialization failure or deadlock; anything else is
+ * an error.  Each thread draws from its own Random seeded from the given
+ * seed.  The run changes the data, so generate it again for comparable runs.
+ *
+ *   java -cp .:postgresql.jar WorkloadDriver <dbname> <port> <user> [seed]
+ *
+ * Tuning: -Dticketmaster.load.threads=16 -Dticketmaster.load.seconds=60
+ * -Dticketmaster.load.warmupSecs=5 -Dticketmaster.load.rate=<ops/s>
+ * -Dticketmaster.load.thinkMs=0 -Dticketmaster.load.skew=3
+ * -Dticketmaster.load.mix=browse:50,book:20,pay:10,cancel:5,change:5,history:10
+ *
+ */
+
+public class WorkloadDriver{
+	private static final String[] OPS = { "browse", "book", "pay", "cancel", "change", "history" };
+	private static final int BROWSE = 0, BOOK = 1, PAY = 2, CANCEL = 3, CHANGE = 4, HISTORY = 5;
+	private static final String[] TERMS = { "love", "silent harbor", "kingdom", "storm", "the last", "midnight", "garden" };
+
+	private final Ticketmaster esql;
+	private final int[] mix = new int[OPS.length];
+	private final int mixTotal;
+	private final double skew;
+	private final List<Integer> shows;
+	private final int users;
+	private final Stats[] stats = new Stats[OPS.length];
+	private final Queue<Held> pending = new ConcurrentLinkedQueue<Held>();
+	private final Queue<Held> paid = new ConcurrentLinkedQueue<Held>();
+	//operations due before this are warmup and not counted
+	private volatile long measureFrom = Long.MAX_VALUE;
+
+	/**
+	 * A booking made by the run.
+	 */
+	private static class Held{
+		final int bid;
+		final int sid;
+		final int cost;
+
+		Held(int bid, int sid, int cost){
+			this.bid = bid;
+			this.sid = sid;
+			this.cost = cost;
+		}
+	}
+
+	/**
+	 * The outcome counters of one operation.
+	 */
+	private static class Stats{
+		final Metrics.Histogram latency = new Metrics.Histogram();
+		final LongAdder conflicts = new LongAdder();
+		final LongAdder aborts = new LongAdder();
+		final LongAdder errors = new LongAdder();
+	}
+
+	public WorkloadDriver(Ticketmaster esql, String mix, double skew, long seed) throws SQLException {
+		this.esql = esql;
+		this.skew = skew;
+		int total = 0;
+		for (String part : mix.split(",")){
+			String[] kv = part.trim().split(":");
+			int op = indexOf(kv[0].trim());
+			if (op < 0 || kv.length != 2)
+				throw new IllegalArgumentException("Invalid mix entry " + part + ", expected one of " + String.join("|", OPS) + ":<weight>");
+			this.mix[op] = Integer.parseInt(kv[1].trim());
+			total += this.mix[op];
+		}//end for
+		if (total <= 0)
+			throw new IllegalArgumentException("The mix has no operations");
+		this.mixTotal = total;
+		for (int i = 0; i < OPS.length; ++i)
+			stats[i] = new Stats();
+
+		// hot shows are spread over the cinemas rather than all in the first one
+		this.shows = new ArrayList<Integer>();
+		for (List<String> row : esql.executeQueryAndReturnResult("SELECT sid FROM Shows WHERE sdate >= CURRENT_DATE ORDER BY sid"))
+			shows.add(Integer.parseInt(row.get(0)));
+		if (shows.isEmpty())
+			throw new IllegalStateException("There are no upcoming shows; run DataGenerator first");
+		Collections.shuffle(shows, new Random(seed));
+		this.users = Integer.parseInt(esql.executeQueryAndReturnResult("SELECT COUNT(*) FROM Users").get(0).get(0));
+	}
+
+	public static void main (String[] args) throws Exception {
+		if (args.length < 3) {
+			System.err.println (
+				"Usage: " + "java [-classpath <classpath>] " + WorkloadDriver.class.getName () +
+					" <dbname> <port> <user> [seed]");
+			return;
+		}//end if
+		long seed = args.length > 3 ? Long.parseLong(args[3]) : 42L;
+		int threads = Integer.getInteger("ticketmaster.load.threads", 16);
+		System.setProperty("ticketmaster.poolSize", System.getProperty("ticketmaster.poolSize", String.valueOf(threads)));
+		Ticketmaster esql = new Ticketmaster(args[0], args[1], args[2], "");
+		try{
+			String rate = System.getProperty("ticketmaster.load.rate");
+			new WorkloadDriver(esql,
+				System.getProperty("ticketmaster.load.mix", "browse:50,book:20,pay:10,cancel:5,change:5,history:10"),
+				Double.parseDouble(System.getProperty("ticketmaster.load.skew", "3")), seed).run(
+				threads,
+				Integer.getInteger("ticketmaster.load.seconds", 60),
+				Integer.getInteger("ticketmaster.load.warmupSecs", 5),
+				rate == null ? 0 : Double.parseDouble(rate),
+				Long.getLong("ticketmaster.load.thinkMs", 0L),
+				seed);
+		}finally{
+			esql.cleanup();
+		}//end try
+	}//end main
+
+	/**
+	 * Runs the workload and prints the report.
+	 *
+	 * @param rate the total arrival rate in operations per second for an
+	 * open loop, or 0 for a closed loop
+	 * @param thinkMs the mean pause between operations of a closed loop
+	 */
+	public void run(final int threads, int seconds, int warmupSecs, final double rate, final long thinkMs, final long seed) throws InterruptedException {
+		final long start = System.nanoTime();
+		final long end = start + (warmupSecs + seconds) * 1000000000L;
+		measureFrom = start + warmupSecs * 1000000000L;
+		final CountDownLatch done = new CountDownLatch(threads);
+		System.out.println(String.format("# %s loop, %d threads%s, %d s warmup + %d s, %d shows, %d users",
+			rate > 0 ? "open" : "closed", threads, rate > 0 ? String.format(", %.0f ops/s", rate) : "",
+			warmupSecs, seconds, shows.size(), users));
+
+		for (int t = 0; t < threads; ++t){
+			final Random rnd = new Random(seed * 31 + t);
+			new Thread(new Runnable(){
+				public void run(){
+					try{
+						long due = System.nanoTime();
+						while (true){
+							if (rate > 0){
+								// each thread takes an equal share of the arrivals
+								due += (long) (-Math.log(1 - rnd.nextDouble()) / (rate / threads) * 1e9);
+								long wait = due - System.nanoTime();
+								if (wait > 0)
+									Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+							}else{
+								due = System.nanoTime();
+							}//end if
+							if (due >= end)
+								return;
+							execute(pick(rnd), rnd, due);
+							if (rate <= 0 && thinkMs > 0)
+								Thread.sleep((long) (-Math.log(1 - rnd.nextDouble()) * thinkMs));
+						}//end while
+					}catch (InterruptedException e){
+						Thread.currentThread().interrupt();
+					}finally{
+						done.countDown();
+					}//end try
+				}
+			}).start();
+		}//end for
+		done.await();
+		report((System.nanoTime() - measureFrom) / 1e9);
+	}//end run
+
+	/**
+	 * Runs one operation and records its latency and outcome.  Pay, cancel
+	 * and change take a booking the run made earlier and book instead when
+	 * there is none.
+	 */
+	private void execute(int op, Random rnd, long due){
+		Held held = null;
+		if (op == PAY)
+			held = pending.poll();
+		else if (op == CANCEL || op == CHANGE)
+			held = rnd.nextBoolean() && !paid.isEmpty() ? paid.poll() : pending.poll();
+		if ((op == PAY || op == CANCEL || op == CHANGE) && held == null)
+			op = BOOK;
+		try{
+			perform(op, held, rnd);
+		}catch (BookingEngine.SeatsUnavailableException e){
+			count(op, due).conflicts.increment();
+			return;
+		}catch (SQLException e){
+			Stats s = count(op, due);
+			if ("40001".equals(e.getSQLState()) || "40P01".equals(e.getSQLState()))
+				s.aborts.increment();
+			else if (e.getMessage() != null && e.getMessage().endsWith("is not pending"))
+				s.conflicts.increment();
+			else
+				error(op, s, e);
+			return;
+		}catch (RuntimeException e){
+			error(op, count(op, due), e);
+			return;
+		}//end try
+		count(op, due);
+	}//end execute
+
+	private static void error(int op, Stats s, Exception e){
+		s.errors.increment();
+		if (s.errors.sum() <= 3)
+			System.err.println(OPS[op] + ": " + e);
+	}
+
+	/**
+	 * Records the latency of an operation that was due at due, unless it was
+	 * due during the warmup.
+	 *
+	 * @return the counters to record the outcome in; during the warmup a
+	 * throwaway set
+	 */
+	private Stats count(int op, long due){
+		if (due < measureFrom)
+			return new Stats();
+		stats[op].latency.record((System.nanoTime() - due) / 1000);
+		return stats[op];
+	}
+
+	private void perform(int op, Held held, Random rnd) throws SQLException {
+		String now = new Timestamp(System.currentTimeMillis()).toString();
+		switch (op){
+		case BROWSE:
+			if (rnd.nextBoolean())
+				esql.search().search(TERMS[rnd.nextInt(TERMS.length)], null, null, null, null, 1, 20);
+			else
+				esql.seats().get(hotShow(rnd)).free();
+			break;
+		case BOOK:{
+			int sid = hotShow(rnd);
+			List<String> free = esql.seats().get(sid).free();
+			if (free.isEmpty())
+				throw new BookingEngine.SeatsUnavailableException("Show " + sid + " is sold out");
+			Collections.shuffle(free, rnd);
+			BookingEngine.Booking b = esql.bookings().claimSeats(sid, email(rnd), now, free.subList(0, Math.min(free.size(), 1 + rnd.nextInt(4))));
+			pending.add(new Held(b.bid, sid, b.cost));
+			break;
+		}
+		case PAY:
+			esql.bookings().pay(held.bid, "card", now, held.cost, 10000000 + rnd.nextInt(90000000));
+			paid.add(held);
+			break;
+		case CANCEL:{
+			final int bid = held.bid;
+			List<BookingEngine.BookedSeat> seats = esql.bookings().bookedSeats(bid);
+			esql.inTransaction(new Ticketmaster.Work<Void>(){
+				public Void run() throws SQLException {
+					esql.executeUpdate("UPDATE ShowSeats SET bid = NULL WHERE bid = ?", bid);
+					esql.executeUpdate("UPDATE Bookings SET status = 'Cancelled' WHERE bid = ?", bid);
+					esql.executeUpdate("DELETE FROM Payments WHERE bid = ?", bid);
+					return null;
+				}
+			});
+			List<String> snos = new ArrayList<String>();
+			for (BookingEngine.BookedSeat seat : seats)
+				snos.add(seat.sno);
+			esql.seats().markFree(held.sid, snos);
+			esql.expiry().cancel(bid);
+			break;
+		}
+		case CHANGE:{
+			List<BookingEngine.BookedSeat> seats = esql.bookings().bookedSeats(held.bid);
+			if (seats.isEmpty())
+				throw new BookingEngine.SeatsUnavailableException("Booking " + held.bid + " holds no seats");
+			BookingEngine.BookedSeat seat = seats.get(rnd.nextInt(seats.size()));
+			List<String> free = esql.seats().get(held.sid).freeAtPrice(seat.price);
+			if (free.isEmpty())
+				throw new BookingEngine.SeatsUnavailableException("No free seat at " + seat.price + " in show " + held.sid);
+			try{
+				esql.bookings().exchange(held.bid, Collections.singletonList(seat.sno), Collections.singletonList(free.get(rnd.nextInt(free.size()))));
+			}finally{
+				(rnd.nextBoolean() ? paid : pending).add(held);
+			}//end try
+			break;
+		}
+		case HISTORY:
+		default:
+			esql.listings().bookingsForUser(email(rnd), null, 20);
+		}//end switch
+	}//end perform
+
+	/**
+	 * @return a show, the first ones of the shuffled list far more often
+	 */
+	private int hotShow(Random rnd){
+		return shows.get((int) (shows.size() * Math.pow(rnd.nextDouble(), skew)));
+	}
+
+	private String email(Random rnd){
+		return DataGenerator.email(1 + rnd.nextInt(Math.max(1, users)));
+	}
+
+	private int pick(Random rnd){
+		int r = rnd.nextInt(mixTotal);
+		for (int i = 0; i < OPS.length; ++i){
+			r -= mix[i];
+			if (r < 0)
+				return i;
+		}//end for
+		return BROWSE;
+	}
+
+	private static int indexOf(String op){
+		for (int i = 0; i < OPS.length; ++i){
+			if (OPS[i].equals(op))
+				return i;
+		}//end for
+		return -1;
+	}
+
+	private void report(double secs){
+		System.out.println(String.format("%-8s %9s %9s %9s %9s %9s %9s %9s %9s %9s %7s",
+			"op", "count", "ops/s", "p50 ms", "p90 ms", "p99 ms", "p99.9 ms", "max ms", "conflict", "abort", "errors"));
+		long count = 0, conflicts = 0, aborts = 0, errors = 0;
+		for (int i = 0; i < OPS.length; ++i){
+			Stats s = stats[i];
+			long n = s.latency.count();
+			if (n == 0)
+				continue;
+			System.out.println(String.format("%-8s %9d %9.1f %9.2f %9.2f %9.2f %9.2f %9.2f %8.2f%% %8.2f%% %7d",
+				OPS[i], n, n / secs, s.latency.percentile(0.5) / 1e3, s.latency.percentile(0.9) / 1e3,
+				s.latency.percentile(0.99) / 1e3, s.latency.percentile(0.999) / 1e3, s.latency.max() / 1e3,
+				100.0 * s.conflicts.sum() / n, 100.0 * s.aborts.sum() / n, s.errors.sum()));
+			count += n;
+			conflicts += s.conflicts.sum();
+			aborts += s.aborts.sum();
+			errors += s.errors.sum();
+		}//end for
+		System.out.println(String.format("total %d ops in %.1f s, %.1f ops/s, %.2f%% conflicts, %.2f%% aborts, %d errors",
+			count, secs, count / Math.max(secs, 1e-9), count == 0 ? 0 : 100.0 * conflicts / count,
+			count == 0 ? 0 : 100.0 * aborts / count, errors));
+	}//end report
+}//end WorkloadDriver